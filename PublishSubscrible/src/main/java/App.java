@@ -1,6 +1,7 @@
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -14,27 +15,26 @@ import java.util.concurrent.TimeoutException;
  */
 public class App {
 
-    private final static String EXCHANGE_NAME = "TEST_FANOUT_EXCHANGE";//交换机
-    private final static String SMS_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_SMS";//短信队列
-    private final static String EMAIL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_EMAIL";//邮件队列
+    private final static String EXCHANGE_NAME = Registration.FANOUT_EXCHANGE_NAME;//交换机
+    private final static String SMS_QUEUE_NAME = Registration.SMS_QUEUE_NAME;//短信队列
+    private final static String EMAIL_QUEUE_NAME = Registration.EMAIL_QUEUE_NAME;//邮件队列
+    private final static String LOCAL_QUEUE_NAME = Registration.LOCAL_QUEUE_NAME;//进程内扇出队列
+    //消息体超过1KB时用LZ4压缩，消费者按contentEncoding解压
+    private final static PayloadCompression COMPRESSION = new PayloadCompression(PayloadCompression.LZ4, PayloadCompression.DEFAULT_THRESHOLD);
 
 
     /**
      * 模拟生产者发送消息
      */
     private void send() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
 
         //消息内容
         String message = "注册成功!";
         //发布消息到交换机
-        channel.basicPublish(EXCHANGE_NAME,"",null,message.getBytes());
-        System.out.println(" [生产者] send '" + message + "'");
-        channel.close();
-        connection.close();
+        COMPRESSION.publish(channel,EXCHANGE_NAME,"",null,MessageCodecs.UTF8.encodePooled(message));
+        ConnectionManager.getInstance().returnChannel(channel);
     }
 
     /**
@@ -43,15 +43,10 @@ public class App {
      * @throws TimeoutException
      */
     private void receiveForSms() throws IOException, TimeoutException {
-        // 获取到连接
-        Connection connection = ConnectionUtil.getConnection();
-        // 获取通道
-        Channel channel = connection.createChannel();
-        // 声明队列
-        channel.queueDeclare(SMS_QUEUE_NAME, false, false, false, null);
-
-        // 绑定队列到交换机
-        channel.queueBind(SMS_QUEUE_NAME, EXCHANGE_NAME, "");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        // 声明队列并绑定到交换机，同一连接上已声明过的跳过
+        Registration.TOPOLOGY.apply(channel);
 
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
@@ -59,23 +54,20 @@ public class App {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [短信服务] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("sms.received").increment();
             }
         };
         // 监听队列，自动返回完成
-        channel.basicConsume(SMS_QUEUE_NAME, true, consumer);
+        channel.basicConsume(SMS_QUEUE_NAME, true, Metrics.metered(new DecompressingConsumer(consumer)));
     }
 
 
     private void receiveForEmail() throws IOException, TimeoutException {
-        // 获取到连接
-        Connection connection = ConnectionUtil.getConnection();
-        // 获取通道
-        Channel channel = connection.createChannel();
-        // 绑定队列到交换机
-        channel.queueBind(EMAIL_QUEUE_NAME, EXCHANGE_NAME, "");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        // 声明队列并绑定到交换机，同一连接上已声明过的跳过
+        Registration.TOPOLOGY.apply(channel);
 
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
@@ -83,20 +75,41 @@ public class App {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [邮件服务] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("email.received").increment();
             }
         };
         // 监听队列，自动返回完成
-        channel.basicConsume(EMAIL_QUEUE_NAME, true, consumer);
+        channel.basicConsume(EMAIL_QUEUE_NAME, true, Metrics.metered(new DecompressingConsumer(consumer)));
+    }
+
+
+    /**
+     * 同一进程内的多个服务共用一个订阅
+     * 消息只从broker投递一次，经环形缓冲扇出给短信、邮件、审计三个处理器，三者都处理完才确认
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    private void receiveForLocalServices() throws IOException, TimeoutException {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        Registration.TOPOLOGY.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+
+        FanoutRing ring = new FanoutRing(LOCAL_QUEUE_NAME, 1024);
+        ring.addHandler("sms", (envelope, properties, body) -> Metrics.counter("local.sms.received").increment())
+                .addHandler("email", (envelope, properties, body) -> Metrics.counter("local.email.received").increment())
+                .addHandler("audit", (envelope, properties, body) -> Metrics.counter("local.audit.received").increment());
+        ring.start();
     }
 
 
     public static void main(String[] args) throws IOException, TimeoutException {
+        //每秒输出一次收发统计
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
         app.receiveForSms();
         app.receiveForEmail();
+        app.receiveForLocalServices();
 
         app.send();
 
@@ -1,4 +1,8 @@
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -10,15 +14,26 @@ public class App extends Thread {
 
     @Override
     public void run() {
-        RPCClient fibonacciRpc = new RPCClient();
-        for (int i = 0; i < 32; i++) {
-            String i_str = Integer.toString(i);
-            try {
-                //模拟远程调用
-                fibonacciRpc.call(i_str);
-            } catch (IOException | InterruptedException | TimeoutException e) {
-                e.printStackTrace();
+        //fib的结果不变，响应缓存10秒
+        try (CoalescingRPCClient fibonacciRpc = new CoalescingRPCClient(new RPCClient(), 1024).cache("fib", 10, TimeUnit.SECONDS)) {
+            //32个参数放在一个批量请求里，服务端并行计算，结果按完成顺序逐条返回
+            List<String> arguments = new ArrayList<String>();
+            for (int i = 0; i < 32; i++) {
+                arguments.add(Integer.toString(i));
             }
+            //模拟远程调用
+            for (RPCStream.Part part : fibonacciRpc.callBatch("fib", arguments)) {
+                System.out.println(" [RpcClient] fib(" + arguments.get(part.index()) + ") Got " + part.value());
+            }
+            //热点请求：256次调用集中在4个key上，在途的合并，完成的从缓存返回
+            List<CompletableFuture<String>> hot = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 256; i++) {
+                hot.add(fibonacciRpc.callAsync("fib", Integer.toString(32 + i % 4)));
+            }
+            CompletableFuture.allOf(hot.toArray(CompletableFuture<?>[]::new)).join();
+            System.out.println(" [RpcClient] 256 hot calls answered, " + fibonacciRpc.cachedResponses() + " responses cached");
+        } catch (IOException | TimeoutException e) {
+            e.printStackTrace();
         }
     }
 
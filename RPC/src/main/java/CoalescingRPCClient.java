@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并请求并缓存结果的RPC客户端
+ * 同一方法、同一请求已经在途时，后来的调用不再发送，共用在途请求的结果，一次broker往返服务所有调用者；
+ * 配置了TTL的方法，响应在TTL内直接从缓存返回。适合请求集中在少数热点key上、响应在TTL内不变的调用。
+ * 失败的调用不缓存，在途的调用者一起以异常结束，下一次调用重新发送。
+ */
+public class CoalescingRPCClient implements AutoCloseable {
+
+    private final RPCClient client;
+    private final RPCResultCache cache;
+    //方法名 -> 响应的存活时间，纳秒；没有配置的方法只合并不缓存
+    private final Map<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+    //在途请求：方法名+请求 -> 共用的future
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+    private final LongAdder hits = Metrics.counter("rpc.cache.hit");
+    private final LongAdder misses = Metrics.counter("rpc.cache.miss");
+    private final LongAdder coalesced = Metrics.counter("rpc.coalesced");
+
+    /**
+     * @param client 实际发送请求的客户端，关闭本对象时一并关闭
+     * @param maxEntries 缓存的响应数上限
+     */
+    public CoalescingRPCClient(RPCClient client, int maxEntries) {
+        this.client = client;
+        this.cache = new RPCResultCache(maxEntries);
+    }
+
+    /**
+     * 为方法配置缓存的存活时间
+     */
+    public CoalescingRPCClient cache(String method, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("invalid ttl " + ttl);
+        }
+        ttls.put(methodKey(method), unit.toNanos(ttl));
+        return this;
+    }
+
+    /**
+     * 方法名为null时（不设置type）用空串作为键，与RPCClient一致
+     */
+    private static String methodKey(String method) {
+        return method == null ? "" : method;
+    }
+
+    /**
+     * 异步调用，命中缓存时返回已完成的future
+     * 每个调用者拿到各自的future，取消其中一个不影响共用同一请求的其他调用者
+     */
+    public CompletableFuture<String> callAsync(String method, String message) throws IOException {
+        String key = methodKey(method) + '\u0000' + message;
+        Long ttl = ttls.get(methodKey(method));
+        if (ttl != null) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                hits.increment();
+                return CompletableFuture.completedFuture(cached);
+            }
+            misses.increment();
+        }
+        CompletableFuture<String> shared = new CompletableFuture<String>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy();
+        }
+        if (ttl != null) {
+            //检查缓存之后、登记在途之前，同一请求可能刚好完成并写入了缓存
+            String cached = cache.get(key);
+            if (cached != null) {
+                inFlight.remove(key, shared);
+                shared.complete(cached);
+                return shared.copy();
+            }
+        }
+        CompletableFuture<String> response;
+        try {
+            response = client.callAsync(method, message);
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+            throw e;
+        }
+        response.whenComplete((result, error) -> {
+            if (error == null && ttl != null) {
+                //先写缓存再移出在途表，之间到达的调用者不会再发一次请求
+                cache.put(key, result, ttl);
+            }
+            inFlight.remove(key, shared);
+            if (error == null) {
+                shared.complete(result);
+            } else {
+                shared.completeExceptionally(error);
+            }
+        });
+        return shared.copy();
+    }
+
+    /**
+     * 同步调用，阻塞直到收到响应
+     */
+    public String call(String method, String message) throws IOException, InterruptedException {
+        try {
+            return callAsync(method, message).get();
+        } catch (ExecutionException e) {
+            throw new IOException("RPC call failed", e.getCause());
+        }
+    }
+
+    /**
+     * 批量调用，不合并也不缓存
+     */
+    public RPCStream callBatch(String method, List<String> messages) throws IOException {
+        return client.callBatch(method, messages);
+    }
+
+    /**
+     * 当前缓存的响应数
+     */
+    public int cachedResponses() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
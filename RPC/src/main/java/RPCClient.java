@@ -1,70 +1,260 @@
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 模拟RPC客户端，向服务器请求计算斐波那契数列
+ * 整个客户端只使用一个通道和一个回调消费者（direct reply-to），
+ * 通过correlationId将响应分发给对应的CompletableFuture，因此可以同时有大量请求在途
+ * 批量调用把一组参数放在一个请求里，服务端并行计算并逐条发回，结果通过RPCStream按完成顺序读取
  */
-public class RPCClient {
+public class RPCClient implements AutoCloseable {
 
-    private static final String RPC_QUEUE_NAME = "RPC_QUEUE";
+    private static final String RPC_QUEUE_NAME = Registration.RPC_QUEUE_NAME;
+    //rabbitMQ内置的伪队列，响应直接投递给发起请求的通道，无需为每个请求声明回调队列
+    private static final String REPLY_TO = "amq.rabbitmq.reply-to";
+    private static final long DEFAULT_CALL_TIMEOUT_SECONDS = 30;//同步调用默认的等待时间
+
+    private final Channel channel;
+    private final String replyConsumerTag;
+    //correlationId前缀 + 自增序号，比每次生成UUID更便宜
+    private final String corrIdPrefix = UUID.randomUUID().toString() + "-";
+    private final AtomicLong corrIdSequence = new AtomicLong();
+    //在途请求：correlationId -> 等待响应的future
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<String, CompletableFuture<String>>();
+    //在途的批量调用：correlationId -> 结果流
+    private final Map<String, RPCStream> streams = new ConcurrentHashMap<String, RPCStream>();
+    private final LatencyRecorder roundtrip = Metrics.timer(Metrics.RPC_ROUNDTRIP);
+    //每个调用线程按方法名复用的请求属性，发布返回后即可用于下一次调用
+    private final ThreadLocal<Map<String, ReusableProperties>> requestProperties =
+            ThreadLocal.withInitial(HashMap::new);
+
+    public RPCClient() throws IOException, TimeoutException {
+        //从连接池借出通道，客户端存活期间一直持有
+        channel = ConnectionManager.getInstance().borrowChannel();
+        //direct reply-to要求先在同一通道上以自动ACK方式消费，再发送请求
+        replyConsumerTag = channel.basicConsume(REPLY_TO, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                RPCStream stream = streams.get(properties.getCorrelationId());
+                if (stream != null) {
+                    if (stream.accept(properties, body)) {
+                        streams.remove(properties.getCorrelationId(), stream);
+                    }
+                    return;
+                }
+                CompletableFuture<String> future = pending.remove(properties.getCorrelationId());
+                if (future == null) {
+                    return;
+                }
+                //服务端处理失败时只发回错误信息
+                Object error = properties.getHeaders() == null ? null : properties.getHeaders().get(RPCServer.ERROR_HEADER);
+                if (error != null) {
+                    future.completeExceptionally(new IOException("RPC call failed on server: " + error));
+                } else {
+                    future.complete(MessageCodecs.UTF8.decode(body).toString());
+                }
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                //通道断开，所有在途请求都不会再有响应；
+                //连接自动恢复后客户端在新通道上重新订阅direct reply-to，同一个消费者继续接收之后请求的响应
+                failPending(sig);
+            }
+        });
+    }
 
     /**
-     * 模拟客户端发送请求后，创建回调队列，每个客户端只创建一个
+     * 异步发送请求，不等待响应
      * @param message 发送请求
-     * @return
+     * @return 收到响应时完成的future
      * @throws IOException
-     * @throws InterruptedException
-     * @throws TimeoutException
      */
-    public void call(String message) throws IOException, InterruptedException, TimeoutException {
-        //创建连接
-        Connection connection = ConnectionUtil.getConnection();
-        //创建管道
-        Channel channel = connection.createChannel();
+    public CompletableFuture<String> callAsync(String message) throws IOException {
+        return callAsync(null, message);
+    }
+
+    /**
+     * 异步调用指定的方法，方法名放在消息的type属性中
+     * @param method 方法名，为null时不设置
+     * @param message 发送请求
+     * @return 收到响应时完成的future
+     * @throws IOException
+     */
+    public CompletableFuture<String> callAsync(String method, String message) throws IOException {
         //关联id，用于关联请求和响应消息
-        final String corrId = UUID.randomUUID().toString();
-        //获取回调队列
-        String replyQueueName = channel.queueDeclare().getQueue();
-        //设置replyTo和correlationID属性值
-        //构建生成器
-        AMQP.BasicProperties.Builder propertiesBuilder = new AMQP.BasicProperties.Builder();
-        //设置属性
-        propertiesBuilder.correlationId(corrId);
-        propertiesBuilder.replyTo(replyQueueName);
-        //构建属性
-        AMQP.BasicProperties properties = propertiesBuilder.build();
-        //发送消息到队列
-        channel.basicPublish("",RPC_QUEUE_NAME,properties,message.getBytes());
-        System.out.println(" [RpcClient] Requesting fib("+message+")");
-        //使用阻塞队列来存储回调结果
-        //当队列容器已满，生产者线程会被阻塞，直到队列未满；当队列容器为空时，消费者线程会被阻塞，直至队列非空时为止
-        final BlockingQueue<String> response = new ArrayBlockingQueue<String>(1);
-        //定义消息的回退方法
-        channel.basicConsume(replyQueueName,true,new DefaultConsumer(channel){
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                if (properties.getCorrelationId().equals(corrId)) {
-                    response.offer(new String(body, "UTF-8"));
-                }
+        String corrId = corrIdPrefix + corrIdSequence.incrementAndGet();
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        final long start = System.nanoTime();
+        future.whenComplete((response, error) -> roundtrip.recordSince(start));
+        pending.put(corrId, future);
+        //超时或被调用方取消时从在途表中移除，之后迟到的响应直接丢弃
+        future.whenComplete((response, error) -> pending.remove(corrId, future));
+        //设置replyTo和correlationID属性值，复用本线程上该方法的属性，不再每次新建Builder
+        ReusableProperties properties = properties(method).correlationId(corrId).next();
+        try {
+            //发送消息到队列
+            channel.basicPublish("", RPC_QUEUE_NAME, properties, MessageCodecs.UTF8.encodePooled(message));
+        } catch (IOException | RuntimeException e) {
+            pending.remove(corrId);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * 批量调用，整批结果最多等待DEFAULT_CALL_TIMEOUT_SECONDS秒
+     */
+    public RPCStream callBatch(String method, List<String> messages) throws IOException {
+        return callBatch(method, messages, DEFAULT_CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 批量调用，一个请求携带全部参数，服务端并行计算后逐条发回
+     * @param method 方法名，为null时不设置
+     * @param messages 参数，每个参数对应一条部分响应
+     * @param timeout 整批结果的期限，超过后结果流以TimeoutException结束
+     * @param unit 时间单位
+     * @return 按完成顺序到达的结果流
+     * @throws IOException
+     */
+    public RPCStream callBatch(String method, List<String> messages, long timeout, TimeUnit unit) throws IOException {
+        String corrId = corrIdPrefix + corrIdSequence.incrementAndGet();
+        RPCStream stream = new RPCStream(messages.size(), timeout, unit);
+        final long start = System.nanoTime();
+        stream.completion().whenComplete((parts, error) -> roundtrip.recordSince(start));
+        streams.put(corrId, stream);
+        //超时或失败时从在途表中移除，之后迟到的部分响应直接丢弃
+        stream.completion().whenComplete((parts, error) -> streams.remove(corrId, stream));
+        List<byte[]> arguments = new ArrayList<byte[]>(messages.size());
+        for (String message : messages) {
+            arguments.add(MessageCodecs.UTF8.encode(message));
+        }
+        ReusableProperties properties = properties(method, true).correlationId(corrId).next();
+        try {
+            channel.basicPublish("", RPC_QUEUE_NAME, properties, MessageCodecs.BATCH.encodePooled(arguments));
+        } catch (IOException | RuntimeException e) {
+            streams.remove(corrId);
+            throw e;
+        }
+        return stream;
+    }
+
+    private ReusableProperties properties(String method) {
+        return properties(method, false);
+    }
+
+    /**
+     * @param batch 是否为批量调用，批量请求的contentType为BatchCodec.CONTENT_TYPE
+     */
+    private ReusableProperties properties(String method, boolean batch) {
+        Map<String, ReusableProperties> byMethod = requestProperties.get();
+        String key = (batch ? "batch:" : "") + (method == null ? "" : method);
+        ReusableProperties properties = byMethod.get(key);
+        if (properties == null) {
+            properties = new ReusableProperties(new AMQP.BasicProperties.Builder()
+                    .contentType(batch ? BatchCodec.CONTENT_TYPE : null)
+                    .replyTo(REPLY_TO)
+                    .type(method)
+                    .build());
+            byMethod.put(key, properties);
+        }
+        return properties;
+    }
+
+    /**
+     * 同步发送请求，最多等待DEFAULT_CALL_TIMEOUT_SECONDS秒
+     * @param message 发送请求
+     * @return 响应内容
+     * @throws IOException 调用失败或超时
+     * @throws InterruptedException
+     */
+    public String call(String message) throws IOException, InterruptedException {
+        try {
+            return call(message, DEFAULT_CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("RPC call timed out", e);
+        }
+    }
+
+    /**
+     * 同步发送请求，阻塞直到收到响应或超时
+     * 响应可能因服务端未启动、连接恢复期间丢失等原因永远不会到达，超时后请求从在途表中移除
+     * @param message 发送请求
+     * @param timeout 等待响应的最长时间
+     * @param unit 时间单位
+     * @return 响应内容
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws TimeoutException 超时仍未收到响应
+     */
+    public String call(String message, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+        CompletableFuture<String> future = callAsync(message);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new IOException("RPC call failed", e.getCause());
+        } catch (TimeoutException e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 当前在途的请求数
+     */
+    public int pendingCalls() {
+        return pending.size() + streams.size();
+    }
+
+    /**
+     * 取消回调消费者并归还通道，未完成的请求以异常结束
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                channel.basicCancel(replyConsumerTag);
             }
-        });
-        String res = response.take();
-        System.out.println(" [RpcClient] Got " + res );
-        channel.close();
-        connection.close();
+        } finally {
+            failPending(new IOException("RPCClient closed"));
+            ConnectionManager.getInstance().returnChannel(channel);
+        }
     }
 
+    private void failPending(Throwable cause) {
+        for (String corrId : pending.keySet()) {
+            CompletableFuture<String> future = pending.remove(corrId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+        for (String corrId : streams.keySet()) {
+            RPCStream stream = streams.remove(corrId);
+            if (stream != null) {
+                stream.fail(cause);
+            }
+        }
+    }
 
     public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
-        RPCClient fibonacciRpc = new RPCClient();
-        for (int i = 0; i < 32; i++) {
-            String i_str = Integer.toString(i);
-            fibonacciRpc.call(i_str);
+        try (RPCClient fibonacciRpc = new RPCClient()) {
+            for (int i = 0; i < 32; i++) {
+                String i_str = Integer.toString(i);
+                System.out.println(" [RpcClient] fib(" + i_str + ") Got " + fibonacciRpc.call(i_str));
+            }
         }
     }
 }
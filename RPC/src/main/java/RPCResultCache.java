@@ -0,0 +1,95 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RPC响应缓存
+ * 条目数有上限，每个条目带自己的过期时间（由方法的TTL决定），过期的条目不再返回，之后被新的响应覆盖或在淘汰时移除。
+ * 命中只读ConcurrentHashMap并在条目上做一次标记，热点key的并发读不加锁；
+ * 超过上限时按CLOCK（second chance）淘汰：从最早插入的条目开始，最近被读过的清除标记放回队尾，没被读过的淘汰，
+ * 访问频繁的热点key会一直留在缓存里，一次性的冷key先被淘汰。
+ */
+public class RPCResultCache {
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    //插入顺序，每个key只出现一次
+    private final Queue<String> clock = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxEntries 最多缓存的响应数
+     */
+    public RPCResultCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return 未过期的响应，没有时返回null
+     */
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            //过期的条目留在map中，key在淘汰队列里只出现一次，队列长度不超过条目数
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param ttlNanos 存活时间，纳秒
+     */
+    public void put(String key, String value, long ttlNanos) {
+        if (entries.put(key, new Entry(value, System.nanoTime() + ttlNanos)) == null) {
+            clock.offer(key);
+            if (size.incrementAndGet() > maxEntries) {
+                evict();
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private synchronized void evict() {
+        long now = System.nanoTime();
+        while (size.get() > maxEntries) {
+            String key = clock.poll();
+            if (key == null) {
+                return;
+            }
+            Entry entry = entries.get(key);
+            if (entry != null && entry.referenced && now - entry.expiresAt < 0) {
+                //最近读过，给一次机会
+                entry.referenced = false;
+                clock.offer(key);
+                continue;
+            }
+            entries.remove(key);
+            size.decrementAndGet();
+        }
+    }
+
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+        volatile boolean referenced;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+import com.rabbitmq.client.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RPC服务端运行时
+ * 在多个通道上同时消费请求队列，每个通道的预取数可配置；
+ * 消息的计算交给有界线程池完成，不占用客户端的分发线程，一个耗时请求不会阻塞其他请求。
+ * 响应和ACK由工作线程发送，同一通道上的发送操作串行执行。
+ * contentType为BatchCodec.CONTENT_TYPE的请求是批量调用：消息体是一组参数，在fork-join池上并行计算，
+ * 每算完一个参数就发回一条部分响应（correlationId相同，SEQUENCE_HEADER为参数的位置），
+ * 全部完成后发送结束标记（END_HEADER为部分响应数）再确认请求。一次broker往返完成整批调用。
+ */
+public class RPCServer {
+
+    /**
+     * 请求处理逻辑
+     */
+    public interface Handler {
+        /**
+         * @param request 请求消息体
+         * @return 响应消息体
+         */
+        byte[] handle(byte[] request) throws Exception;
+    }
+
+    /**
+     * 部分响应的序号：对应参数在批量请求中的位置
+     */
+    public static final String SEQUENCE_HEADER = "x-rpc-seq";
+    /**
+     * 结束标记，值为实际发出的部分响应条数，消息体为空；带ERROR_HEADER时表示整批没有完整处理
+     */
+    public static final String END_HEADER = "x-rpc-end";
+    /**
+     * 处理失败时的错误信息，此时消息体为空：普通请求失败时作为唯一的响应，批量请求中标在失败参数的部分响应上
+     */
+    public static final String ERROR_HEADER = "x-rpc-error";
+
+    private static final int BATCH_LEAF_SIZE = 1;//批量请求拆分到几个参数为止，每个参数单独计算以便尽早发回
+
+    private final String queueName;
+    private final int channelCount;
+    private final int prefetch;
+    private final Handler handler;
+    private final ThreadPoolExecutor executor;
+    private final ForkJoinPool batchPool;//批量请求的并行计算
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private final List<String> consumerTags = new ArrayList<String>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //每个通道上正在处理的请求数，停机时据此决定通道能否放回连接池
+    private final Map<Channel, AtomicInteger> channelInFlight = new ConcurrentHashMap<Channel, AtomicInteger>();
+    private final LatencyRecorder processing = Metrics.timer(Metrics.DELIVERY_PROCESSING);
+    private final LongAdder batchItems = Metrics.counter("rpc.batch.items");
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean running = false;
+
+    /**
+     * @param queueName 请求队列
+     * @param channelCount 消费通道数
+     * @param prefetch 每个通道未确认消息的上限
+     * @param workerThreads 计算线程数，也是批量请求的并行度
+     * @param handler 请求处理逻辑
+     */
+    public RPCServer(String queueName, int channelCount, int prefetch, int workerThreads, Handler handler) {
+        if (channelCount < 1 || prefetch < 1 || workerThreads < 1) {
+            throw new IllegalArgumentException("channelCount, prefetch and workerThreads must be positive");
+        }
+        this.queueName = queueName;
+        this.channelCount = channelCount;
+        this.prefetch = prefetch;
+        this.handler = handler;
+        //在途消息最多channelCount*prefetch条，任务队列按此设置容量，正常情况下不会拒绝任务
+        this.executor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(channelCount * prefetch), new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "rpc-worker-" + index.incrementAndGet());
+            }
+        });
+        this.batchPool = new ForkJoinPool(workerThreads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("rpc-batch-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * 开始在所有通道上消费请求
+     */
+    public synchronized void start() throws IOException, TimeoutException {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < channelCount; i++) {
+            final Channel channel = ConnectionManager.getInstance().borrowChannel();
+            channel.basicQos(prefetch);
+            channels.add(channel);
+            channelInFlight.put(channel, new AtomicInteger());
+            consumerTags.add(channel.basicConsume(queueName, false, new DefaultConsumer(channel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                    dispatch(channel, envelope, properties, body);
+                }
+            }));
+        }
+    }
+
+    /**
+     * 当前正在处理的请求数
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 优雅停机：停止接收新请求，等待在途请求处理完并发送响应后再归还通道
+     * @param timeout 等待在途请求的最长时间
+     * @param unit 时间单位
+     * @return 在途请求是否全部处理完成
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return true;
+            }
+            running = false;
+            for (int i = 0; i < channels.size(); i++) {
+                Channel channel = channels.get(i);
+                try {
+                    synchronized (channel) {
+                        channel.basicCancel(consumerTags.get(i));
+                    }
+                } catch (IOException | AlreadyClosedException e) {
+                    //通道已断开，未确认的消息会被broker重新投递
+                }
+            }
+        }
+        executor.shutdown();
+        boolean drained = executor.awaitTermination(timeout, unit);
+        if (!drained) {
+            executor.shutdownNow();
+        }
+        batchPool.shutdown();
+        synchronized (this) {
+            for (Channel channel : channels) {
+                release(channel);
+            }
+            channels.clear();
+            consumerTags.clear();
+        }
+        terminated.countDown();
+        return drained;
+    }
+
+    /**
+     * 归还通道：还有请求没处理完的通道直接关闭，让broker重新投递这些请求，不能带着未确认消息放回连接池；
+     * 处理完的通道恢复默认预取数后放回
+     */
+    private void release(Channel channel) {
+        try {
+            synchronized (channel) {
+                if (channelInFlight.get(channel).get() > 0) {
+                    channel.close();
+                } else if (channel.isOpen()) {
+                    channel.basicQos(0);
+                }
+            }
+        } catch (IOException | AlreadyClosedException | TimeoutException e) {
+            //通道已断开
+        } finally {
+            ConnectionManager.getInstance().returnChannel(channel);
+        }
+    }
+
+    /**
+     * 阻塞直到服务停止
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    private void dispatch(final Channel channel, final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+        inFlight.incrementAndGet();
+        channelInFlight.get(channel).incrementAndGet();
+        try {
+            executor.execute(() -> process(channel, envelope, properties, body));
+        } catch (RejectedExecutionException e) {
+            //停机期间到达的消息放回队列
+            inFlight.decrementAndGet();
+            channelInFlight.get(channel).decrementAndGet();
+            synchronized (channel) {
+                channel.basicNack(envelope.getDeliveryTag(), false, true);
+            }
+        }
+    }
+
+    private void process(Channel channel, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        long start = System.nanoTime();
+        try {
+            if (BatchCodec.CONTENT_TYPE.equals(properties.getContentType())) {
+                processBatch(channel, envelope, properties, body);
+                return;
+            }
+            byte[] response;
+            try {
+                response = handler.handle(body);
+            } catch (InterruptedException e) {
+                //停机超时被中断，不确认也不拒绝，通道关闭后broker重新投递
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                //无法处理的请求直接丢弃，避免反复重投；先发回错误响应，调用方不会一直等待
+                e.printStackTrace();
+                AMQP.BasicProperties errorProps = new AMQP.BasicProperties.Builder()
+                        .correlationId(properties.getCorrelationId())
+                        .headers(Collections.<String, Object>singletonMap(ERROR_HEADER, String.valueOf(e)))
+                        .build();
+                synchronized (channel) {
+                    if (properties.getReplyTo() != null) {
+                        channel.basicPublish("", properties.getReplyTo(), errorProps, new byte[0]);
+                    }
+                    channel.basicReject(envelope.getDeliveryTag(), false);
+                }
+                return;
+            }
+            //生产返回的结果，设置corrID
+            AMQP.BasicProperties replyProps = new AMQP.BasicProperties.Builder()
+                    .correlationId(properties.getCorrelationId())
+                    .build();
+            //通道不允许多线程交错发送帧，响应和ACK在通道上串行执行
+            synchronized (channel) {
+                if (properties.getReplyTo() != null) {
+                    channel.basicPublish("", properties.getReplyTo(), replyProps, response);
+                }
+                channel.basicAck(envelope.getDeliveryTag(), false);
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            //通道断开，消息会被broker重新投递
+            e.printStackTrace();
+        } finally {
+            processing.recordSince(start);
+            inFlight.decrementAndGet();
+            channelInFlight.get(channel).decrementAndGet();
+        }
+    }
+
+    /**
+     * 批量请求：并行计算每个参数，边算边发回部分响应，最后发送结束标记并确认
+     */
+    private void processBatch(Channel channel, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        List<byte[]> arguments;
+        try {
+            arguments = MessageCodecs.BATCH.decode(body);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put(END_HEADER, 0);
+            headers.put(ERROR_HEADER, String.valueOf(e));
+            synchronized (channel) {
+                if (properties.getReplyTo() != null) {
+                    channel.basicPublish("", properties.getReplyTo(), new AMQP.BasicProperties.Builder()
+                            .correlationId(properties.getCorrelationId())
+                            .headers(headers)
+                            .build(), new byte[0]);
+                }
+                channel.basicReject(envelope.getDeliveryTag(), false);
+            }
+            return;
+        }
+        String replyTo = properties.getReplyTo();
+        String correlationId = properties.getCorrelationId();
+        //部分响应由fork-join线程各自发送，通道断开后其余的不再发送
+        AtomicInteger published = new AtomicInteger();
+        batchPool.invoke(new BatchTask(channel, replyTo, correlationId, arguments, 0, arguments.size(), published));
+        //结束标记带上实际发出的条数，客户端不会等待没发出去的部分响应
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(END_HEADER, published.get());
+        if (published.get() < arguments.size()) {
+            headers.put(ERROR_HEADER, (arguments.size() - published.get()) + " of " + arguments.size()
+                    + " partial replies could not be sent");
+        }
+        AMQP.BasicProperties endProps = new AMQP.BasicProperties.Builder()
+                .correlationId(correlationId)
+                .headers(headers)
+                .build();
+        synchronized (channel) {
+            if (replyTo != null) {
+                channel.basicPublish("", replyTo, endProps, new byte[0]);
+            }
+            channel.basicAck(envelope.getDeliveryTag(), false);
+        }
+        batchItems.add(arguments.size());
+    }
+
+    /**
+     * 把参数区间对半拆分，叶子上计算并发回部分响应
+     * RecursiveAction实现了Serializable，但任务只在本进程的fork-join池中执行，不会被序列化
+     */
+    @SuppressWarnings("serial")
+    private final class BatchTask extends RecursiveAction {
+        private final Channel channel;
+        private final String replyTo;
+        private final String correlationId;
+        private final List<byte[]> arguments;
+        private final int from;
+        private final int to;
+        private final AtomicInteger published;//整批已发出的部分响应数
+
+        BatchTask(Channel channel, String replyTo, String correlationId, List<byte[]> arguments, int from, int to,
+                  AtomicInteger published) {
+            this.channel = channel;
+            this.replyTo = replyTo;
+            this.correlationId = correlationId;
+            this.arguments = arguments;
+            this.from = from;
+            this.to = to;
+            this.published = published;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_LEAF_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(channel, replyTo, correlationId, arguments, from, middle, published),
+                        new BatchTask(channel, replyTo, correlationId, arguments, middle, to, published));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                reply(i);
+            }
+        }
+
+        private void reply(int index) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put(SEQUENCE_HEADER, index);
+            byte[] response;
+            try {
+                response = handler.handle(arguments.get(index));
+            } catch (Exception e) {
+                //单个参数失败不影响其他参数
+                headers.put(ERROR_HEADER, String.valueOf(e));
+                response = new byte[0];
+            }
+            if (replyTo == null) {
+                return;
+            }
+            AMQP.BasicProperties replyProps = new AMQP.BasicProperties.Builder()
+                    .correlationId(correlationId)
+                    .headers(headers)
+                    .build();
+            try {
+                //响应可能是线程内复用的数组，在同一线程上紧接着发送
+                synchronized (channel) {
+                    channel.basicPublish("", replyTo, replyProps, response);
+                }
+                published.incrementAndGet();
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开，请求会被broker重新投递
+            }
+        }
+    }
+}
@@ -1,11 +1,14 @@
-import com.rabbitmq.client.*;
-
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class RPCService {
 
-    private static final String RPC_QUEUE_NAME = "RPC_QUEUE";
+    private static final String RPC_QUEUE_NAME = Registration.RPC_QUEUE_NAME;
+    private static final int CHANNEL_COUNT = 2;//消费通道数
+    private static final int PREFETCH = 4;//每个通道同时最多获取的消息数
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();//计算线程数
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;//停机时等待在途请求的时间
 
     /**
      * 递归求斐波那契数列
@@ -22,50 +25,31 @@ public class RPCService {
      * 模拟RPC服务器被客户端远程调用
      */
     public static void execute() throws IOException, TimeoutException, InterruptedException {
-        //建立连接
-        Connection connection = ConnectionUtil.getConnection();
-        //建立通道
-        Channel channel = connection.createChannel();
-        // 设置同时最多只能获取一个消息
-        channel.basicQos(1);
-        System.out.println(" [RPCServer] is wating RPC requests");
-        //定义消息的回调处理类
-        Consumer consumer = new DefaultConsumer(channel){
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                //生产返回的结果，设置corrID
-                AMQP.BasicProperties replyProps = new AMQP.BasicProperties()
-                        .builder()
-                        .correlationId(properties.getCorrelationId())
-                        .build();
-                //生成返回
-                String response = generateResponse(body);
-                //回复消息，通知已经收到请求了
-                channel.basicPublish("",properties.getReplyTo(),replyProps,response.getBytes());
-                //对消息进行回答
-                channel.basicAck(envelope.getDeliveryTag(),false);
-                //唤醒所有线程
-                synchronized (this){
-                    this.notify();
-                }
-            }
-        };
-        // 消费消息
-        channel.basicConsume(RPC_QUEUE_NAME, false, consumer);
-        // 在收到消息前，本线程进入等待状态
-        while (true) {
-            synchronized(consumer) {
-                consumer.wait();
+        final RPCServer server = new RPCServer(RPC_QUEUE_NAME, CHANNEL_COUNT, PREFETCH, WORKER_THREADS,
+                RPCService::generateResponse);
+        //进程退出时先处理完在途请求
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }
+        }));
+        Metrics.startReporter(1, TimeUnit.SECONDS);
+        server.start();
+        System.out.println(" [RPCServer] is wating RPC requests");
+        // 在服务停止前，本线程进入等待状态
+        server.awaitTermination();
     }
 
-    private static String generateResponse(byte[] body) {
-        String response = "";
-        System.out.println(" [RpcServer] receive requests: fib[" + new String(body)+"]");
-        int n = Integer.parseInt(new  String(body));
-        response += fib(n);
-        return " response:" + response;
+    /**
+     * 请求和响应都是十进制数字，直接在字节上解析和生成，不经过String
+     * 响应使用线程内复用的数组，RPCServer在同一个工作线程上紧接着发送
+     */
+    private static byte[] generateResponse(byte[] body) {
+        int n = MessageCodecs.NUMBER.decodeInt(body);
+        Metrics.counter("rpc.fib.requests").increment();
+        return MessageCodecs.NUMBER.encodeLong(fib(n), true);
     }
 
     public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
@@ -0,0 +1,199 @@
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次批量调用的流式结果
+ * 服务端每算完一个参数就发回一条部分响应，序号是该参数在请求中的位置，结果按完成顺序到达；
+ * 最后一条是结束标记，带上实际发出的部分响应数。收齐所有部分响应并收到结束标记后流结束；
+ * 结束标记带错误信息（请求无法解析、部分响应没能发出）或超过期限时，流以异常结束。
+ * 结果可以用iterator()逐条阻塞读取，也可以通过completion()一次拿到全部结果。
+ */
+public class RPCStream implements Iterable<RPCStream.Part> {
+
+    //结果队列中表示流结束的元素
+    private static final Part END = new Part(-1, null, null);
+
+    private final int expected;//请求中的参数个数
+    private final BlockingQueue<Part> parts = new LinkedBlockingQueue<Part>();
+    private final List<Part> received = new ArrayList<Part>();
+    private final CompletableFuture<List<Part>> completion = new CompletableFuture<List<Part>>();
+    private volatile Throwable failure;
+    private int endCount = -1;//结束标记中的部分响应数，-1表示还没收到
+    private boolean iterated;
+
+    /**
+     * @param timeout 整批结果的期限，超过后completion和iterator以TimeoutException结束
+     */
+    RPCStream(int expected, long timeout, TimeUnit unit) {
+        this.expected = expected;
+        completion.orTimeout(timeout, unit).whenComplete((parts, error) -> {
+            if (error != null) {
+                failed(error);
+            }
+        });
+    }
+
+    /**
+     * 请求中的参数个数
+     */
+    public int size() {
+        return expected;
+    }
+
+    /**
+     * 所有部分响应，收到结束标记后按到达顺序完成
+     */
+    public CompletableFuture<List<Part>> completion() {
+        return completion;
+    }
+
+    /**
+     * 处理一条响应
+     * @return 流是否已结束
+     */
+    synchronized boolean accept(AMQP.BasicProperties properties, byte[] body) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null) {
+            //不是批量调用的响应
+            return false;
+        }
+        Object end = headers.get(RPCServer.END_HEADER);
+        Object sequence = headers.get(RPCServer.SEQUENCE_HEADER);
+        if (end != null) {
+            Object error = headers.get(RPCServer.ERROR_HEADER);
+            if (error != null) {
+                //已经到达的部分响应仍可以从iterator读取
+                fail(new IOException("RPC batch failed on server: " + error));
+                return true;
+            }
+            endCount = ((Number) end).intValue();
+        } else if (sequence != null) {
+            //broker发回的字符串头是LongString，统一转成String
+            Object error = headers.get(RPCServer.ERROR_HEADER);
+            Part part = error == null
+                    ? new Part(((Number) sequence).intValue(), MessageCodecs.UTF8.decode(body).toString(), null)
+                    : new Part(((Number) sequence).intValue(), null, error.toString());
+            received.add(part);
+            parts.add(part);
+        }
+        //结束标记和部分响应在同一通道上按顺序发送，这里仍按数量判断，不依赖到达顺序
+        if (endCount >= 0 && received.size() >= endCount) {
+            parts.add(END);
+            completion.complete(new ArrayList<Part>(received));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 通道断开或客户端关闭，流以异常结束
+     */
+    void fail(Throwable cause) {
+        completion.completeExceptionally(cause);
+    }
+
+    /**
+     * completion异常结束（包括超时）后唤醒iterator
+     */
+    private synchronized void failed(Throwable cause) {
+        failure = cause;
+        parts.add(END);
+    }
+
+    /**
+     * 按到达顺序逐条读取结果，hasNext阻塞到下一条结果、流结束或超过期限；只能遍历一次
+     * 流异常结束时hasNext抛出UncheckedIOException
+     */
+    @Override
+    public synchronized Iterator<Part> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("RPCStream can only be iterated once");
+        }
+        iterated = true;
+        return new Iterator<Part>() {
+            private Part next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = parts.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UncheckedIOException(new IOException("interrupted while waiting for RPC results", e));
+                    }
+                }
+                if (next == END) {
+                    //next保持为END，之后的hasNext不再阻塞
+                    if (failure != null) {
+                        throw new UncheckedIOException(new IOException("RPC stream failed", failure));
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public Part next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Part part = next;
+                next = null;
+                return part;
+            }
+        };
+    }
+
+    /**
+     * 一条部分响应
+     */
+    public static final class Part {
+        private final int index;
+        private final String value;
+        private final String error;
+
+        Part(int index, String value, String error) {
+            this.index = index;
+            this.value = value;
+            this.error = error;
+        }
+
+        /**
+         * 对应参数在请求中的位置
+         */
+        public int index() {
+            return index;
+        }
+
+        /**
+         * 计算结果，失败时为null
+         */
+        public String value() {
+            return value;
+        }
+
+        /**
+         * 服务端处理该参数时的错误，成功时为null
+         */
+        public String error() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return error == null ? index + "=" + value : index + " failed: " + error;
+        }
+    }
+}
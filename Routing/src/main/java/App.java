@@ -1,6 +1,7 @@
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -11,9 +12,11 @@ import java.util.concurrent.TimeoutException;
  */
 public class App {
 
-    private final static String EXCHANGE_NAME = "TEST_DIRECT_EXCHANGE";//交换机
-    private final static String SMS_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_SMS";//短信队列
-    private final static String EMAIL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_EMAIL";//邮件队列
+    private final static String EXCHANGE_NAME = Registration.DIRECT_EXCHANGE_NAME;//交换机
+    private final static String SMS_QUEUE_NAME = Registration.SMS_QUEUE_NAME;//短信队列
+    private final static String EMAIL_QUEUE_NAME = Registration.EMAIL_QUEUE_NAME;//邮件队列
+    //消息体超过1KB时用LZ4压缩，消费者按contentEncoding解压
+    private final static PayloadCompression COMPRESSION = new PayloadCompression(PayloadCompression.LZ4, PayloadCompression.DEFAULT_THRESHOLD);
 
     /**
      * 模拟生产者，指定route key
@@ -21,21 +24,16 @@ public class App {
      * @throws TimeoutException
      */
     private void send() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
         //消息内容
         String messageSms = "注册成功！请短信回复[T]退订";
         String messageEmail = "注册成功！该邮件请勿回复";
         //发送消息，指定route key
-        channel.basicPublish(EXCHANGE_NAME,"sms",null,messageSms.getBytes());
-        channel.basicPublish(EXCHANGE_NAME,"email",null,messageEmail.getBytes());
-        System.out.println(" [x] Sent '" + messageSms + "'");
-        System.out.println(" [x] Sent '" + messageEmail + "'");
+        COMPRESSION.publish(channel,EXCHANGE_NAME,"sms",null,MessageCodecs.UTF8.encodePooled(messageSms));
+        COMPRESSION.publish(channel,EXCHANGE_NAME,"email",null,MessageCodecs.UTF8.encodePooled(messageEmail));
 
-        channel.close();
-        connection.close();
+        ConnectionManager.getInstance().returnChannel(channel);
     }
 
     /**
@@ -44,12 +42,10 @@ public class App {
      * @throws TimeoutException
      */
     private void receiveForSms() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
-        //绑定队列到交换机，同时指定route key
-        channel.queueBind(SMS_QUEUE_NAME,EXCHANGE_NAME,"sms");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑，绑定及route key见Registration.TOPOLOGY
+        Registration.TOPOLOGY.apply(channel);
 
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
@@ -57,13 +53,15 @@ public class App {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [短信服务] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("sms.received").increment();
             }
         };
-        // 监听队列，自动ACK
-        channel.basicConsume(SMS_QUEUE_NAME, true, consumer);
+        // 每条消息在自己的虚拟线程上处理，处理完成后由VirtualThreadConsumer确认，最多16条在途
+        // 解压也在用完即弃的虚拟线程上进行，线程内的缓冲池用不上，解压到新数组
+        channel.basicQos(16);
+        channel.basicConsume(SMS_QUEUE_NAME, false,
+                new VirtualThreadConsumer(channel, Metrics.metered(new DecompressingConsumer(consumer, false)), true, null));
     }
 
     /**
@@ -72,12 +70,10 @@ public class App {
      * @throws TimeoutException
      */
     private void receiveForEmail() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
-        //绑定队列到交换机，同时指定route key
-        channel.queueBind(EMAIL_QUEUE_NAME,EXCHANGE_NAME,"email");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑，绑定及route key见Registration.TOPOLOGY
+        Registration.TOPOLOGY.apply(channel);
 
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
@@ -85,16 +81,20 @@ public class App {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [邮件服务] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("email.received").increment();
             }
         };
-        // 监听队列，自动ACK
-        channel.basicConsume(EMAIL_QUEUE_NAME, true, consumer);
+        // 每条消息在自己的虚拟线程上处理，处理完成后由VirtualThreadConsumer确认，最多16条在途
+        // 解压也在用完即弃的虚拟线程上进行，线程内的缓冲池用不上，解压到新数组
+        channel.basicQos(16);
+        channel.basicConsume(EMAIL_QUEUE_NAME, false,
+                new VirtualThreadConsumer(channel, Metrics.metered(new DecompressingConsumer(consumer, false)), true, null));
     }
 
     public static void main(String[] args) throws IOException, TimeoutException {
+        //每秒输出一次收发统计
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
         app.receiveForEmail();
         app.receiveForSms();
@@ -1,6 +1,7 @@
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -14,9 +15,13 @@ import java.util.concurrent.TimeoutException;
  */
 public class App {
 
-    private final static String TOPIC_EXCHANGE_NAME = "TEST_TOPIC_EXCHANGE";//topic交换机
-    private final static String TOPIC_QUEUE_NAME_01 = "TOPIC_EXCHANGE_QUEUE_01";//topic队列1
-    private final static String TOPIC_QUEUE_NAME_02 = "TOPIC_EXCHANGE_QUEUE_02";//topic队列2
+    private final static String TOPIC_EXCHANGE_NAME = Registration.TOPIC_EXCHANGE_NAME;//topic交换机
+    private final static String TOPIC_QUEUE_NAME_01 = Registration.TOPIC_QUEUE_NAME_01;//topic队列1
+    private final static String TOPIC_QUEUE_NAME_02 = Registration.TOPIC_QUEUE_NAME_02;//topic队列2
+
+    //发布者绑定一个借出的通道，复用消息属性和登记过的routing key，每次发送都用同一个实例
+    private FastPublisher publisher;
+    private FastPublisher.Route orangeRabbit;
 
     /**
      * 模拟生产者，指定routing key为quick.orange.rabbit
@@ -24,18 +29,16 @@ public class App {
      * @throws TimeoutException
      */
     private void send() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
+        if (publisher == null) {
+            //从连接池借出通道，发布者存活期间一直持有
+            publisher = new FastPublisher(ConnectionManager.getInstance().borrowChannel());
+            //routing key为quick.orange.rabbit，只登记一次，之后按Route发布
+            orangeRabbit = publisher.route(TOPIC_EXCHANGE_NAME, "quick.orange.rabbit");
+        }
         //消息内容
         String message = "这是一只行动迅速的橙色的兔子";
-        //发送消息到交换机，指定routing key为：quick.orange.rabbit
-        channel.basicPublish(TOPIC_EXCHANGE_NAME,"quick.orange.rabbit",null,message.getBytes());
-        System.out.println(" [动物描述：] Sent '" + message + "'");
-
-        channel.close();
-        connection.close();
+        //发送消息到交换机，每条消息不再新建属性对象
+        publisher.publish(orangeRabbit, MessageCodecs.UTF8.encodePooled(message));
     }
 
     /**
@@ -44,25 +47,22 @@ public class App {
      * @throws TimeoutException
      */
     private void receive1() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
-        //绑定队列到交换机,同时指定需要订阅的routing key。订阅所有的橙色动物
-        channel.queueBind(TOPIC_QUEUE_NAME_01,TOPIC_EXCHANGE_NAME,"*.orange.*");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑，队列1订阅所有的橙色动物（*.orange.*）
+        Registration.TOPOLOGY.apply(channel);
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
             // 获取消息，并且处理，这个方法类似事件监听，如果有消息的时候，会被自动调用
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [消费者1] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("topic.consumer1.received").increment();
             }
         };
         // 监听队列，自动ACK
-        channel.basicConsume(TOPIC_QUEUE_NAME_01, true, consumer);
+        channel.basicConsume(TOPIC_QUEUE_NAME_01, true, Metrics.metered(consumer));
     }
 
     /**
@@ -71,32 +71,54 @@ public class App {
      * @throws TimeoutException
      */
     private void receive2() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
-        //绑定队列到交换机,同时指定需要订阅的routing key。订阅关于兔子以及懒惰动物的消息
-        channel.queueBind(TOPIC_QUEUE_NAME_02,TOPIC_EXCHANGE_NAME,"*.*.rabbit");
-        channel.queueBind(TOPIC_QUEUE_NAME_02,TOPIC_EXCHANGE_NAME,"lazy.#");
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑，队列2订阅关于兔子以及懒惰动物的消息（*.*.rabbit、lazy.#）
+        Registration.TOPOLOGY.apply(channel);
         // 定义队列的消费者
         DefaultConsumer consumer = new DefaultConsumer(channel) {
             // 获取消息，并且处理，这个方法类似事件监听，如果有消息的时候，会被自动调用
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
                                        byte[] body) throws IOException {
-                // body 即消息体
-                String msg = new String(body);
-                System.out.println(" [消费者2] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("topic.consumer2.received").increment();
             }
         };
         // 监听队列，自动ACK
-        channel.basicConsume(TOPIC_QUEUE_NAME_02, true, consumer);
+        channel.basicConsume(TOPIC_QUEUE_NAME_02, true, Metrics.metered(consumer));
+    }
+
+    /**
+     * 模拟消费者，一个临时队列接收交换机上的所有消息，在本地按*.orange.*、*.*.rabbit和lazy.#分发给不同的处理器
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    private void receive3() throws IOException, TimeoutException {
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //临时队列，订阅交换机上的所有消息
+        String queueName = channel.queueDeclare().getQueue();
+        channel.queueBind(queueName,TOPIC_EXCHANGE_NAME,"#");
+        // 定义本地分发器，匹配规则与broker一致
+        TopicDispatcher dispatcher = new TopicDispatcher(channel);
+        dispatcher.subscribe("*.orange.*", (envelope, properties, body) ->
+                Metrics.counter("topic.local1.received").increment());
+        TopicDispatcher.Handler rabbitOrLazy = (envelope, properties, body) ->
+                Metrics.counter("topic.local2.received").increment();
+        dispatcher.subscribe("*.*.rabbit", rabbitOrLazy);
+        dispatcher.subscribe("lazy.#", rabbitOrLazy);
+        // 监听队列，自动ACK
+        channel.basicConsume(queueName, true, Metrics.metered(dispatcher));
     }
 
     public static void main(String[] args) throws IOException, TimeoutException {
+        //每秒输出一次收发统计
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
         app.receive1();
         app.receive2();
+        app.receive3();
 
         app.send();
     }
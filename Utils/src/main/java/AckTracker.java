@@ -0,0 +1,91 @@
+/**
+ * 按投递顺序跟踪一个通道上未确认的deliveryTag
+ * 消息可以乱序处理完成，但只有从最早的未完成消息之前连续完成的部分才能用basicAck(tag, multiple=true)确认，
+ * 否则会把还在处理中的消息一并确认掉。
+ * delivered必须按broker投递顺序调用（即在客户端的分发线程上），completed可以在任意线程调用。
+ */
+final class AckTracker {
+
+    private static final byte PENDING = 0;
+    private static final byte ACKED = 1;//处理成功，等待合并确认
+    private static final byte SETTLED = 2;//已单独nack/reject，不需要再确认
+
+    //按投递顺序排列的环形缓冲，tag单调递增，可以二分查找
+    private long[] tags = new long[64];
+    private byte[] states = new byte[64];
+    private int head;
+    private int size;
+    //上次用multiple=true确认到的tag，只在持有本对象锁时读写；共用跟踪器的调用方据此保证确认单调递增
+    long lastAcked;
+
+    synchronized void delivered(long tag) {
+        if (size == tags.length) {
+            grow();
+        }
+        int index = (head + size) & (tags.length - 1);
+        tags[index] = tag;
+        states[index] = PENDING;
+        size++;
+    }
+
+    /**
+     * 标记一条消息已完成
+     * @param ack true表示处理成功需要确认，false表示调用方已经单独nack/reject
+     * @return 可以用multiple=true确认到的最大tag，没有新的可确认消息时返回0
+     */
+    synchronized long completed(long tag, boolean ack) {
+        int position = find(tag);
+        if (position < 0) {
+            return 0;
+        }
+        states[(head + position) & (tags.length - 1)] = ack ? ACKED : SETTLED;
+        long watermark = 0;
+        int mask = tags.length - 1;
+        while (size > 0 && states[head] != PENDING) {
+            if (states[head] == ACKED) {
+                watermark = tags[head];
+            }
+            head = (head + 1) & mask;
+            size--;
+        }
+        return watermark;
+    }
+
+    /**
+     * 已投递但尚未完成的消息数
+     */
+    synchronized int pending() {
+        return size;
+    }
+
+    private int find(long tag) {
+        int mask = tags.length - 1;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = tags[(head + mid) & mask];
+            if (value < tag) {
+                low = mid + 1;
+            } else if (value > tag) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() {
+        long[] nextTags = new long[tags.length * 2];
+        byte[] nextStates = new byte[states.length * 2];
+        int mask = tags.length - 1;
+        for (int i = 0; i < size; i++) {
+            nextTags[i] = tags[(head + i) & mask];
+            nextStates[i] = states[(head + i) & mask];
+        }
+        tags = nextTags;
+        states = nextStates;
+        head = 0;
+    }
+}
@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量消息体编解码
+ * 格式：4字节条数，随后每条为4字节长度加内容，整数均为大端序；
+ * 原消息的contentType放在消息头ITEM_CONTENT_TYPE_HEADER中，消费端拆包后还原。
+ * 解码得到的每条消息体都是新数组，可以被长期持有。
+ */
+public final class BatchCodec implements MessageCodec<List<byte[]>> {
+
+    public static final String CONTENT_TYPE = "application/x-message-batch";
+
+    /**
+     * 批内各条消息原本的contentType
+     */
+    public static final String ITEM_CONTENT_TYPE_HEADER = "x-batch-item-content-type";
+
+    static final int HEADER_LENGTH = 4;//条数
+    static final int LENGTH_PREFIX = 4;//每条的长度前缀
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(List<byte[]> items) {
+        return encode(items, false);
+    }
+
+    @Override
+    public byte[] encodePooled(List<byte[]> items) {
+        return encode(items, true);
+    }
+
+    @Override
+    public List<byte[]> decode(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        int count = readLength(buffer);
+        List<byte[]> items = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] item = new byte[readLength(buffer)];
+            buffer.get(item);
+            items.add(item);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("trailing bytes after " + count + " batch items");
+        }
+        return items;
+    }
+
+    /**
+     * 编码后的长度
+     */
+    public static int encodedLength(List<byte[]> items) {
+        int length = HEADER_LENGTH;
+        for (byte[] item : items) {
+            length += LENGTH_PREFIX + item.length;
+        }
+        return length;
+    }
+
+    private static byte[] encode(List<byte[]> items, boolean pooled) {
+        ByteBuffer buffer = BufferPool.scratch(encodedLength(items));
+        buffer.putInt(items.size());
+        for (byte[] item : items) {
+            buffer.putInt(item.length);
+            buffer.put(item);
+        }
+        return BufferPool.copyOut(buffer, pooled);
+    }
+
+    private static int readLength(ByteBuffer buffer) {
+        if (buffer.remaining() < LENGTH_PREFIX) {
+            throw new IllegalArgumentException("truncated batch body");
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid batch length " + length);
+        }
+        return length;
+    }
+}
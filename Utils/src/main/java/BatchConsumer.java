@@ -0,0 +1,141 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 拆包消费者包装
+ * 收到BatchingPublisher发出的批量消息时，按顺序逐条交给被包装的消费者，
+ * 每条的Envelope与整批相同，属性中的contentType还原为批内消息原本的类型；不是批量消息的原样转发。
+ * 确认以整批为单位：手动确认模式下由本类在整批处理完后确认，被包装的消费者不要自己ack；
+ * 任何一条抛出异常时整批basicNack并重新入队，已处理过的条目会随整批重新投递（envelope.isRedeliver()为true）。
+ */
+public class BatchConsumer implements Consumer {
+
+    private final Channel channel;
+    private final Consumer delegate;
+    private final boolean ackOnComplete;
+
+    /**
+     * 自动确认
+     */
+    public BatchConsumer(Channel channel, Consumer delegate) {
+        this(channel, delegate, false);
+    }
+
+    /**
+     * @param channel 消费所在的通道
+     * @param delegate 实际的消费者
+     * @param ackOnComplete basicConsume时autoAck为false，由本类在整批处理完后确认
+     */
+    public BatchConsumer(Channel channel, Consumer delegate, boolean ackOnComplete) {
+        this.channel = channel;
+        this.delegate = delegate;
+        this.ackOnComplete = ackOnComplete;
+    }
+
+    /**
+     * WorkerPool的拆包适配，整批作为一条消息由WorkerPool确认，任何一条失败整批重新入队
+     */
+    public static WorkerPool.Worker unbatching(WorkerPool.Worker worker) {
+        return (envelope, properties, body) -> {
+            if (!isBatch(properties)) {
+                worker.handle(envelope, properties, body);
+                return;
+            }
+            AMQP.BasicProperties itemProperties = itemProperties(properties);
+            for (byte[] item : MessageCodecs.BATCH.decode(body)) {
+                worker.handle(envelope, itemProperties, item);
+            }
+        };
+    }
+
+    public static boolean isBatch(AMQP.BasicProperties properties) {
+        return properties != null && BatchCodec.CONTENT_TYPE.equals(properties.getContentType());
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        try {
+            if (isBatch(properties)) {
+                AMQP.BasicProperties itemProperties = itemProperties(properties);
+                List<byte[]> items = MessageCodecs.BATCH.decode(body);
+                for (byte[] item : items) {
+                    delegate.handleDelivery(consumerTag, envelope, itemProperties, item);
+                }
+            } else {
+                delegate.handleDelivery(consumerTag, envelope, properties, body);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!ackOnComplete) {
+                throw e;
+            }
+            System.out.println(" [" + consumerTag + "] batch failed: " + e);
+            settle(envelope.getDeliveryTag(), false);
+            return;
+        }
+        if (ackOnComplete) {
+            settle(envelope.getDeliveryTag(), true);
+        }
+    }
+
+    private void settle(long deliveryTag, boolean ok) {
+        try {
+            if (ok) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicNack(deliveryTag, false, true);
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            //通道断开，未确认的批会被broker重新投递
+        }
+    }
+
+    /**
+     * 批内每条消息的属性：还原原本的contentType，去掉批量标记
+     */
+    static AMQP.BasicProperties itemProperties(AMQP.BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        Object itemContentType = headers == null ? null : headers.get(BatchCodec.ITEM_CONTENT_TYPE_HEADER);
+        if (itemContentType != null) {
+            headers = new HashMap<String, Object>(headers);
+            headers.remove(BatchCodec.ITEM_CONTENT_TYPE_HEADER);
+        }
+        return properties.builder()
+                .contentType(itemContentType == null ? null : itemContentType.toString())
+                .headers(headers)
+                .build();
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+        delegate.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        delegate.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        delegate.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        delegate.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+        delegate.handleRecoverOk(consumerTag);
+    }
+}
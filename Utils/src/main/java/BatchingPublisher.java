@@ -0,0 +1,176 @@
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批量发布者
+ * 把发往同一个交换机和routing key的小消息攒成一条批量消息发送，格式见BatchCodec；
+ * 攒够maxMessages条、消息体将超过maxBytes、或最早一条已等待lingerMillis时发送一批。
+ * 批量消息经ConfirmedPublisher发送，broker按批确认；消费端用BatchConsumer拆包。
+ * 通过open创建，构造完成后才启动定时发送，定时线程不会看到未初始化完的对象。
+ */
+public class BatchingPublisher implements AutoCloseable {
+
+    public static final String BATCHES = "publish.batch";//发送的批数
+    public static final String BATCHED_ITEMS = "publish.batch.items";//批内的消息数
+
+    private final String exchange;
+    private final String routingKey;
+    private final AMQP.BasicProperties batchProperties;
+    private final int maxBytes;
+    private final int maxMessages;
+    private final long lingerNanos;
+    private final ConfirmedPublisher publisher;
+    private final ScheduledExecutorService lingerTimer;
+    private ScheduledFuture<?> lingerTask;//open中启动，之后不再修改
+    private final LongAdder batches = Metrics.counter(BATCHES);
+    private final LongAdder batchedItems = Metrics.counter(BATCHED_ITEMS);
+    //当前批，开头4个字节留给条数，只在持有本对象锁时读写
+    private ByteBuffer buffer;
+    private int count;
+    private long firstAddedAt;
+
+    /**
+     * 创建批量发布者并启动定时发送
+     * @param exchange 交换机
+     * @param routingKey routing key
+     * @param itemProperties 每条消息的属性，批内共用，可以为null
+     * @param maxBytes 批量消息体的长度上限
+     * @param maxMessages 每批最多条数
+     * @param lingerMillis 未攒满时最长等待多久发送
+     * @param maxUnconfirmed 未确认的批数上限
+     */
+    public static BatchingPublisher open(String exchange, String routingKey, AMQP.BasicProperties itemProperties,
+                                         int maxBytes, int maxMessages, long lingerMillis, int maxUnconfirmed) throws IOException, TimeoutException {
+        if (maxBytes <= BatchCodec.HEADER_LENGTH || maxMessages < 1 || lingerMillis < 1) {
+            throw new IllegalArgumentException("invalid maxBytes, maxMessages or lingerMillis");
+        }
+        BatchingPublisher publisher = new BatchingPublisher(exchange, routingKey, itemProperties,
+                maxBytes, maxMessages, lingerMillis, maxUnconfirmed);
+        //检查间隔取等待时间的一半，批最晚在1.5倍lingerMillis时发出
+        long period = Math.max(1, lingerMillis / 2);
+        publisher.lingerTask = publisher.lingerTimer.scheduleWithFixedDelay(publisher::flushIfLingered,
+                period, period, TimeUnit.MILLISECONDS);
+        return publisher;
+    }
+
+    private BatchingPublisher(String exchange, String routingKey, AMQP.BasicProperties itemProperties,
+                              int maxBytes, int maxMessages, long lingerMillis, int maxUnconfirmed) throws IOException, TimeoutException {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.batchProperties = batchProperties(itemProperties);
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.publisher = new ConfirmedPublisher(maxUnconfirmed);
+        this.buffer = newBuffer(maxBytes);
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batching-publisher-" + routingKey);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ConfirmedPublisher publisher() {
+        return publisher;
+    }
+
+    /**
+     * 加入一条消息，攒满时在当前线程发送，未确认窗口已满时阻塞
+     */
+    public synchronized void add(byte[] body) throws IOException {
+        int length = BatchCodec.LENGTH_PREFIX + body.length;
+        if (count > 0 && buffer.position() + length > maxBytes) {
+            flush();
+        }
+        if (buffer.remaining() < length) {
+            //单条消息超过上限时单独成批
+            ByteBuffer larger = ByteBuffer.allocate(buffer.position() + length);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        if (count == 0) {
+            firstAddedAt = System.nanoTime();
+        }
+        buffer.putInt(body.length);
+        buffer.put(body);
+        if (++count >= maxMessages || buffer.position() >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * 立即发送当前批
+     */
+    public synchronized void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        buffer.putInt(0, count);
+        //发布者在收到确认前持有消息体，不能复用缓冲区
+        byte[] body = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, body, 0, body.length);
+        int items = count;
+        if (buffer.capacity() > maxBytes) {
+            buffer = newBuffer(maxBytes);
+        }
+        buffer.clear().position(BatchCodec.HEADER_LENGTH);
+        count = 0;
+        publisher.publish(exchange, routingKey, batchProperties, body);
+        batches.increment();
+        batchedItems.add(items);
+    }
+
+    /**
+     * 发送剩余消息，等待确认后关闭
+     */
+    @Override
+    public void close() throws IOException {
+        lingerTask.cancel(false);
+        lingerTimer.shutdown();
+        try {
+            flush();
+        } finally {
+            publisher.close();
+        }
+    }
+
+    private synchronized void flushIfLingered() {
+        if (count > 0 && System.nanoTime() - firstAddedAt >= lingerNanos) {
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                System.out.println(" [BatchingPublisher] flush failed: " + e);
+            }
+        }
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.position(BatchCodec.HEADER_LENGTH);
+        return buffer;
+    }
+
+    private static AMQP.BasicProperties batchProperties(AMQP.BasicProperties itemProperties) {
+        AMQP.BasicProperties.Builder builder = itemProperties == null
+                ? new AMQP.BasicProperties.Builder() : itemProperties.builder();
+        Map<String, Object> headers = new HashMap<String, Object>();
+        if (itemProperties != null && itemProperties.getHeaders() != null) {
+            headers.putAll(itemProperties.getHeaders());
+        }
+        if (itemProperties != null && itemProperties.getContentType() != null) {
+            headers.put(BatchCodec.ITEM_CONTENT_TYPE_HEADER, itemProperties.getContentType());
+        }
+        return builder.contentType(BatchCodec.CONTENT_TYPE).headers(headers).build();
+    }
+}
@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+
+/**
+ * 线程内的缓冲区池，编码消息体时复用，避免每条消息都分配新数组
+ * 每个线程各自持有，不需要加锁；借出的缓冲区只在本线程下一次借出同样大小之前有效
+ * 只在长期存活的线程上有用，每个任务一个的虚拟线程上每次都会新建一个池，比直接分配更费
+ */
+public final class BufferPool {
+
+    private static final int MAX_POOLED_LENGTH = 1024;//超过此长度的消息体不复用
+    private static final int INITIAL_SCRATCH_CAPACITY = 256;
+
+    private static final ThreadLocal<BufferPool> LOCAL = ThreadLocal.withInitial(BufferPool::new);
+
+    //按长度缓存的定长数组，basicPublish要求消息体数组长度正好等于消息长度
+    private final byte[][] exact = new byte[MAX_POOLED_LENGTH + 1][];
+    private ByteBuffer scratch = ByteBuffer.allocate(INITIAL_SCRATCH_CAPACITY);
+    private ByteBuffer payload = ByteBuffer.allocate(INITIAL_SCRATCH_CAPACITY);
+
+    private BufferPool() {
+    }
+
+    /**
+     * 借出长度正好为length的数组，过长时直接分配新数组
+     */
+    public static byte[] exact(int length) {
+        if (length > MAX_POOLED_LENGTH) {
+            return new byte[length];
+        }
+        byte[][] cache = LOCAL.get().exact;
+        byte[] array = cache[length];
+        if (array == null) {
+            array = new byte[length];
+            cache[length] = array;
+        }
+        return array;
+    }
+
+    /**
+     * 借出容量不小于minCapacity的临时缓冲区，已清空
+     */
+    public static ByteBuffer scratch(int minCapacity) {
+        BufferPool pool = LOCAL.get();
+        if (pool.scratch.capacity() < minCapacity) {
+            pool.scratch = ByteBuffer.allocate(Math.max(minCapacity, pool.scratch.capacity() * 2));
+        }
+        pool.scratch.clear();
+        return pool.scratch;
+    }
+
+    /**
+     * 借出容量不小于minCapacity的解压缓冲区，已清空
+     * 与scratch分开，消费者处理解压后的消息时再编码别的消息不会覆盖它
+     */
+    public static ByteBuffer payload(int minCapacity) {
+        BufferPool pool = LOCAL.get();
+        if (pool.payload.capacity() < minCapacity) {
+            pool.payload = ByteBuffer.allocate(Math.max(minCapacity, pool.payload.capacity() * 2));
+        }
+        pool.payload.clear();
+        return pool.payload;
+    }
+
+    /**
+     * 把缓冲区中已写入的内容拷贝到定长数组中
+     */
+    static byte[] copyOut(ByteBuffer buffer, boolean pooled) {
+        int length = buffer.position();
+        byte[] array = pooled ? exact(length) : new byte[length];
+        System.arraycopy(buffer.array(), buffer.arrayOffset(), array, 0, length);
+        return array;
+    }
+}
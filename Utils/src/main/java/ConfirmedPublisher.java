@@ -0,0 +1,260 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带发布确认的流式发布者
+ * 通道开启confirmSelect后连续发送，不等待单条确认；
+ * broker的ack/nack通过ConfirmListener异步回调，未确认的消息数不超过maxUnconfirmed
+ */
+public class ConfirmedPublisher implements AutoCloseable {
+
+    /**
+     * broker拒绝消息（nack）或通道断开时的回调，由调用方决定是否重发
+     * 回调发生在连接的I/O线程上，不能在回调里同步调用publish，否则窗口已满时会死锁
+     */
+    public interface NackListener {
+        void nacked(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body);
+    }
+
+    /**
+     * 每条消息得到确认或被拒绝、窗口腾出一个位置后的回调，与NackListener一样在连接的I/O线程上调用
+     */
+    public interface SettledListener {
+        void settled(boolean ack);
+    }
+
+    private final Channel channel;
+    private final int maxUnconfirmed;
+    //未确认窗口，拿到许可才能发送，收到确认后归还
+    private final Semaphore window;
+    //未确认的消息，按发布序号排序，便于处理multiple=true的批量确认
+    private final ConcurrentNavigableMap<Long, Outstanding> outstanding = new ConcurrentSkipListMap<Long, Outstanding>();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder nacked = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final LongAdder published = Metrics.counter(Metrics.PUBLISHED);
+    private final LatencyRecorder confirmLatency = Metrics.timer(Metrics.CONFIRM_LATENCY);
+    private volatile NackListener nackListener;
+    private volatile SettledListener settledListener;
+
+    /**
+     * @param maxUnconfirmed 未确认消息数上限
+     */
+    public ConfirmedPublisher(int maxUnconfirmed) throws IOException, TimeoutException {
+        if (maxUnconfirmed < 1) {
+            throw new IllegalArgumentException("maxUnconfirmed must be positive");
+        }
+        this.maxUnconfirmed = maxUnconfirmed;
+        this.window = new Semaphore(maxUnconfirmed);
+        //开启了确认模式的通道不能再放回池中给别人用，由本发布者独占
+        this.channel = ConnectionManager.getInstance().borrowChannel();
+        channel.confirmSelect();
+        channel.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                settle(deliveryTag, multiple, true);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                settle(deliveryTag, multiple, false);
+            }
+        });
+        //通道断开后不会再收到确认，未确认的消息全部按nack处理
+        channel.addShutdownListener(cause -> settle(Long.MAX_VALUE, true, false));
+    }
+
+    public void setNackListener(NackListener nackListener) {
+        this.nackListener = nackListener;
+    }
+
+    public void setSettledListener(SettledListener settledListener) {
+        this.settledListener = settledListener;
+    }
+
+    public int maxUnconfirmed() {
+        return maxUnconfirmed;
+    }
+
+    /**
+     * 发布者独占的通道，用于注册连接级的监听，不能用来发送
+     */
+    public Channel channel() {
+        return channel;
+    }
+
+    /**
+     * 发送一条消息，未确认窗口已满时阻塞等待
+     * 消息头中会写入发布时间戳，供消费者统计端到端延迟
+     */
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        properties = Metrics.stamp(properties);
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for publisher confirms");
+        }
+        send(exchange, routingKey, properties, body);
+    }
+
+    /**
+     * 未确认窗口有空位时发送一条消息，窗口已满时立即返回false，不阻塞
+     * @return 是否已发送
+     */
+    public boolean tryPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        properties = Metrics.stamp(properties);
+        if (!window.tryAcquire()) {
+            return false;
+        }
+        send(exchange, routingKey, properties, body);
+        return true;
+    }
+
+    /**
+     * 已占用窗口中的一个位置后发送
+     */
+    private void send(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        //取序号和发送必须原子执行，否则序号与消息对不上
+        synchronized (channel) {
+            long sequence = channel.getNextPublishSeqNo();
+            outstanding.put(sequence, new Outstanding(exchange, routingKey, properties, body));
+            try {
+                channel.basicPublish(exchange, routingKey, properties, body);
+                published.increment();
+            } catch (IOException | RuntimeException e) {
+                if (outstanding.remove(sequence) != null) {
+                    window.release();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 等待当前所有未确认的消息得到确认
+     * @return 超时前是否全部确认
+     */
+    public boolean waitForConfirms(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!window.tryAcquire(maxUnconfirmed, timeout, unit)) {
+            return false;
+        }
+        window.release(maxUnconfirmed);
+        return true;
+    }
+
+    public long confirmedCount() {
+        return confirmed.sum();
+    }
+
+    public long nackedCount() {
+        return nacked.sum();
+    }
+
+    public int unconfirmedCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * 平均确认延迟（微秒）
+     */
+    public long averageConfirmLatencyMicros() {
+        long count = confirmed.sum() + nacked.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.sum() / count);
+    }
+
+    /**
+     * 最大确认延迟（微秒）
+     */
+    public long maxConfirmLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    /**
+     * 等待未确认的消息（最多10秒）后关闭通道
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            waitForConfirms(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (TimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            //通道已关闭，归还只会释放池中的名额
+            ConnectionManager.getInstance().returnChannel(channel);
+        }
+    }
+
+    private void settle(long deliveryTag, boolean multiple, boolean ack) {
+        long now = System.nanoTime();
+        if (multiple) {
+            NavigableMap<Long, Outstanding> settled = outstanding.headMap(deliveryTag, true);
+            Map.Entry<Long, Outstanding> entry;
+            while ((entry = settled.pollFirstEntry()) != null) {
+                settleOne(entry.getValue(), ack, now);
+            }
+        } else {
+            Outstanding message = outstanding.remove(deliveryTag);
+            if (message != null) {
+                settleOne(message, ack, now);
+            }
+        }
+    }
+
+    private void settleOne(Outstanding message, boolean ack, long now) {
+        long latency = now - message.publishedAt;
+        totalLatencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        confirmLatency.recordNanos(latency);
+        if (ack) {
+            confirmed.increment();
+        } else {
+            nacked.increment();
+            NackListener listener = nackListener;
+            if (listener != null) {
+                listener.nacked(message.exchange, message.routingKey, message.properties, message.body);
+            }
+        }
+        window.release();
+        SettledListener settled = settledListener;
+        if (settled != null) {
+            settled.settled(ack);
+        }
+    }
+
+    private static final class Outstanding {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final long publishedAt = System.nanoTime();
+
+        Outstanding(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接与通道管理器
+ * 维护少量长连接，并从有界的通道池中借出通道，避免每次收发消息都重新进行TCP和AMQP握手
+ * 发布者：借出通道 -> 发送 -> 归还通道
+ * 消费者：借出通道后一直持有，直到不再消费
+ */
+public class ConnectionManager {
+
+    private static final int CONNECTION_COUNT = 2;//长连接数量
+    private static final int MAX_CHANNELS = 64;//通道池上限
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;//借出通道的最长等待时间
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 10;//健康检查间隔
+
+    private static volatile ConnectionManager instance;
+
+    private final Connection[] connections = new Connection[CONNECTION_COUNT];
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    //空闲通道，后归还的先借出，使通道尽量保持在热点上
+    private final BlockingDeque<Channel> idleChannels = new LinkedBlockingDeque<Channel>();
+    //通道许可，已借出和空闲的通道总数不超过MAX_CHANNELS
+    private final Semaphore permits = new Semaphore(MAX_CHANNELS);
+    //线程亲和：记录当前线程上一次使用的通道，再次借出时优先返回该通道
+    private final ThreadLocal<Channel> lastChannel = new ThreadLocal<Channel>();
+    private final ScheduledExecutorService healthChecker;
+    private volatile boolean closed = false;
+
+    private ConnectionManager() {
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rabbitmq-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth,
+                HEALTH_CHECK_INTERVAL_SECONDS, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取全局唯一的管理器
+     */
+    public static ConnectionManager getInstance() {
+        if (instance == null) {
+            synchronized (ConnectionManager.class) {
+                if (instance == null) {
+                    instance = new ConnectionManager();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 从池中借出一个通道，池已满时最多等待BORROW_TIMEOUT_MILLIS
+     * @return 可用的通道
+     * @throws IOException
+     * @throws TimeoutException 等待超时仍没有可用通道
+     */
+    public Channel borrowChannel() throws IOException, TimeoutException {
+        if (closed) {
+            throw new IllegalStateException("ConnectionManager is closed");
+        }
+        //优先复用当前线程上次使用的通道
+        Channel preferred = lastChannel.get();
+        if (preferred != null && preferred.isOpen() && idleChannels.remove(preferred)) {
+            return preferred;
+        }
+        Channel channel;
+        List<Channel> recovering = new ArrayList<Channel>();
+        try {
+            while ((channel = idleChannels.pollFirst()) != null) {
+                if (channel.isOpen()) {
+                    lastChannel.set(channel);
+                    return channel;
+                }
+                if (recovering(channel)) {
+                    //连接恢复后会重新打开，留在池中
+                    recovering.add(channel);
+                } else {
+                    //空闲期间被关闭的通道直接丢弃
+                    discard(channel);
+                }
+            }
+        } finally {
+            for (Channel idle : recovering) {
+                idleChannels.offerLast(idle);
+            }
+        }
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("no channel available within " + BORROW_TIMEOUT_MILLIS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a channel");
+        }
+        Connection connection;
+        try {
+            connection = nextConnection();
+            channel = connection.createChannel();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        if (channel == null) {
+            //超过了broker允许的channel_max
+            permits.release();
+            throw new IOException("channel_max reached on connection");
+        }
+        RecoveryManager.getInstance().watch(connection, channel);
+        lastChannel.set(channel);
+        return channel;
+    }
+
+    /**
+     * 归还通道，已关闭的通道不再放回池中；正在随连接自动恢复的通道仍放回，恢复后继续使用
+     * @param channel 借出的通道
+     */
+    public void returnChannel(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        if (closed || !(channel.isOpen() || recovering(channel))) {
+            discard(channel);
+            return;
+        }
+        if (channel.isOpen()) {
+            idleChannels.offerFirst(channel);
+        } else {
+            idleChannels.offerLast(channel);
+        }
+    }
+
+    /**
+     * 所有长连接是否都处于打开状态
+     */
+    public boolean isHealthy() {
+        for (Connection connection : connections) {
+            if (connection == null || !connection.isOpen()) {
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    /**
+     * 关闭所有通道和连接
+     */
+    public void close() {
+        closed = true;
+        healthChecker.shutdownNow();
+        Channel channel;
+        while ((channel = idleChannels.pollFirst()) != null) {
+            discard(channel);
+        }
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    try {
+                        connections[i].close();
+                    } catch (Exception ignored) {
+                    }
+                    connections[i] = null;
+                }
+            }
+        }
+        synchronized (ConnectionManager.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * 轮询选择一个连接，连接不存在或已断开时重新建立
+     * 正在自动恢复的连接不替换，恢复期间在它上面创建通道会立即失败
+     */
+    private Connection nextConnection() throws IOException, TimeoutException {
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % CONNECTION_COUNT;
+        Connection connection = connections[index];
+        if (connection != null && (connection.isOpen() || recovering(connection))) {
+            return connection;
+        }
+        synchronized (connections) {
+            connection = connections[index];
+            if (connection == null || !(connection.isOpen() || recovering(connection))) {
+                connection = ConnectionUtil.getConnection();
+                connections[index] = connection;
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * 健康检查：清理已关闭且不会自动恢复的空闲通道，重建已断开且不会自动恢复的连接
+     */
+    private void checkHealth() {
+        for (Channel channel : idleChannels) {
+            if (!channel.isOpen() && !recovering(channel) && idleChannels.remove(channel)) {
+                discard(channel);
+            }
+        }
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (closed) {
+                    return;
+                }
+                if (connections[i] != null && !connections[i].isOpen() && !recovering(connections[i])) {
+                    try {
+                        connections[i] = ConnectionUtil.getConnection();
+                    } catch (IOException | TimeoutException e) {
+                        //broker暂不可用，下一轮再试
+                        connections[i] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 意外断开、由客户端自动恢复的连接
+     * 不能替换成新连接，否则原连接上的消费者恢复后仍在消费，而新借出的通道都在新连接上，连接数越来越多
+     */
+    private static boolean recovering(Connection connection) {
+        if (!(connection instanceof Recoverable) || connection.isOpen()) {
+            return false;
+        }
+        ShutdownSignalException cause = connection.getCloseReason();
+        return cause == null || !cause.isInitiatedByApplication();
+    }
+
+    /**
+     * 连接断开、等待自动恢复的通道
+     * 通道自身的错误（如确认了未知的deliveryTag）不是硬错误，这样关闭的通道不会被恢复
+     */
+    private static boolean recovering(Channel channel) {
+        if (!(channel instanceof Recoverable) || channel.isOpen()) {
+            return false;
+        }
+        ShutdownSignalException cause = channel.getCloseReason();
+        return cause != null && cause.isHardError() && !cause.isInitiatedByApplication();
+    }
+
+    /**
+     * 丢弃通道并释放许可
+     * 已关闭的通道也要调用close：自动恢复的连接在close时才注销通道，否则重连后它又被打开，一直占用channel_max
+     */
+    private void discard(Channel channel) {
+        try {
+            channel.close();
+        } catch (Exception ignored) {
+            //通道已关闭
+        }
+        permits.release();
+    }
+}
@@ -1,6 +1,8 @@
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.sake.broker.EmbeddedBroker;
 
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
@@ -10,7 +12,20 @@ import java.util.concurrent.TimeoutException;
  */
 public class ConnectionUtil {
 
+    /**
+     * 启动参数-Drabbitmq.broker=embedded时连接进程内的broker，无需启动rabbitMQ
+     */
+    public static final String BROKER_PROPERTY = "rabbitmq.broker";
+
     public static Connection getConnection() throws IOException, TimeoutException {
+        if ("embedded".equals(System.getProperty(BROKER_PROPERTY))) {
+            Connection connection = EmbeddedBroker.shared().newConnection();
+            //进程内的broker启动时是空的，相当于先运行一次Registration
+            Channel channel = connection.createChannel();
+            Registration.TOPOLOGY.apply(channel);
+            channel.close();
+            return connection;
+        }
         //定义连接工厂
         ConnectionFactory factory = new ConnectionFactory();
         //设置服务地址
@@ -21,8 +36,11 @@ public class ConnectionUtil {
         //factory.setVirtualHost("/sake");//设置虚拟机，一个mq服务可以设置多个虚拟机，每个虚拟机就相当于一个独立的mq
         factory.setUsername("guest");
         factory.setPassword("guest");
+        //心跳、自动恢复和带抖动的重连退避，broker断开后通道、拓扑和消费者由客户端重建
+        RecoveryManager.getInstance().configure(factory);
         //通过工厂获取连接
         Connection connection = factory.newConnection();
+        RecoveryManager.getInstance().watch(connection);
         return connection;
     }
 }
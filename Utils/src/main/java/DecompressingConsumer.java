@@ -0,0 +1,95 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+
+/**
+ * 解压消费者包装
+ * 按contentEncoding解压后交给被包装的消费者，属性中去掉contentEncoding；没有压缩的消息原样转发。
+ * 复用数组来自线程内的BufferPool，只在长期存活的线程上（如客户端的分发线程）省掉分配，
+ * 被包装的消费者必须在handleDelivery返回前用完消息体，不能交给其他线程。
+ * 与VirtualThreadConsumer组合时由VirtualThreadConsumer包装本类，解压在每条消息各自的虚拟线程上进行；
+ * 虚拟线程用完即弃，每条消息都会新建一份线程内的缓冲池，此时应解压到新数组（pooled=false）。
+ */
+public class DecompressingConsumer implements Consumer {
+
+    private final Consumer delegate;
+    private final boolean pooled;
+
+    /**
+     * 解压到新数组
+     */
+    public DecompressingConsumer(Consumer delegate) {
+        this(delegate, false);
+    }
+
+    /**
+     * @param pooled 是否解压到线程内复用的数组，在虚拟线程上处理时应为false
+     */
+    public DecompressingConsumer(Consumer delegate, boolean pooled) {
+        this.delegate = delegate;
+        this.pooled = pooled;
+    }
+
+    /**
+     * WorkerPool的解压适配，解压到新数组，适用于所有模式
+     */
+    public static WorkerPool.Worker decompressing(WorkerPool.Worker worker) {
+        return decompressing(worker, false);
+    }
+
+    /**
+     * @param pooled 是否解压到线程内复用的数组；只在worker运行于客户端分发线程时有用，
+     *               虚拟线程模式下每条消息一个新线程，复用数组反而每条消息都分配一份缓冲池，应为false
+     */
+    public static WorkerPool.Worker decompressing(WorkerPool.Worker worker, boolean pooled) {
+        return (envelope, properties, body) -> {
+            if (PayloadCompression.forEncoding(properties == null ? null : properties.getContentEncoding()) == null) {
+                worker.handle(envelope, properties, body);
+                return;
+            }
+            worker.handle(envelope, decoded(properties), PayloadCompression.decompressToArray(properties, body, pooled));
+        };
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if (PayloadCompression.forEncoding(properties == null ? null : properties.getContentEncoding()) == null) {
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+            return;
+        }
+        delegate.handleDelivery(consumerTag, envelope, decoded(properties),
+                PayloadCompression.decompressToArray(properties, body, pooled));
+    }
+
+    private static AMQP.BasicProperties decoded(AMQP.BasicProperties properties) {
+        return properties.builder().contentEncoding(null).build();
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+        delegate.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        delegate.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        delegate.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        delegate.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+        delegate.handleRecoverOk(consumerTag);
+    }
+}
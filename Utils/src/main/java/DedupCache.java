@@ -0,0 +1,249 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 最近消息ID的去重缓存
+ * 先查布隆过滤器，绝大多数新消息在这里就能确定没见过，直接写入LRU，不再查找和清理过期条目；
+ * 过滤器说可能见过时，才以LRU为准：分段加锁、有容量上限，条目超过TTL视为过期。
+ * 布隆过滤器分两代轮换，当前一代写满或存在超过TTL后清空较老的一代复用，
+ * 位数组和LRU的条目数都在构造时确定，持续高负载下内存不增长。
+ */
+public class DedupCache {
+
+    private static final int STRIPES = 16;//LRU分段数，必须是2的幂
+
+    private final long ttlNanos;
+    private final int generationCapacity;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder checked = Metrics.counter("dedup.checked");
+    private final LongAdder duplicates = Metrics.counter("dedup.duplicates");
+    private final LongAdder falsePositives = Metrics.counter("dedup.bloom.falsePositive");
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+
+    /**
+     * 容量10万条，误判率1%
+     * @param ttl 消息ID的保留时间
+     */
+    public DedupCache(long ttl, TimeUnit unit) {
+        this(100000, ttl, unit, 0.01);
+    }
+
+    /**
+     * @param capacity LRU最多保留的消息ID数
+     * @param ttl 消息ID的保留时间
+     * @param falsePositiveRate 布隆过滤器的误判率，误判只会多查一次LRU
+     */
+    public DedupCache(int capacity, long ttl, TimeUnit unit, double falsePositiveRate) {
+        if (capacity < STRIPES) {
+            throw new IllegalArgumentException("capacity must be at least " + STRIPES + ": " + capacity);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("invalid ttl " + ttl);
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("invalid falsePositiveRate " + falsePositiveRate);
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        //每一代能装下两倍容量，LRU各分段中还保留着的ID一定还在两代过滤器之一中
+        this.generationCapacity = capacity * 2;
+        int perStripe = (capacity + STRIPES - 1) / STRIPES;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+        this.current = new BloomFilter(generationCapacity, falsePositiveRate);
+        this.previous = new BloomFilter(generationCapacity, falsePositiveRate);
+    }
+
+    /**
+     * 登记一个消息ID
+     * @return 第一次见到（或上次已过期）时返回true，TTL内重复出现返回false
+     */
+    public boolean markSeen(String messageId) {
+        checked.increment();
+        long now = System.nanoTime();
+        long h1 = hash(messageId);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        BloomFilter bloom = rotateIfNeeded(now);
+        boolean maybeSeen = bloom.mightContain(h1, h2) || previous.mightContain(h1, h2);
+        bloom.put(h1, h2);
+        Stripe stripe = stripes[(int) (h1 >>> 32) & (STRIPES - 1)];
+        //过滤器确定没见过：直接写入；两个线程同时收到同一ID时，后写入的一方从put的返回值发现重复
+        boolean first = maybeSeen ? stripe.putIfAbsent(messageId, now, ttlNanos) : stripe.insert(messageId, now, ttlNanos);
+        if (!first) {
+            duplicates.increment();
+        } else if (maybeSeen) {
+            falsePositives.increment();
+        }
+        return first;
+    }
+
+    /**
+     * 处理失败、消息被重新入队时移除登记，下一次投递不会被当作重复
+     * 布隆过滤器不能删除，之后同一ID会多查一次LRU
+     */
+    public void forget(String messageId) {
+        stripes[(int) (hash(messageId) >>> 32) & (STRIPES - 1)].remove(messageId);
+    }
+
+    private BloomFilter rotateIfNeeded(long now) {
+        BloomFilter bloom = current;
+        if (bloom.count() < generationCapacity && now - bloom.createdAt < ttlNanos) {
+            return bloom;
+        }
+        synchronized (this) {
+            bloom = current;
+            if (bloom.count() >= generationCapacity || now - bloom.createdAt >= ttlNanos) {
+                //较老一代中的ID都已过期或已被LRU淘汰，清空后作为新的当前一代
+                BloomFilter reused = previous;
+                reused.clear(now);
+                previous = bloom;
+                current = reused;
+                bloom = reused;
+            }
+        }
+        return bloom;
+    }
+
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * murmur3的64位finalizer
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 固定大小的布隆过滤器，k个位置由两个哈希值组合得到（Kirsch-Mitzenmacher）
+     */
+    private static final class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashes;
+        private final LongAdder inserted = new LongAdder();
+        private volatile long createdAt = System.nanoTime();
+
+        BloomFilter(int expected, double falsePositiveRate) {
+            long m = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, (m + 63) >>> 6);
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = (long) words << 6;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+        }
+
+        boolean mightContain(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < hashes; i++) {
+                long index = (combined & Long.MAX_VALUE) % bitCount;
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+                combined += h2;
+            }
+            return true;
+        }
+
+        void put(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < hashes; i++) {
+                long index = (combined & Long.MAX_VALUE) % bitCount;
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old = bits.get(word);
+                if ((old & mask) == 0) {
+                    bits.getAndAccumulate(word, mask, (a, b) -> a | b);
+                }
+                combined += h2;
+            }
+            inserted.increment();
+        }
+
+        long count() {
+            return inserted.sum();
+        }
+
+        void clear(long now) {
+            for (int i = 0; i < bits.length(); i++) {
+                bits.set(i, 0);
+            }
+            inserted.reset();
+            createdAt = now;
+        }
+    }
+
+    /**
+     * LRU的一个分段，按插入顺序淘汰，超过容量时淘汰最老的条目，顺带清理队首过期的条目
+     */
+    private static final class Stripe {
+        private final int capacity;
+        private final LinkedHashMap<String, Long> seen;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.seen = new LinkedHashMap<String, Long>(capacity * 4 / 3 + 1, 0.75f) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > Stripe.this.capacity;
+                }
+            };
+        }
+
+        /**
+         * 不存在或已过期时登记并返回true
+         */
+        synchronized boolean putIfAbsent(String messageId, long now, long ttlNanos) {
+            expire(now, ttlNanos);
+            Long seenAt = seen.get(messageId);
+            if (seenAt != null && now - seenAt < ttlNanos) {
+                return false;
+            }
+            if (seenAt != null) {
+                //过期的条目重新插入，移到队尾
+                seen.remove(messageId);
+            }
+            seen.put(messageId, now);
+            return true;
+        }
+
+        /**
+         * 写入一个布隆过滤器确定没见过的ID，只做一次put，不查找也不清理过期条目（由容量上限和下一次putIfAbsent清理）
+         * @return 之前没有未过期的同一ID时返回true
+         */
+        synchronized boolean insert(String messageId, long now, long ttlNanos) {
+            Long seenAt = seen.put(messageId, now);
+            if (seenAt != null && now - seenAt < ttlNanos) {
+                //另一个线程刚登记了同一ID，恢复它的时间
+                seen.put(messageId, seenAt);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void remove(String messageId) {
+            seen.remove(messageId);
+        }
+
+        private void expire(long now, long ttlNanos) {
+            Iterator<Long> iterator = seen.values().iterator();
+            while (iterator.hasNext() && now - iterator.next() >= ttlNanos) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+
+/**
+ * 去重消费者包装
+ * 按messageId去重，TTL内重复的消息在交给被包装的消费者之前丢弃：
+ * 发布者因nack或连接断开重发的消息、消费者未确认就断开后broker重新投递但其实已处理过的消息都会被过滤。
+ * 没有messageId的消息无法判断，原样转发。被包装的消费者抛出异常时撤销登记，重新投递的消息还会被处理。
+ * 多个消费者处理同一队列时应共享同一个DedupCache。
+ */
+public class DeduplicatingConsumer implements Consumer {
+
+    private final Channel channel;
+    private final Consumer delegate;
+    private final DedupCache cache;
+    private final boolean ackDuplicates;
+
+    /**
+     * 自动确认模式，丢弃的消息不需要确认
+     */
+    public DeduplicatingConsumer(Consumer delegate, DedupCache cache) {
+        this(null, delegate, cache, false);
+    }
+
+    /**
+     * @param channel 消费所在的通道，ackDuplicates为true时用于确认丢弃的消息
+     * @param ackDuplicates 手动确认模式下为true，丢弃的消息直接确认，不再占用预取数
+     */
+    public DeduplicatingConsumer(Channel channel, Consumer delegate, DedupCache cache, boolean ackDuplicates) {
+        if (ackDuplicates && channel == null) {
+            throw new IllegalArgumentException("channel is required to ack duplicates");
+        }
+        this.channel = channel;
+        this.delegate = delegate;
+        this.cache = cache;
+        this.ackDuplicates = ackDuplicates;
+    }
+
+    /**
+     * WorkerPool的去重适配，重复的消息直接返回，由WorkerPool确认
+     */
+    public static WorkerPool.Worker deduplicating(DedupCache cache, WorkerPool.Worker worker) {
+        return (envelope, properties, body) -> {
+            String messageId = properties == null ? null : properties.getMessageId();
+            if (messageId == null) {
+                worker.handle(envelope, properties, body);
+                return;
+            }
+            if (!cache.markSeen(messageId)) {
+                return;
+            }
+            try {
+                worker.handle(envelope, properties, body);
+            } catch (Exception e) {
+                cache.forget(messageId);
+                throw e;
+            }
+        };
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        String messageId = properties == null ? null : properties.getMessageId();
+        if (messageId == null) {
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+            return;
+        }
+        if (!cache.markSeen(messageId)) {
+            if (ackDuplicates) {
+                try {
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                } catch (IOException | AlreadyClosedException e) {
+                    //通道断开，重复的消息会被broker重新投递，下次仍然丢弃
+                }
+            }
+            return;
+        }
+        try {
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+        } catch (IOException | RuntimeException e) {
+            cache.forget(messageId);
+            throw e;
+        }
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+        delegate.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        delegate.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        delegate.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        delegate.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+        delegate.handleRecoverOk(consumerTag);
+    }
+}
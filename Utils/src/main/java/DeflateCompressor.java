@@ -0,0 +1,97 @@
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * deflate压缩（zlib格式，与HTTP的Content-Encoding: deflate一致）
+ * Deflater和Inflater占用本地内存，每个线程各复用一个，不随消息创建
+ */
+public final class DeflateCompressor implements PayloadCompressor {
+
+    public static final String ENCODING = "deflate";
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * 默认使用最快的压缩级别
+     */
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level 压缩级别，1到9
+     */
+    public DeflateCompressor(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid deflate level " + level);
+        }
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public String encoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        //zlib的deflateBound加上2字节头和4字节校验
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+    }
+
+    /**
+     * deflate的最大压缩比约为1032:1
+     */
+    @Override
+    public long maxDecompressedLength(int length) {
+        return (long) length * 1032;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, srcOffset, length);
+        deflater.finish();
+        int capacity = maxCompressedLength(length);
+        int written = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(dst, dstOffset + written, capacity - written);
+            if (n == 0 && written == capacity) {
+                throw new IllegalStateException("deflate output exceeds " + capacity + " bytes at level " + level);
+            }
+            written += n;
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int originalLength) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(src, srcOffset, length);
+        int written = 0;
+        try {
+            while (written < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(dst, dstOffset + written, originalLength - written);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += n;
+            }
+            if (written == originalLength && !inflater.finished()) {
+                //输出已满但还没读到流结尾，多解压出来的数据说明原始长度不对
+                written += inflater.inflate(new byte[1]);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("malformed deflate data", e);
+        }
+        if (written != originalLength || !inflater.finished()) {
+            throw new IllegalArgumentException("deflate data does not match original length " + originalLength);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内扇出
+ * 同一个JVM里的多个处理器需要同一份消息时，只订阅一次队列，消息写入预分配的环形缓冲，
+ * 每个处理器在自己的线程上按自己的游标顺序读取（Disruptor的单生产者多消费者模式），broker只投递一次。
+ * 所有处理器都处理过的消息才确认，确认后槽位才能被覆盖，所以预取数就是缓冲容量，消费者线程不会因缓冲满而等待。
+ * 处理器之间共享同一个消息体数组，不能修改它；处理器抛出的异常只记录，不影响确认和其他处理器。
+ */
+public class FanoutRing implements AutoCloseable {
+
+    /**
+     * 消息处理逻辑
+     */
+    public interface Handler {
+        void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception;
+    }
+
+    private static final int SPIN_TRIES = 100;//空闲时先自旋，再让出，最后短暂休眠
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long STOP_TIMEOUT_SECONDS = 30;//关闭时等待处理器处理完的时间
+
+    private final String queueName;
+    private final Slot[] slots;
+    private final int mask;
+    private final List<HandlerThread> handlers = new ArrayList<HandlerThread>();
+    //已写入的最大序号，只由消费者线程写
+    private final Sequence published = new Sequence();
+    //已确认的最大序号，生产者据此判断槽位能否覆盖
+    private final Sequence acked = new Sequence();
+    private final Object ackLock = new Object();
+    private Channel channel;
+    private volatile String consumerTag;
+    private volatile boolean running;
+
+    /**
+     * @param queueName 订阅的队列
+     * @param capacity 环形缓冲容量，必须是2的幂，同时作为预取数
+     */
+    public FanoutRing(String queueName, int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1 || capacity > 65535) {
+            throw new IllegalArgumentException("capacity must be a power of two not above 65535: " + capacity);
+        }
+        this.queueName = queueName;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 增加一个处理器，必须在start之前调用
+     * @param name 处理器名字，用于线程名和指标
+     */
+    public synchronized FanoutRing addHandler(String name, Handler handler) {
+        if (channel != null) {
+            throw new IllegalStateException("handlers must be added before start");
+        }
+        handlers.add(new HandlerThread(name, handler));
+        return this;
+    }
+
+    /**
+     * 借出通道，启动处理器线程并开始订阅
+     */
+    public synchronized void start() throws IOException, TimeoutException {
+        if (channel != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (handlers.isEmpty()) {
+            throw new IllegalStateException("no handlers");
+        }
+        channel = ConnectionManager.getInstance().borrowChannel();
+        running = true;
+        for (HandlerThread handler : handlers) {
+            handler.start();
+        }
+        try {
+            channel.basicQos(slots.length);
+            consumerTag = channel.basicConsume(queueName, false, new RingConsumer(channel));
+        } catch (IOException | RuntimeException e) {
+            running = false;
+            ConnectionManager.getInstance().returnChannel(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * 某个处理器已处理的消息数
+     */
+    public long processed(String name) {
+        for (HandlerThread handler : handlers) {
+            if (handler.handlerName.equals(name)) {
+                return handler.processed.sum();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 取消订阅，等待处理器处理完已收到的消息并确认后停止
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null || !running) {
+            return;
+        }
+        try {
+            if (consumerTag != null && channel.isOpen()) {
+                channel.basicCancel(consumerTag);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS);
+            while (acked.get() < published.get() && channel.isOpen() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        } catch (AlreadyClosedException e) {
+            //通道已断开，未确认的消息会被broker重新投递
+        } finally {
+            running = false;
+            for (HandlerThread handler : handlers) {
+                LockSupport.unpark(handler);
+            }
+            if (acked.get() < published.get() && channel.isOpen()) {
+                //还有消息没处理完，关闭通道让broker重新投递，不能带着未确认消息放回连接池
+                try {
+                    channel.close();
+                } catch (TimeoutException | AlreadyClosedException e) {
+                    //忽略
+                }
+            } else if (channel.isOpen()) {
+                //通道会被复用，恢复默认的预取设置
+                channel.basicQos(0);
+            }
+            ConnectionManager.getInstance().returnChannel(channel);
+        }
+    }
+
+    /**
+     * 所有处理器都处理过的序号之前的消息一次性确认
+     */
+    private void tryAck() {
+        long min = Long.MAX_VALUE;
+        for (HandlerThread handler : handlers) {
+            min = Math.min(min, handler.cursor.get());
+        }
+        if (min <= acked.get()) {
+            return;
+        }
+        synchronized (ackLock) {
+            if (min <= acked.get()) {
+                return;
+            }
+            //该槽位在确认之前不会被覆盖
+            long deliveryTag = slots[(int) min & mask].deliveryTag;
+            try {
+                channel.basicAck(deliveryTag, true);
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开，未确认的消息会被broker重新投递
+            }
+            acked.set(min);
+        }
+    }
+
+    private final class RingConsumer extends DefaultConsumer {
+
+        RingConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            Metrics.recordDelivery(properties);
+            long next = published.get() + 1;
+            //预取数等于容量时不会发生，防止预取被修改
+            while (next - slots.length > acked.get()) {
+                if (!running || !getChannel().isOpen()) {
+                    return;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            Slot slot = slots[(int) next & mask];
+            slot.envelope = envelope;
+            slot.properties = properties;
+            slot.body = body;
+            slot.deliveryTag = envelope.getDeliveryTag();
+            //volatile写，处理器看到新序号时一定能看到槽位内容
+            published.set(next);
+            for (HandlerThread handler : handlers) {
+                if (handler.idle) {
+                    LockSupport.unpark(handler);
+                }
+            }
+        }
+    }
+
+    private final class HandlerThread extends Thread {
+        private final String handlerName;
+        private final Handler handler;
+        private final Sequence cursor = new Sequence();
+        private final LongAdder processed;
+        private final LongAdder failed;
+        private final LatencyRecorder processing = Metrics.timer(Metrics.DELIVERY_PROCESSING);
+        private volatile boolean idle;
+
+        HandlerThread(String name, Handler handler) {
+            super("fanout-" + queueName + "-" + name);
+            setDaemon(true);
+            this.handlerName = name;
+            this.handler = handler;
+            this.processed = Metrics.counter(queueName + "." + name + ".processed");
+            this.failed = Metrics.counter(queueName + "." + name + ".failed");
+        }
+
+        @Override
+        public void run() {
+            long next = cursor.get() + 1;
+            int idleTries = 0;
+            while (running) {
+                long available = published.get();
+                if (available < next) {
+                    idleTries = idle(idleTries);
+                    continue;
+                }
+                idleTries = 0;
+                //一次处理完所有可读的消息，再更新游标
+                for (; next <= available; next++) {
+                    Slot slot = slots[(int) next & mask];
+                    long start = System.nanoTime();
+                    try {
+                        handler.handle(slot.envelope, slot.properties, slot.body);
+                    } catch (Exception e) {
+                        failed.increment();
+                        System.out.println(" [" + getName() + "] failed: " + e);
+                    }
+                    processing.recordSince(start);
+                    processed.increment();
+                }
+                cursor.set(available);
+                tryAck();
+            }
+        }
+
+        private int idle(int tries) {
+            if (tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                idle = true;
+                if (published.get() < cursor.get() + 1) {
+                    LockSupport.parkNanos(this, PARK_NANOS * 10);
+                }
+                idle = false;
+            }
+            return tries + 1;
+        }
+    }
+
+    /**
+     * 环形缓冲的槽位，预先分配，只在序号发布前由消费者线程写入
+     */
+    private static final class Slot {
+        Envelope envelope;
+        AMQP.BasicProperties properties;
+        byte[] body;
+        long deliveryTag;
+    }
+
+    /**
+     * 填充到独占缓存行的序号，避免生产者和各处理器的游标互相伪共享
+     */
+    @SuppressWarnings("unused")
+    private static final class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        Sequence() {
+            super(-1);
+        }
+    }
+}
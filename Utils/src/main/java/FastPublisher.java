@@ -0,0 +1,93 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 高频发布
+ * 绑定一个通道和一份属性模板，每条消息复用同一个ReusableProperties，只更新messageId和发布时间戳；
+ * exchange和routing key的组合首次使用时登记为Route，之后按Route发布，不再拼接或比较字符串；
+ * 消息体使用调用者自己的数组（例如MessageCodec.encodePooled的结果），basicPublish返回后即可复用。
+ * 稳定状态下本类在每条消息上不分配对象，剩下的分配来自客户端组帧。
+ * 与通道一样不是线程安全的，每个发布线程使用自己的FastPublisher。
+ */
+public final class FastPublisher {
+
+    private final Channel channel;
+    private final ReusableProperties properties;
+    //exchange -> routing key -> Route
+    private final Map<String, Map<String, Route>> routes = new HashMap<String, Map<String, Route>>();
+    private final LongAdder published = Metrics.counter(Metrics.PUBLISHED);
+
+    public FastPublisher(Channel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param template 每条消息共用的属性，messageId和发布时间戳由本类生成
+     */
+    public FastPublisher(Channel channel, AMQP.BasicProperties template) {
+        this.channel = channel;
+        this.properties = new ReusableProperties(template);
+    }
+
+    /**
+     * 登记exchange和routing key的组合，同一组合返回同一个Route
+     */
+    public Route route(String exchange, String routingKey) {
+        Map<String, Route> byKey = routes.get(exchange);
+        if (byKey == null) {
+            byKey = new HashMap<String, Route>();
+            routes.put(exchange, byKey);
+        }
+        Route route = byKey.get(routingKey);
+        if (route == null) {
+            route = new Route(exchange, routingKey);
+            byKey.put(routingKey, route);
+        }
+        return route;
+    }
+
+    public void publish(Route route, byte[] body) throws IOException {
+        channel.basicPublish(route.exchange, route.routingKey, properties.next(), body);
+        published.increment();
+    }
+
+    public void publish(String exchange, String routingKey, byte[] body) throws IOException {
+        publish(route(exchange, routingKey), body);
+    }
+
+    public Channel channel() {
+        return channel;
+    }
+
+    /**
+     * 发布目标：exchange和routing key
+     */
+    public static final class Route {
+
+        private final String exchange;
+        private final String routingKey;
+
+        private Route(String exchange, String routingKey) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+
+        public String exchange() {
+            return exchange;
+        }
+
+        public String routingKey() {
+            return routingKey;
+        }
+
+        @Override
+        public String toString() {
+            return exchange + "/" + routingKey;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import com.rabbitmq.client.RecoveryDelayHandler;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 带随机抖动的指数退避
+ * 第n次重试前等待[0, min(max, initial * 2^n)]之间的随机时间（full jitter）：
+ * 第一次重连几乎立即进行，broker短暂抖动后恢复最快；broker重启时大量客户端的重连被随机打散，不会同时涌入。
+ */
+public class JitteredBackoff implements RecoveryDelayHandler {
+
+    private final long initialMillis;
+    private final long maxMillis;
+
+    /**
+     * @param initialMillis 第一次重试的等待上限
+     * @param maxMillis 等待上限
+     */
+    public JitteredBackoff(long initialMillis, long maxMillis) {
+        if (initialMillis < 1 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("invalid backoff " + initialMillis + ".." + maxMillis);
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param recoveryAttempts 已经失败的次数，从0开始
+     */
+    @Override
+    public long getDelay(int recoveryAttempts) {
+        long ceiling = initialMillis << Math.min(recoveryAttempts, 30);
+        if (ceiling <= 0 || ceiling > maxMillis) {
+            ceiling = maxMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,52 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟记录器，以微秒为单位记录到HDR直方图
+ * 记录操作无锁，可在任意线程上调用；读取区间直方图由Metrics的报告线程完成
+ */
+public final class LatencyRecorder {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final LongAdder total = new LongAdder();
+    private Histogram recycled;//上一次取出的区间直方图，交还给Recorder复用
+
+    LatencyRecorder() {
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMicros(long micros) {
+        recorder.recordValue(Math.max(0, Math.min(micros, HIGHEST_TRACKABLE_MICROS)));
+        total.increment();
+    }
+
+    /**
+     * 记录从startNanos（System.nanoTime()）到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 累计记录次数
+     */
+    public long totalCount() {
+        return total.sum();
+    }
+
+    /**
+     * 取出自上次调用以来的区间直方图
+     */
+    synchronized Histogram intervalHistogram() {
+        recycled = recorder.getIntervalHistogram(recycled);
+        return recycled;
+    }
+}
@@ -0,0 +1,218 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * LZ4块格式压缩
+ * 贪心匹配，4096项的哈希表线程内复用；输出为标准的LZ4 block，可由其他LZ4实现按已知原始长度解压。
+ * 压缩比不如deflate，但压缩和解压的CPU开销更低，适合吞吐优先的场景。
+ */
+public final class Lz4Compressor implements PayloadCompressor {
+
+    public static final String ENCODING = "lz4";
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;//最后5个字节必须是字面量
+    private static final int MF_LIMIT = 12;//最后一个匹配至少在结尾前12个字节开始
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;//连续未匹配时加大步长，越过不可压缩的数据
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    @Override
+    public String encoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * 一个匹配最多由255个长度字节扩展，每个字节最多产生255字节输出
+     */
+    @Override
+    public long maxDecompressedLength(int length) {
+        return (long) length * 255;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int srcEnd = srcOffset + length;
+        int anchor = srcOffset;
+        int dp = dstOffset;
+        if (length > MF_LIMIT) {
+            int[] table = TABLE.get();
+            Arrays.fill(table, -1);
+            int matchStartLimit = srcEnd - MF_LIMIT;
+            int matchEndLimit = srcEnd - LAST_LITERALS;
+            int sp = srcOffset;
+            int searches = 1 << SKIP_TRIGGER;
+            while (sp < matchStartLimit) {
+                int sequence = readInt(src, sp);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = sp;
+                if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    sp += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+                //向前扩展匹配
+                while (sp > anchor && ref > srcOffset && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+                int matchLength = matchLength(src, sp + MIN_MATCH, ref + MIN_MATCH, matchEndLimit) + MIN_MATCH;
+                dp = writeSequence(src, anchor, sp - anchor, dst, dp, sp - ref, matchLength);
+                sp += matchLength;
+                anchor = sp;
+                if (sp < matchStartLimit) {
+                    table[hash(readInt(src, sp - 2))] = sp - 2;
+                }
+            }
+        }
+        //最后一段只有字面量
+        int literals = srcEnd - anchor;
+        int token = dp++;
+        dp = writeLength(dst, token, dp, literals, 4);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        return dp + literals - dstOffset;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int originalLength) {
+        int sp = srcOffset;
+        int srcEnd = srcOffset + length;
+        int dp = dstOffset;
+        int dstEnd = dstOffset + originalLength;
+        while (true) {
+            if (sp >= srcEnd) {
+                throw malformed();
+            }
+            int token = src[sp++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) {
+                        throw malformed();
+                    }
+                    b = src[sp++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > srcEnd - sp || literals > dstEnd - dp) {
+                throw malformed();
+            }
+            System.arraycopy(src, sp, dst, dp, literals);
+            sp += literals;
+            dp += literals;
+            if (sp == srcEnd) {
+                break;
+            }
+            if (srcEnd - sp < 2) {
+                throw malformed();
+            }
+            int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            int ref = dp - offset;
+            if (offset == 0 || ref < dstOffset) {
+                throw malformed();
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) {
+                        throw malformed();
+                    }
+                    b = src[sp++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - dp) {
+                throw malformed();
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, dp, matchLength);
+                dp += matchLength;
+            } else {
+                //重叠的匹配需要逐字节复制
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp++] = dst[ref++];
+                }
+            }
+        }
+        if (dp != dstEnd) {
+            throw malformed();
+        }
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, byte[] dst, int dp, int offset, int matchLength) {
+        int token = dp++;
+        dp = writeLength(dst, token, dp, literals, 4);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        dp += literals;
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+        return writeLength(dst, token, dp, matchLength - MIN_MATCH, 0);
+    }
+
+    /**
+     * 把长度写入token的高4位或低4位，不小于15时在dp处追加扩展字节
+     */
+    private static int writeLength(byte[] dst, int token, int dp, int length, int shift) {
+        if (length < 15) {
+            dst[token] = (byte) (shift == 4 ? length << 4 : (dst[token] & 0xF0) | length);
+            return dp;
+        }
+        dst[token] = (byte) (shift == 4 ? 0xF0 : (dst[token] & 0xF0) | 0x0F);
+        length -= 15;
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    /**
+     * 从sp和ref开始相同的字节数，sp不超过limit；每次比较8个字节
+     */
+    private static int matchLength(byte[] src, int sp, int ref, int limit) {
+        int start = sp;
+        while (sp <= limit - 8) {
+            long diff = (long) LONG.get(src, sp) ^ (long) LONG.get(src, ref);
+            if (diff != 0) {
+                return sp - start + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+            sp += 8;
+            ref += 8;
+        }
+        while (sp < limit && src[sp] == src[ref]) {
+            sp++;
+            ref++;
+        }
+        return sp - start;
+    }
+
+    private static int readInt(byte[] array, int offset) {
+        return (int) INT.get(array, offset);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static IllegalArgumentException malformed() {
+        return new IllegalArgumentException("malformed lz4 block");
+    }
+}
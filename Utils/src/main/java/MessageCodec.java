@@ -0,0 +1,20 @@
+/**
+ * 消息体编解码器
+ * encode返回新数组，可以被长期持有；encodePooled返回线程内复用的数组，
+ * 只在本线程下一次encodePooled之前有效，适合发布后立即丢弃消息体的场景（basicPublish返回后即可复用）。
+ * decode尽量不拷贝，直接以收到的字节数组为底层数据。
+ * @param <T> 消息类型
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * 对应消息属性中的contentType
+     */
+    String contentType();
+
+    byte[] encode(T value);
+
+    byte[] encodePooled(T value);
+
+    T decode(byte[] body);
+}
@@ -0,0 +1,43 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内置编解码器，以及按contentType查找编解码器的注册表
+ */
+public final class MessageCodecs {
+
+    public static final Utf8Codec UTF8 = new Utf8Codec();
+    public static final NumberCodec NUMBER = new NumberCodec();
+    public static final RawCodec RAW = new RawCodec();
+    public static final BatchCodec BATCH = new BatchCodec();
+
+    private static final Map<String, MessageCodec<?>> REGISTRY = new ConcurrentHashMap<String, MessageCodec<?>>();
+
+    static {
+        register(UTF8);
+        register(NUMBER);
+        register(RAW);
+        register(BATCH);
+    }
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * 注册自定义编解码器，相同contentType的会被替换
+     */
+    public static void register(MessageCodec<?> codec) {
+        REGISTRY.put(codec.contentType(), codec);
+    }
+
+    /**
+     * 按消息属性中的contentType查找编解码器，没有contentType或未注册时按原始字节处理
+     */
+    public static MessageCodec<?> forContentType(String contentType) {
+        if (contentType == null) {
+            return RAW;
+        }
+        MessageCodec<?> codec = REGISTRY.get(contentType);
+        return codec == null ? RAW : codec;
+    }
+}
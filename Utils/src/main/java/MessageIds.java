@@ -0,0 +1,34 @@
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息ID生成
+ * 进程启动时取一个随机前缀，之后按计数递增，不同进程、同一进程内都不重复，生成时不加锁也不访问随机数源。
+ * 发布者在没有指定messageId的消息上自动写入，消费端据此去重。
+ */
+public final class MessageIds {
+
+    private static final String PREFIX = UUID.randomUUID().toString().replace("-", "") + "-";
+    //前缀的ASCII编码，ReusableProperties直接写入消息头，不生成字符串
+    static final byte[] PREFIX_BYTES = PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private MessageIds() {
+    }
+
+    public static String next() {
+        return format(nextSequence());
+    }
+
+    /**
+     * 取下一个序号，与next()共用计数，messageId为前缀加序号的36进制
+     */
+    static long nextSequence() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    static String format(long sequence) {
+        return PREFIX + Long.toString(sequence, 36);
+    }
+}
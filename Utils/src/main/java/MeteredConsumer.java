@@ -0,0 +1,55 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+
+/**
+ * 统计端到端延迟和处理耗时的消费者包装，其余回调原样转发
+ */
+public class MeteredConsumer implements Consumer {
+
+    private final Consumer delegate;
+    private final LatencyRecorder processing = Metrics.timer(Metrics.DELIVERY_PROCESSING);
+
+    public MeteredConsumer(Consumer delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        Metrics.recordDelivery(properties);
+        long start = System.nanoTime();
+        try {
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+        } finally {
+            processing.recordSince(start);
+        }
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+        delegate.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        delegate.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        delegate.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        delegate.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+        delegate.handleRecoverOk(consumerTag);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * 一个统计区间内的指标快照，延迟单位为微秒
+ */
+public final class MetricSnapshot {
+
+    private final String name;
+    private final long count;
+    private final double ratePerSecond;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    MetricSnapshot(String name, long count, double ratePerSecond, long p50, long p99, long p999, long max) {
+        this.name = name;
+        this.count = count;
+        this.ratePerSecond = ratePerSecond;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 区间内的次数
+     */
+    public long count() {
+        return count;
+    }
+
+    public double ratePerSecond() {
+        return ratePerSecond;
+    }
+
+    public long p50Micros() {
+        return p50;
+    }
+
+    public long p99Micros() {
+        return p99;
+    }
+
+    public long p999Micros() {
+        return p999;
+    }
+
+    public long maxMicros() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        if (max < 0) {
+            return String.format("%s count=%d rate=%.1f/s", name, count, ratePerSecond);
+        }
+        return String.format("%s count=%d rate=%.1f/s p50=%dus p99=%dus p99.9=%dus max=%dus",
+                name, count, ratePerSecond, p50, p99, p999, max);
+    }
+}
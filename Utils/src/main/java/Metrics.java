@@ -0,0 +1,164 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * 指标统计
+ * 计数器基于LongAdder，延迟基于HDR直方图，记录均无锁，可以放在收发消息的热路径上；
+ * 定时报告线程按区间输出速率和p50/p99/p99.9/max，替代每条消息一次的System.out.println
+ */
+public final class Metrics {
+
+    public static final String PUBLISHED = "publish";//发布的消息数
+    public static final String CONFIRM_LATENCY = "publish.confirm";//发布到收到broker确认的延迟
+    public static final String DELIVERY_LATENCY = "delivery.latency";//发布到消费者收到的端到端延迟
+    public static final String DELIVERY_PROCESSING = "delivery.processing";//handleDelivery的处理耗时
+    public static final String RPC_ROUNDTRIP = "rpc.roundtrip";//RPC请求往返延迟
+
+    /**
+     * 发布时间戳（纪元微秒），由发布者写入消息头，消费者据此计算端到端延迟
+     */
+    public static final String PUBLISHED_AT_HEADER = "x-published-at";
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<String, LongAdder>();
+    private static final Map<String, LatencyRecorder> TIMERS = new ConcurrentHashMap<String, LatencyRecorder>();
+    //上一次快照时的计数，用于计算区间速率
+    private static final Map<String, Long> LAST_COUNTS = new HashMap<String, Long>();
+    private static long lastSnapshotNanos = System.nanoTime();
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static LatencyRecorder timer(String name) {
+        return TIMERS.computeIfAbsent(name, k -> new LatencyRecorder());
+    }
+
+    /**
+     * 当前时间，纪元微秒
+     */
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+    }
+
+    /**
+     * 在消息属性中写入发布时间戳，没有messageId时生成一个，保留原有属性
+     * 重发时传入同一份属性，messageId不变，消费端可以据此识别重复
+     */
+    public static AMQP.BasicProperties stamp(AMQP.BasicProperties properties) {
+        AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+        Map<String, Object> headers = new HashMap<String, Object>();
+        if (properties != null && properties.getHeaders() != null) {
+            headers.putAll(properties.getHeaders());
+        }
+        headers.put(PUBLISHED_AT_HEADER, nowMicros());
+        if (properties == null || properties.getMessageId() == null) {
+            builder.messageId(MessageIds.next());
+        }
+        return builder.headers(headers).build();
+    }
+
+    /**
+     * 带时间戳发布一条消息并计数
+     */
+    public static void publish(Channel channel, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        channel.basicPublish(exchange, routingKey, stamp(properties), body);
+        counter(PUBLISHED).increment();
+    }
+
+    /**
+     * 根据发布时间戳记录端到端延迟，没有时间戳的消息忽略
+     */
+    public static void recordDelivery(AMQP.BasicProperties properties) {
+        if (properties == null || properties.getHeaders() == null) {
+            return;
+        }
+        Object publishedAt = properties.getHeaders().get(PUBLISHED_AT_HEADER);
+        if (publishedAt instanceof Number) {
+            timer(DELIVERY_LATENCY).recordMicros(nowMicros() - ((Number) publishedAt).longValue());
+        }
+    }
+
+    /**
+     * 包装消费者，统计端到端延迟和handleDelivery耗时
+     */
+    public static Consumer metered(Consumer consumer) {
+        return new MeteredConsumer(consumer);
+    }
+
+    /**
+     * 取出自上次快照以来各指标的区间统计
+     */
+    public static synchronized List<MetricSnapshot> snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastSnapshotNanos) / 1e9);
+        lastSnapshotNanos = now;
+        List<MetricSnapshot> snapshots = new ArrayList<MetricSnapshot>();
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(COUNTERS).entrySet()) {
+            long total = entry.getValue().sum();
+            Long last = LAST_COUNTS.put(entry.getKey(), total);
+            long count = total - (last == null ? 0 : last);
+            snapshots.add(new MetricSnapshot(entry.getKey(), count, count / seconds, -1, -1, -1, -1));
+        }
+        for (Map.Entry<String, LatencyRecorder> entry : new TreeMap<String, LatencyRecorder>(TIMERS).entrySet()) {
+            Histogram histogram = entry.getValue().intervalHistogram();
+            long count = histogram.getTotalCount();
+            if (count == 0) {
+                snapshots.add(new MetricSnapshot(entry.getKey(), 0, 0, 0, 0, 0, 0));
+                continue;
+            }
+            snapshots.add(new MetricSnapshot(entry.getKey(), count, count / seconds,
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue()));
+        }
+        return snapshots;
+    }
+
+    /**
+     * 启动定时报告，每个区间输出一次有数据的指标
+     */
+    public static synchronized void startReporter(long period, TimeUnit unit) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            for (MetricSnapshot snapshot : snapshot()) {
+                if (snapshot.count() > 0) {
+                    System.out.println(" [metrics] " + snapshot);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
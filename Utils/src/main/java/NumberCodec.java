@@ -0,0 +1,116 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 整数编解码，消息体为ASCII十进制文本，与直接发送Integer.toString(n).getBytes()的消息兼容
+ * encodeLong/decodeLong直接在字节上读写，不经过String和装箱
+ */
+public final class NumberCodec implements MessageCodec<Long> {
+
+    public static final String CONTENT_TYPE = "text/plain; charset=us-ascii";
+
+    private static final int MAX_DIGITS = 20;//含负号
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Long value) {
+        return encodeLong(value, false);
+    }
+
+    @Override
+    public byte[] encodePooled(Long value) {
+        return encodeLong(value, true);
+    }
+
+    @Override
+    public Long decode(byte[] body) {
+        return decodeLong(body);
+    }
+
+    /**
+     * 编码为ASCII十进制
+     * @param pooled 是否使用线程内复用的数组
+     */
+    public byte[] encodeLong(long value, boolean pooled) {
+        if (value == Long.MIN_VALUE) {
+            //取绝对值会溢出，走慢路径
+            return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        }
+        byte[] digits = BufferPool.scratch(MAX_DIGITS).array();
+        int pos = MAX_DIGITS;
+        long remaining = Math.abs(value);
+        do {
+            digits[--pos] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        int length = MAX_DIGITS - pos;
+        byte[] body = pooled ? BufferPool.exact(length) : new byte[length];
+        System.arraycopy(digits, pos, body, 0, length);
+        return body;
+    }
+
+    /**
+     * 解析ASCII十进制，允许前后有空白
+     */
+    public long decodeLong(byte[] body) {
+        int start = 0;
+        int end = body.length;
+        while (start < end && body[start] <= ' ') {
+            start++;
+        }
+        while (end > start && body[end - 1] <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            throw new NumberFormatException("empty number");
+        }
+        boolean negative = body[start] == '-';
+        if (negative || body[start] == '+') {
+            start++;
+        }
+        if (start == end || end - start > MAX_DIGITS - 1) {
+            throw invalid(body);
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = body[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalid(body);
+            }
+            //以负数累加，避免Long.MIN_VALUE溢出
+            long next = result * 10 - digit;
+            if (result < Long.MIN_VALUE / 10 || next > result) {
+                throw invalid(body);
+            }
+            result = next;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw invalid(body);
+            }
+            return -result;
+        }
+        return result;
+    }
+
+    private static NumberFormatException invalid(byte[] body) {
+        return new NumberFormatException("invalid number: " + new String(body, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * 解析为int，超出范围时抛出NumberFormatException
+     */
+    public int decodeInt(byte[] body) {
+        long value = decodeLong(body);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("int out of range: " + value);
+        }
+        return (int) value;
+    }
+}
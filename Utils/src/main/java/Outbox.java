@@ -0,0 +1,507 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地发件箱
+ * broker正常时消息直接带确认发送；连接失败、通道断开、未确认窗口已满、消息被nack或连接被broker阻塞（内存/磁盘告警）时，
+ * 消息追加到本地目录下内存映射的分段日志，发送方只付出一次内存拷贝，既不抛异常也不阻塞。
+ * 后台重放线程在broker恢复后按写入顺序带确认重发，每批确认后把偏移记在分段头部，整段确认后删除文件，
+ * 追平后新消息恢复直接发送。
+ * 刚断开时还在途、随后按nack补写的消息会排在已进入日志的消息之后；重放时确认丢失会重发同一条消息，
+ * 消息的messageId在写入前生成，消费端可以用DeduplicatingConsumer去重。
+ * 映射的页由操作系统写回，进程崩溃不丢消息，掉电可能丢失最后写入的一部分。
+ */
+public class Outbox implements AutoCloseable {
+
+    private static final int MAGIC = 0x4F555442;//"OUTB"
+    private static final int HEADER_BYTES = 16;//魔数4字节，保留4字节，已确认偏移8字节
+    private static final int CONFIRMED_POSITION = 8;
+    private static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+    private static final int DEFAULT_MAX_UNCONFIRMED = 256;
+    private static final long RETRY_MILLIS = 1000;//broker不可用时的重试间隔，另加随机抖动
+    private static final long CONFIRM_TIMEOUT_SECONDS = 10;
+    private static final String SUFFIX = ".outbox";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxUnconfirmed;
+    private final Object lock = new Object();
+    //还没重放完的分段，队首最老，队尾正在写入；只在lock内访问
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final RecordBuffer record = new RecordBuffer();//只在lock内使用
+    private final Thread replayer;
+    private final LongAdder spooled = Metrics.counter("outbox.spooled");
+    private final LongAdder replayed = Metrics.counter("outbox.replayed");
+    private volatile ConfirmedPublisher direct;//直接发送的发布者，只在this上同步修改
+    private BlockedListener blockedListener;
+    private ConfirmedPublisher replay;//只由重放线程访问
+    private volatile boolean spooling;
+    private volatile boolean blocked;
+    private volatile boolean closed;
+
+    /**
+     * 分段16MB，最多256条未确认
+     * @param directory 日志目录，不存在时创建；已有的分段会在启动后重放
+     */
+    public Outbox(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_UNCONFIRMED);
+    }
+
+    /**
+     * @param segmentBytes 分段文件大小，超过它的单条消息独占一个更大的分段
+     * @param maxUnconfirmed 直接发送和重放时的未确认消息数上限，也是重放每批的条数
+     */
+    public Outbox(Path directory, int segmentBytes, int maxUnconfirmed) throws IOException {
+        if (segmentBytes < 4096) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if (maxUnconfirmed < 1) {
+            throw new IllegalArgumentException("maxUnconfirmed must be positive");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxUnconfirmed = maxUnconfirmed;
+        Files.createDirectories(directory);
+        for (Path path : existingSegments()) {
+            Segment segment = Segment.open(path, segmentId(path));
+            segments.addLast(segment);
+            if (segment.confirmed < segment.written) {
+                spooling = true;
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(Segment.create(directory, 1, segmentBytes));
+        }
+        replayer = new Thread(this::replayLoop, "outbox-replayer-" + directory.getFileName());
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * 发送一条消息
+     * broker可用、日志已追平且未确认窗口有空位时直接发送，否则写入日志等待重放；发布者在确认前持有消息体，不能使用复用的数组
+     */
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("outbox is closed");
+        }
+        //先生成messageId和时间戳，写入日志和重放的都是同一份属性
+        properties = Metrics.stamp(properties);
+        if (!spooling) {
+            ConfirmedPublisher publisher = direct;
+            if (publisher == null) {
+                publisher = directPublisher();
+            }
+            if (publisher != null) {
+                try {
+                    //窗口满说明broker确认跟不上，转入日志，不等待确认
+                    if (publisher.tryPublish(exchange, routingKey, properties, body)) {
+                        return;
+                    }
+                } catch (IOException | AlreadyClosedException e) {
+                    discardDirect(publisher);
+                }
+            }
+        }
+        spool(exchange, routingKey, properties, body);
+    }
+
+    /**
+     * 日志中还没确认的字节数
+     */
+    public long pendingBytes() {
+        synchronized (lock) {
+            long pending = 0;
+            for (Segment segment : segments) {
+                pending += segment.written - segment.confirmed;
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * 是否正在写入日志
+     */
+    public boolean isSpooling() {
+        return spooling;
+    }
+
+    /**
+     * 停止直接发送和重放，未重放的消息留在日志中，下次用同一目录创建时继续重放
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ConfirmedPublisher publisher;
+        synchronized (this) {
+            publisher = direct;
+        }
+        if (publisher != null) {
+            //在途消息被nack时还会写入日志，所以先关闭发布者再关闭日志
+            discardDirect(publisher);
+        }
+        replayer.interrupt();
+        try {
+            replayer.join(TimeUnit.SECONDS.toMillis(CONFIRM_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    private synchronized ConfirmedPublisher directPublisher() {
+        if (direct == null && !closed) {
+            ConfirmedPublisher publisher;
+            try {
+                publisher = new ConfirmedPublisher(maxUnconfirmed);
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                //连接不上broker
+                return null;
+            }
+            //通道断开时在途的消息也按nack回调，一并写入日志
+            publisher.setNackListener(this::spoolQuietly);
+            blockedListener = new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) {
+                    blocked = true;
+                    spooling = true;
+                }
+
+                @Override
+                public void handleUnblocked() {
+                    blocked = false;
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+            };
+            publisher.channel().getConnection().addBlockedListener(blockedListener);
+            //阻塞期间连接断开时旧连接不会再通知解除，这里清掉阻塞状态让重放继续；
+            //不在这里discardDirect：监听器在连接线程上执行，不能等this上的锁
+            publisher.channel().addShutdownListener(cause -> {
+                if (direct == publisher) {
+                    blocked = false;
+                    spooling = true;
+                }
+            });
+            direct = publisher;
+        }
+        return direct;
+    }
+
+    private void discardDirect(ConfirmedPublisher publisher) {
+        synchronized (this) {
+            if (direct != publisher) {
+                return;
+            }
+            direct = null;
+            spooling = true;
+            Connection connection = publisher.channel().getConnection();
+            connection.removeBlockedListener(blockedListener);
+            //阻塞状态属于旧连接，旧连接不会再通知解除；新连接被阻塞时由它自己的监听器重新设置
+            blocked = false;
+        }
+        try {
+            publisher.close();
+        } catch (IOException | AlreadyClosedException e) {
+            //通道已断开
+        }
+    }
+
+    private void spoolQuietly(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+        try {
+            spool(exchange, routingKey, properties, body);
+        } catch (IOException | RuntimeException e) {
+            System.out.println(" [Outbox] failed to spool message: " + e);
+        }
+    }
+
+    private void spool(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        synchronized (lock) {
+            if (segments.isEmpty()) {
+                throw new IllegalStateException("outbox is closed");
+            }
+            spooling = true;
+            record.write(exchange, routingKey, properties, body);
+            Segment segment = segments.peekLast();
+            if (segment.remaining() < 4 + record.size()) {
+                //写满了，新开一个分段
+                segment = Segment.create(directory, segment.id + 1, Math.max(segmentBytes, HEADER_BYTES + 4 + record.size()));
+                segments.addLast(segment);
+            }
+            segment.append(record.bytes(), record.size());
+            lock.notifyAll();
+        }
+        spooled.increment();
+    }
+
+    private void replayLoop() {
+        while (!closed) {
+            Segment segment;
+            int from;
+            int to;
+            synchronized (lock) {
+                segment = segments.peekFirst();
+                if (segment == null) {
+                    return;
+                }
+                if (segment.confirmed == segment.written && segment != segments.peekLast()) {
+                    //整段已确认，删除文件
+                    segments.removeFirst();
+                    segment.delete();
+                    continue;
+                }
+                if (segment.confirmed == segment.written) {
+                    //已追平，broker没有阻塞时恢复直接发送
+                    if (spooling && !blocked) {
+                        spooling = false;
+                    }
+                    waitQuietly(RETRY_MILLIS);
+                    continue;
+                }
+                from = segment.confirmed;
+                to = segment.written;
+            }
+            if (blocked) {
+                synchronized (lock) {
+                    waitQuietly(RETRY_MILLIS);
+                }
+                continue;
+            }
+            if (!replay(segment, from, to)) {
+                closeReplay();
+                //broker不可用，抖动后重试，避免多个进程同时重连
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS + ThreadLocalRandom.current().nextLong(RETRY_MILLIS));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        closeReplay();
+    }
+
+    /**
+     * 从from开始重放最多maxUnconfirmed条，全部确认后记下偏移
+     * @return broker是否可用
+     */
+    private boolean replay(Segment segment, int from, int to) {
+        try {
+            if (replay == null) {
+                replay = new ConfirmedPublisher(maxUnconfirmed);
+            }
+            long nacked = replay.nackedCount();
+            int offset = from;
+            int count = 0;
+            while (offset < to && count < maxUnconfirmed) {
+                int length = segment.buffer.getInt(offset);
+                byte[] bytes = new byte[length];
+                segment.buffer.get(offset + 4, bytes, 0, length);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                String exchange = in.readUTF();
+                String routingKey = in.readUTF();
+                AMQP.BasicProperties properties = new AMQP.BasicProperties(in);
+                byte[] body = new byte[(int) properties.getBodySize()];
+                in.readFully(body);
+                replay.publish(exchange, routingKey, properties, body);
+                offset += 4 + length;
+                count++;
+            }
+            if (!replay.waitForConfirms(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS) || replay.nackedCount() != nacked) {
+                //有消息没得到确认，这一批整批重放
+                return false;
+            }
+            synchronized (lock) {
+                segment.commit(offset);
+            }
+            replayed.add(count);
+            return true;
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void closeReplay() {
+        if (replay != null) {
+            try {
+                replay.close();
+            } catch (IOException | AlreadyClosedException e) {
+                //通道已断开
+            }
+            replay = null;
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            lock.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    private List<Path> existingSegments() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        //文件名是补零的分段号，按名字排序即按写入顺序
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static long segmentId(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * 一个分段文件：头部之后是连续的记录，每条记录是4字节长度加内容，长度为0表示后面还没写入
+     * 长度在内容之后写，进程在写入中途退出时这条记录不会被读到
+     */
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel file;
+        final MappedByteBuffer buffer;
+        int written;//写入位置，只在lock内读写
+        int confirmed;//已确认的位置，只在lock内读写
+
+        private Segment(long id, Path path, FileChannel file, MappedByteBuffer buffer, int written, int confirmed) {
+            this.id = id;
+            this.path = path;
+            this.file = file;
+            this.buffer = buffer;
+            this.written = written;
+            this.confirmed = confirmed;
+        }
+
+        static Segment create(Path directory, long id, int size) throws IOException {
+            Path path = directory.resolve(String.format("%020d%s", id, SUFFIX));
+            FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(CONFIRMED_POSITION, HEADER_BYTES);
+            return new Segment(id, path, file, buffer, HEADER_BYTES, HEADER_BYTES);
+        }
+
+        static Segment open(Path path, long id) throws IOException {
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = file.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                file.close();
+                throw new IOException("invalid outbox segment size " + size + ": " + path);
+            }
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                file.close();
+                throw new IOException("not an outbox segment: " + path);
+            }
+            //找到最后一条完整的记录
+            int position = HEADER_BYTES;
+            while (position + 4 <= size) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4L + length > size) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            long confirmed = buffer.getLong(CONFIRMED_POSITION);
+            if (confirmed < HEADER_BYTES || confirmed > position) {
+                confirmed = HEADER_BYTES;
+            }
+            return new Segment(id, path, file, buffer, position, (int) confirmed);
+        }
+
+        int remaining() {
+            return buffer.capacity() - written;
+        }
+
+        void append(byte[] bytes, int length) {
+            buffer.put(written + 4, bytes, 0, length);
+            buffer.putInt(written, length);
+            written += 4 + length;
+        }
+
+        void commit(int offset) {
+            buffer.putLong(CONFIRMED_POSITION, offset);
+            confirmed = offset;
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                file.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+
+        void delete() {
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.out.println(" [Outbox] failed to delete " + path + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * 记录的序列化缓冲：exchange、routingKey、与AMQP内容头相同编码的属性（含消息体长度）、消息体
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        void write(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            reset();
+            out.writeUTF(exchange);
+            out.writeUTF(routingKey);
+            out.writeShort(0);//weight，固定为0
+            out.writeLong(body.length);
+            properties.writePropertiesTo(new ContentHeaderPropertyWriter(out));
+            out.write(body);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可选的消息体压缩
+ * 发布端：消息体不小于阈值时压缩，并在属性中设置contentEncoding；压缩后不比原来小的、已有contentEncoding的原样发送。
+ * 压缩后的消息体为4字节原始长度（大端序）加压缩数据，消费端据此一次分配好解压缓冲区；
+ * 分配前检查该长度不超过算法对这段压缩数据的最大解压长度和maxOriginalLength，损坏或恶意的消息不会触发超大分配。
+ * 消费端：按contentEncoding查找算法解压，未设置或未注册的原样返回，见DecompressingConsumer。
+ * 按消息类型（属性type，没有时为contentType）统计原始和压缩后的字节数以及压缩、解压的线程CPU时间，
+ * 指标名为compression.类型.*，由Metrics的报告线程输出，压缩比见ratios()。
+ */
+public final class PayloadCompression {
+
+    public static final Lz4Compressor LZ4 = new Lz4Compressor();
+    public static final DeflateCompressor DEFLATE = new DeflateCompressor();
+    public static final int DEFAULT_THRESHOLD = 1024;//默认只压缩1KB以上的消息体
+
+    static final int LENGTH_PREFIX = 4;
+    private static volatile int maxOriginalLength = 128 * 1024 * 1024;//与rabbitMQ默认的max_message_size一致
+
+    private static final Map<String, PayloadCompressor> REGISTRY = new ConcurrentHashMap<String, PayloadCompressor>();
+    private static final Map<String, TypeStats> STATS = new ConcurrentHashMap<String, TypeStats>();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+    static {
+        register(LZ4);
+        register(DEFLATE);
+    }
+
+    private final PayloadCompressor compressor;
+    private final int threshold;
+
+    /**
+     * @param compressor 压缩算法
+     * @param threshold 消息体不小于该长度时才压缩
+     */
+    public PayloadCompression(PayloadCompressor compressor, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.compressor = compressor;
+        this.threshold = threshold;
+        register(compressor);
+    }
+
+    /**
+     * 设置解压后消息体的长度上限，超过的消息按损坏处理
+     */
+    public static void setMaxOriginalLength(int maxLength) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("invalid max original length " + maxLength);
+        }
+        maxOriginalLength = maxLength;
+    }
+
+    /**
+     * 注册压缩算法，相同contentEncoding的会被替换
+     */
+    public static void register(PayloadCompressor compressor) {
+        REGISTRY.put(compressor.encoding(), compressor);
+    }
+
+    /**
+     * 按contentEncoding查找压缩算法，未设置或未注册时返回null
+     */
+    public static PayloadCompressor forEncoding(String contentEncoding) {
+        return contentEncoding == null ? null : REGISTRY.get(contentEncoding);
+    }
+
+    /**
+     * 带时间戳发布，需要时先压缩
+     * 压缩后的消息体使用线程内复用的数组，basicPublish返回后即失效
+     */
+    public void publish(Channel channel, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        ByteBuffer compressed = compress(properties, body);
+        if (compressed == null) {
+            Metrics.publish(channel, exchange, routingKey, properties, body);
+        } else {
+            Metrics.publish(channel, exchange, routingKey, encoded(properties), BufferPool.copyOut(compressed, true));
+        }
+    }
+
+    /**
+     * 经确认发布者发布，需要时先压缩
+     * 发布者在收到确认前持有消息体，压缩结果使用新数组
+     */
+    public void publish(ConfirmedPublisher publisher, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        ByteBuffer compressed = compress(properties, body);
+        if (compressed == null) {
+            publisher.publish(exchange, routingKey, properties, body);
+        } else {
+            publisher.publish(exchange, routingKey, encoded(properties), BufferPool.copyOut(compressed, false));
+        }
+    }
+
+    /**
+     * 按contentEncoding解压到线程内复用的缓冲区，position为0、limit为原始长度，只在本线程下一次解压前有效
+     * 没有压缩的消息直接包装原数组
+     */
+    public static ByteBuffer decompress(AMQP.BasicProperties properties, byte[] body) {
+        PayloadCompressor compressor = properties == null ? null : forEncoding(properties.getContentEncoding());
+        if (compressor == null) {
+            return ByteBuffer.wrap(body);
+        }
+        int originalLength = originalLength(compressor, body);
+        ByteBuffer buffer = BufferPool.payload(originalLength);
+        decompress(compressor, properties, body, buffer.array(), buffer.arrayOffset(), originalLength);
+        buffer.limit(originalLength);
+        return buffer;
+    }
+
+    /**
+     * 按contentEncoding解压为定长数组，没有压缩的消息原样返回
+     * @param pooled 是否使用线程内复用的数组，为true时只在本线程下一次借出同样长度的数组之前有效；在虚拟线程上应为false
+     */
+    public static byte[] decompressToArray(AMQP.BasicProperties properties, byte[] body, boolean pooled) {
+        PayloadCompressor compressor = properties == null ? null : forEncoding(properties.getContentEncoding());
+        if (compressor == null) {
+            return body;
+        }
+        int originalLength = originalLength(compressor, body);
+        byte[] array = pooled ? BufferPool.exact(originalLength) : new byte[originalLength];
+        decompress(compressor, properties, body, array, 0, originalLength);
+        return array;
+    }
+
+    /**
+     * 各消息类型压缩后与原始字节数之比，只统计实际压缩了的消息
+     */
+    public static Map<String, Double> ratios() {
+        Map<String, Double> ratios = new TreeMap<String, Double>();
+        for (Map.Entry<String, TypeStats> entry : STATS.entrySet()) {
+            long original = entry.getValue().originalBytes.sum();
+            if (original > 0) {
+                ratios.put(entry.getKey(), (double) entry.getValue().compressedBytes.sum() / original);
+            }
+        }
+        return ratios;
+    }
+
+    /**
+     * 压缩到线程内的临时缓冲区，不需要或不值得压缩时返回null
+     */
+    private ByteBuffer compress(AMQP.BasicProperties properties, byte[] body) {
+        TypeStats stats = stats(properties);
+        if (body.length < threshold || (properties != null && properties.getContentEncoding() != null)) {
+            stats.skipped.increment();
+            return null;
+        }
+        ByteBuffer buffer = BufferPool.scratch(LENGTH_PREFIX + compressor.maxCompressedLength(body.length));
+        long start = cpuNanos();
+        int length = compressor.compress(body, 0, body.length, buffer.array(), buffer.arrayOffset() + LENGTH_PREFIX);
+        stats.compressTime.recordNanos(cpuNanos() - start);
+        if (LENGTH_PREFIX + length >= body.length) {
+            //不可压缩的数据原样发送
+            stats.skipped.increment();
+            return null;
+        }
+        buffer.putInt(body.length);
+        buffer.position(LENGTH_PREFIX + length);
+        stats.originalBytes.add(body.length);
+        stats.compressedBytes.add(LENGTH_PREFIX + length);
+        return buffer;
+    }
+
+    private AMQP.BasicProperties encoded(AMQP.BasicProperties properties) {
+        AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+        return builder.contentEncoding(compressor.encoding()).build();
+    }
+
+    private static void decompress(PayloadCompressor compressor, AMQP.BasicProperties properties, byte[] body,
+                                   byte[] dst, int dstOffset, int originalLength) {
+        long start = cpuNanos();
+        compressor.decompress(body, LENGTH_PREFIX, body.length - LENGTH_PREFIX, dst, dstOffset, originalLength);
+        stats(properties).decompressTime.recordNanos(cpuNanos() - start);
+    }
+
+    /**
+     * 读取并检查消息体开头声明的原始长度，在分配解压缓冲区之前调用
+     */
+    private static int originalLength(PayloadCompressor compressor, byte[] body) {
+        if (body.length < LENGTH_PREFIX) {
+            throw new IllegalArgumentException("truncated compressed body");
+        }
+        int length = (body[0] & 0xFF) << 24 | (body[1] & 0xFF) << 16 | (body[2] & 0xFF) << 8 | (body[3] & 0xFF);
+        if (length < 0 || length > maxOriginalLength) {
+            throw new IllegalArgumentException("invalid original length " + length + ", limit " + maxOriginalLength);
+        }
+        if (length > compressor.maxDecompressedLength(body.length - LENGTH_PREFIX)) {
+            throw new IllegalArgumentException("original length " + length + " cannot come from "
+                    + (body.length - LENGTH_PREFIX) + " bytes of " + compressor.encoding());
+        }
+        return length;
+    }
+
+    /**
+     * 当前线程的CPU时间，不支持时退化为墙钟时间
+     */
+    private static long cpuNanos() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static TypeStats stats(AMQP.BasicProperties properties) {
+        String type = null;
+        if (properties != null) {
+            type = properties.getType() != null ? properties.getType() : properties.getContentType();
+        }
+        return STATS.computeIfAbsent(type == null ? "untyped" : type, TypeStats::new);
+    }
+
+    private static final class TypeStats {
+        final LongAdder originalBytes;
+        final LongAdder compressedBytes;
+        final LongAdder skipped;
+        final LatencyRecorder compressTime;
+        final LatencyRecorder decompressTime;
+
+        TypeStats(String type) {
+            String prefix = "compression." + type;
+            this.originalBytes = Metrics.counter(prefix + ".original.bytes");
+            this.compressedBytes = Metrics.counter(prefix + ".compressed.bytes");
+            this.skipped = Metrics.counter(prefix + ".skipped");
+            this.compressTime = Metrics.timer(prefix + ".compress.cpu");
+            this.decompressTime = Metrics.timer(prefix + ".decompress.cpu");
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * 消息体压缩算法
+ * 只处理数组区间，不负责分配缓冲区；原始长度由PayloadCompression写在压缩后的消息体开头
+ */
+public interface PayloadCompressor {
+
+    /**
+     * 对应消息属性中的contentEncoding
+     */
+    String encoding();
+
+    /**
+     * 长度为length的输入压缩后的最大长度，压缩前按此分配输出缓冲区
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * 长度为length的压缩数据解压后可能的最大长度，解压前据此检查消息体开头声明的原始长度
+     */
+    long maxDecompressedLength(int length);
+
+    /**
+     * @return 写入dst的字节数
+     */
+    int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * 解压到dst，输出长度必须正好为originalLength，数据损坏时抛出IllegalArgumentException
+     */
+    void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int originalLength);
+}
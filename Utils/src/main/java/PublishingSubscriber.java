@@ -0,0 +1,131 @@
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带发布确认的Flow.Subscriber，把上游的每个元素作为一条消息发送
+ * 需求等于ConfirmedPublisher的未确认窗口：开始时request窗口大小，此后每得到一个确认再request一个，
+ * onNext因此不会在窗口上阻塞，上游的速度由broker的确认速度决定。
+ * 确认在连接的I/O线程上回调，补充的需求交给executor发出，避免在I/O线程上同步执行上游的onNext。
+ */
+public class PublishingSubscriber implements Flow.Subscriber<byte[]> {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;//结束时等待确认的时间
+
+    private final String exchange;
+    private final String routingKey;
+    private final AMQP.BasicProperties properties;
+    private final ConfirmedPublisher publisher;
+    private final Executor executor;
+    //已确认但还没转成需求的窗口位置
+    private final AtomicLong credit = new AtomicLong();
+    private final CompletableFuture<Long> done = new CompletableFuture<Long>();
+    private volatile Flow.Subscription subscription;
+
+    /**
+     * @param exchange 交换机
+     * @param routingKey routing key
+     * @param properties 每条消息的属性，可以为null
+     * @param maxUnconfirmed 未确认消息数上限，即上游的最大需求
+     */
+    public PublishingSubscriber(String exchange, String routingKey, AMQP.BasicProperties properties, int maxUnconfirmed) throws IOException, TimeoutException {
+        this(exchange, routingKey, properties, maxUnconfirmed, ForkJoinPool.commonPool());
+    }
+
+    public PublishingSubscriber(String exchange, String routingKey, AMQP.BasicProperties properties, int maxUnconfirmed,
+                                Executor executor) throws IOException, TimeoutException {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.executor = executor;
+        this.publisher = new ConfirmedPublisher(maxUnconfirmed);
+        publisher.setSettledListener(ack -> replenish());
+    }
+
+    public ConfirmedPublisher publisher() {
+        return publisher;
+    }
+
+    /**
+     * 上游结束且所有消息都得到确认后完成，结果为确认的消息数；上游出错或发送失败时异常完成
+     */
+    public CompletableFuture<Long> done() {
+        return done;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            //规范2.5：同一订阅者只接受一个订阅
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(publisher.maxUnconfirmed());
+    }
+
+    @Override
+    public void onNext(byte[] body) {
+        try {
+            publisher.publish(exchange, routingKey, properties, body);
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            finish(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        finish(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        finish(null);
+    }
+
+    /**
+     * 每得到一个确认补充一个需求，已有补充任务在排队时只累加
+     */
+    private void replenish() {
+        if (credit.getAndIncrement() == 0) {
+            executor.execute(() -> {
+                long n = credit.getAndSet(0);
+                Flow.Subscription current = subscription;
+                if (n > 0 && current != null && !done.isDone()) {
+                    current.request(n);
+                }
+            });
+        }
+    }
+
+    private void finish(Throwable error) {
+        if (done.isDone()) {
+            return;
+        }
+        try {
+            publisher.waitForConfirms(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            publisher.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            done.completeExceptionally(error);
+        } else {
+            done.complete(publisher.confirmedCount());
+        }
+    }
+}
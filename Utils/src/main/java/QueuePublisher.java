@@ -0,0 +1,280 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把队列暴露为Flow.Publisher，按订阅者的需求消费
+ * 每个订阅独占一个通道，手动确认：onNext返回后才确认，未确认的消息数不超过预取数，
+ * 订阅者不request时broker最多投递预取数那么多条，客户端内存中的积压有上界。
+ * 预取数从订阅者在onSubscribe中首次request的数量开始，不超过maxPrefetch；之后未满足的需求超过当前预取数时，
+ * 重新设置预取数为min(需求, maxPrefetch)，预取数只增不减。通道上只有这一个消费者，使用通道级（global）的basicQos，运行中修改立即生效。
+ * 队列被删除等broker取消消费时，积压的消息交完后onComplete；通道或连接异常断开时onError，未确认的消息由broker重新投递。
+ */
+public class QueuePublisher implements Flow.Publisher<Delivery> {
+
+    private final String queueName;
+    private final int maxPrefetch;
+
+    /**
+     * @param queueName 消费的队列
+     * @param maxPrefetch 预取数上限
+     */
+    public QueuePublisher(String queueName, int maxPrefetch) {
+        if (maxPrefetch < 1 || maxPrefetch > 65535) {
+            throw new IllegalArgumentException("invalid maxPrefetch " + maxPrefetch);
+        }
+        this.queueName = queueName;
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Delivery> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        Channel channel;
+        try {
+            channel = ConnectionManager.getInstance().borrowChannel();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(e);
+            return;
+        }
+        QueueSubscription subscription = new QueueSubscription(channel, subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.consume();
+    }
+
+    private final class QueueSubscription extends DefaultConsumer implements Flow.Subscription {
+        private final Flow.Subscriber<? super Delivery> subscriber;
+        //已收到还没交给订阅者的消息，长度不超过预取数
+        private final Queue<Delivery> buffer = new ConcurrentLinkedQueue<Delivery>();
+        private final AtomicLong demand = new AtomicLong();
+        //串行化drain：只有把它从0加上去的线程负责交付，其余线程只登记
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile String tag;
+        private volatile int prefetch;//当前的预取数
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable error;
+        private boolean terminated;//只在drain中读写
+
+        QueueSubscription(Channel channel, Flow.Subscriber<? super Delivery> subscriber) {
+            super(channel);
+            this.subscriber = subscriber;
+        }
+
+        void consume() {
+            if (cancelled) {
+                //onSubscribe中已取消，通道已在drain中归还
+                return;
+            }
+            try {
+                //订阅者在onSubscribe中的首次request决定预取数
+                prefetch = (int) Math.max(1, Math.min(demand.get(), maxPrefetch));
+                getChannel().basicQos(prefetch, true);
+                tag = getChannel().basicConsume(queueName, false, this);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+                drain();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive request: " + n);
+                drain();
+                return;
+            }
+            //累加时封顶于Long.MAX_VALUE，视为无限需求
+            demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                cancelConsumer();
+                drain();
+            }
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            Metrics.recordDelivery(properties);
+            buffer.offer(new Delivery(envelope, properties, body));
+            drain();
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            //broker主动取消（如队列被删除），积压的消息交完后结束
+            completed = true;
+            drain();
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (!cancelled) {
+                error = sig;
+                drain();
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (terminated) {
+                    buffer.clear();
+                } else if (cancelled) {
+                    //取消确认之前可能还有消息在途，关闭通道让broker重新投递
+                    terminated = true;
+                    buffer.clear();
+                    closeChannel();
+                } else {
+                    deliverBuffered();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliverBuffered() {
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            long lastTag = 0;
+            Delivery delivery;
+            while (demand.get() > 0 && !cancelled && (delivery = buffer.poll()) != null) {
+                try {
+                    subscriber.onNext(delivery);
+                } catch (Throwable e) {
+                    //订阅者违反规范抛出异常，视为取消，这一条及之后的消息由broker重新投递
+                    System.out.println(" [QueuePublisher] subscriber failed: " + e);
+                    ack(lastTag);
+                    cancelled = true;
+                    terminated = true;
+                    closeChannel();
+                    return;
+                }
+                lastTag = delivery.getEnvelope().getDeliveryTag();
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+            }
+            //onNext返回即处理完，交付过的消息一次性确认
+            ack(lastTag);
+            growPrefetch();
+            if (completed && buffer.isEmpty() && !cancelled) {
+                terminated = true;
+                release();
+                subscriber.onComplete();
+            }
+        }
+
+        /**
+         * 未满足的需求超过当前预取数时放宽预取数，让broker多投递一些
+         */
+        private void growPrefetch() {
+            if (tag == null || prefetch >= maxPrefetch) {
+                //还没开始消费时由consume设置
+                return;
+            }
+            long outstanding = demand.get() - buffer.size();
+            if (outstanding <= prefetch) {
+                return;
+            }
+            int target = (int) Math.min(outstanding, maxPrefetch);
+            try {
+                getChannel().basicQos(target, true);
+                prefetch = target;
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开，由handleShutdownSignal结束订阅
+            }
+        }
+
+        private void fail(Throwable e) {
+            terminated = true;
+            buffer.clear();
+            cancelConsumer();
+            //不带着未确认的消息放回连接池
+            closeChannel();
+            subscriber.onError(e);
+        }
+
+        private void ack(long lastTag) {
+            if (lastTag == 0) {
+                return;
+            }
+            try {
+                getChannel().basicAck(lastTag, true);
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开，未确认的消息会被broker重新投递
+            }
+        }
+
+        private void cancelConsumer() {
+            String consumerTag = tag;
+            if (consumerTag == null) {
+                return;
+            }
+            try {
+                if (getChannel().isOpen()) {
+                    getChannel().basicCancel(consumerTag);
+                }
+            } catch (IOException | AlreadyClosedException e) {
+                //通道已断开
+            }
+        }
+
+        /**
+         * broker取消消费且消息都已确认，恢复预取设置后放回连接池
+         */
+        private void release() {
+            try {
+                if (getChannel().isOpen()) {
+                    getChannel().basicQos(0, true);
+                }
+            } catch (IOException | AlreadyClosedException e) {
+                //通道已断开
+            }
+            ConnectionManager.getInstance().returnChannel(getChannel());
+        }
+
+        private void closeChannel() {
+            try {
+                if (getChannel().isOpen()) {
+                    getChannel().close();
+                }
+            } catch (IOException | TimeoutException | AlreadyClosedException e) {
+                //忽略
+            }
+            ConnectionManager.getInstance().returnChannel(getChannel());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * 原始字节，不做任何转换
+ */
+public final class RawCodec implements MessageCodec<byte[]> {
+
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(byte[] value) {
+        return value;
+    }
+
+    @Override
+    public byte[] encodePooled(byte[] value) {
+        return value;
+    }
+
+    @Override
+    public byte[] decode(byte[] body) {
+        return body;
+    }
+}
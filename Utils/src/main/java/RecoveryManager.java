@@ -0,0 +1,269 @@
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接断开后的自动恢复
+ * 重连和重放由客户端的自动恢复完成：按JitteredBackoff重连，依次恢复通道（预取数、发布确认模式）、交换机、队列、绑定和消费者。
+ * 客户端记录了通道上的每次声明和订阅，各模块receive*()中的queueDeclare、queueBind、basicQos、basicConsume，
+ * Topology的NoWait声明以及RPC客户端在direct reply-to上的消费者都会被重放，服务端命名的队列恢复后得到新名字并重新绑定。
+ * 本类负责配置连接工厂，并统计每次恢复各阶段的耗时：
+ * recovery.reconnect 断开到连接重新建立，包括退避等待；
+ * recovery.channels 通道重新打开并恢复预取数和确认模式；
+ * recovery.topology 交换机、队列、绑定和消费者；
+ * recovery.total 断开到恢复完成；
+ * recovery.throughput 断开到消费速率回到断开前的90%，这是业务真正关心的中断时间。
+ * broker进程退出时TCP立即断开；网络中断时要等两个心跳周期才能发现，这段时间不计入以上耗时。
+ */
+public final class RecoveryManager {
+
+    private static final int HEARTBEAT_SECONDS = 5;//心跳间隔，决定发现网络中断的速度
+    private static final int CONNECTION_TIMEOUT_MILLIS = 3000;//每次重连的TCP连接超时
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int TOPOLOGY_RECOVERY_THREADS = 4;//并行恢复不同通道上的队列、绑定和消费者
+    private static final long SAMPLE_MILLIS = 100;//消费速率的采样间隔
+    private static final int WINDOW_SAMPLES = 10;//速率按最近1秒计算
+    private static final int MIN_RECOVERED_SAMPLES = 2;//恢复后至少采样这么多次再判断速率
+    private static final int HISTORY_SAMPLES = 300;//断开前30秒内的最高速率作为基准
+    private static final double THROUGHPUT_RECOVERED_RATIO = 0.9;
+    private static final long THROUGHPUT_TIMEOUT_MILLIS = 60000;//超过这个时间仍未回到基准就不再等待
+
+    private static final RecoveryManager INSTANCE = new RecoveryManager();
+
+    private final ExecutorService topologyExecutor = Executors.newFixedThreadPool(TOPOLOGY_RECOVERY_THREADS,
+            daemon("rabbitmq-topology-recovery"));
+    private ScheduledExecutorService monitor;
+    //各消费者处理过的消息总数，采样得到消费速率
+    private final LatencyRecorder delivered = Metrics.timer(Metrics.DELIVERY_PROCESSING);
+    private final long[] history = new long[HISTORY_SAMPLES];
+    private long samples;
+    //断开后尚未结束统计的连接
+    private final Map<Connection, Outage> outages = new ConcurrentHashMap<Connection, Outage>();
+    private final LatencyRecorder reconnect = Metrics.timer("recovery.reconnect");
+    private final LatencyRecorder channels = Metrics.timer("recovery.channels");
+    private final LatencyRecorder topology = Metrics.timer("recovery.topology");
+    private final LatencyRecorder total = Metrics.timer("recovery.total");
+    private final LatencyRecorder throughput = Metrics.timer("recovery.throughput");
+
+    private RecoveryManager() {
+    }
+
+    public static RecoveryManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 开启心跳、自动恢复和拓扑恢复，重连使用带抖动的指数退避
+     */
+    public void configure(ConnectionFactory factory) {
+        factory.setRequestedHeartbeat(HEARTBEAT_SECONDS);
+        factory.setConnectionTimeout(CONNECTION_TIMEOUT_MILLIS);
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        factory.setRecoveryDelayHandler(new JitteredBackoff(INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS));
+        factory.setTopologyRecoveryExecutor(topologyExecutor);
+    }
+
+    /**
+     * 统计连接的恢复耗时，不能自动恢复的连接（如进程内broker）忽略
+     */
+    public void watch(Connection connection) {
+        if (!(connection instanceof AutorecoveringConnection)) {
+            return;
+        }
+        startMonitor();
+        AutorecoveringConnection recoverable = (AutorecoveringConnection) connection;
+        recoverable.addShutdownListener(cause -> {
+            if (!cause.isInitiatedByApplication()) {
+                outages.put(connection, new Outage(connection, baselineRate()));
+            }
+        });
+        recoverable.addQueueRecoveryListener((oldName, newName) -> {
+            Outage outage = outages.get(connection);
+            if (outage != null) {
+                outage.queues.incrementAndGet();
+            }
+        });
+        recoverable.addConsumerRecoveryListener((oldTag, newTag) -> {
+            Outage outage = outages.get(connection);
+            if (outage != null) {
+                outage.consumers.incrementAndGet();
+            }
+        });
+        recoverable.addRecoveryListener(new RecoveryListener() {
+            @Override
+            public void handleRecovery(Recoverable recoverable) {
+                Outage outage = outages.get(connection);
+                if (outage != null) {
+                    outage.recovered();
+                }
+            }
+
+            @Override
+            public void handleRecoveryStarted(Recoverable recoverable) {
+            }
+        });
+    }
+
+    /**
+     * 统计通道的恢复：第一个通道开始恢复时连接已重新建立，最后一个通道恢复完时开始恢复拓扑
+     * @param connection 创建通道的连接，通道恢复后getConnection返回的是底层的新连接
+     */
+    public void watch(Connection connection, Channel channel) {
+        if (!(channel instanceof Recoverable)) {
+            return;
+        }
+        ((Recoverable) channel).addRecoveryListener(new RecoveryListener() {
+            @Override
+            public void handleRecoveryStarted(Recoverable recoverable) {
+                Outage outage = outages.get(connection);
+                if (outage != null && outage.connectedAt == 0) {
+                    outage.connectedAt = System.nanoTime();
+                }
+            }
+
+            @Override
+            public void handleRecovery(Recoverable recoverable) {
+                Outage outage = outages.get(connection);
+                if (outage != null) {
+                    outage.channels.incrementAndGet();
+                    outage.channelsAt = System.nanoTime();
+                }
+            }
+        });
+    }
+
+    private synchronized void startMonitor() {
+        if (monitor != null) {
+            return;
+        }
+        monitor = Executors.newSingleThreadScheduledExecutor(daemon("rabbitmq-recovery-monitor"));
+        monitor.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sample() {
+        long index;
+        synchronized (this) {
+            index = samples++;
+            history[(int) (index % HISTORY_SAMPLES)] = delivered.totalCount();
+        }
+        long now = System.nanoTime();
+        for (Outage outage : outages.values()) {
+            //只看恢复完成之后的采样，窗口里不能混入断开前的消费
+            long window = Math.min(WINDOW_SAMPLES, index - outage.completedSample);
+            if (outage.completedAt == 0 || window < MIN_RECOVERED_SAMPLES) {
+                continue;
+            }
+            double rate;
+            synchronized (this) {
+                rate = rate(index, (int) window);
+            }
+            long elapsed = now - outage.disconnectedAt;
+            if (outage.baselineRate <= 0) {
+                //断开前没有消费，无从比较
+                outages.remove(outage.connection, outage);
+            } else if (rate >= outage.baselineRate * THROUGHPUT_RECOVERED_RATIO) {
+                throughput.recordNanos(elapsed);
+                System.out.println(String.format(Locale.ROOT,
+                        " [recovery] %s back to %.0f msg/s (before: %.0f msg/s) %d ms after disconnect",
+                        outage.connection, rate, outage.baselineRate, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+                outages.remove(outage.connection, outage);
+            } else if (elapsed > TimeUnit.MILLISECONDS.toNanos(THROUGHPUT_TIMEOUT_MILLIS)) {
+                System.out.println(String.format(Locale.ROOT,
+                        " [recovery] %s still at %.0f msg/s (before: %.0f msg/s) %d ms after disconnect",
+                        outage.connection, rate, outage.baselineRate, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+                outages.remove(outage.connection, outage);
+            }
+        }
+    }
+
+    /**
+     * 以第index个采样结束、window个采样间隔内的消费速率
+     */
+    private double rate(long index, int window) {
+        if (index < window) {
+            return 0;
+        }
+        long delta = history[(int) (index % HISTORY_SAMPLES)] - history[(int) ((index - window) % HISTORY_SAMPLES)];
+        return delta * 1000.0 / (window * SAMPLE_MILLIS);
+    }
+
+    private synchronized long samples() {
+        return samples;
+    }
+
+    /**
+     * 断开前30秒内的最高消费速率；连接中断到发现断开之间速率已经下降，不能只看最近一个窗口
+     */
+    private synchronized double baselineRate() {
+        double max = 0;
+        long oldest = Math.max(WINDOW_SAMPLES, samples - HISTORY_SAMPLES + WINDOW_SAMPLES);
+        for (long index = oldest; index < samples; index++) {
+            max = Math.max(max, rate(index, WINDOW_SAMPLES));
+        }
+        return max;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 一次断开到恢复的时间线，nanoTime
+     */
+    private final class Outage {
+        final Connection connection;
+        final long disconnectedAt = System.nanoTime();
+        final double baselineRate;
+        final AtomicInteger channels = new AtomicInteger();
+        final AtomicInteger queues = new AtomicInteger();
+        final AtomicInteger consumers = new AtomicInteger();
+        volatile long connectedAt;
+        volatile long channelsAt;
+        volatile long completedAt;
+        volatile long completedSample;
+
+        Outage(Connection connection, double baselineRate) {
+            this.connection = connection;
+            this.baselineRate = baselineRate;
+        }
+
+        void recovered() {
+            long now = System.nanoTime();
+            //连接上没有通道时，重连完成即恢复完成
+            long connected = connectedAt == 0 ? now : connectedAt;
+            long channelsDone = channelsAt == 0 ? connected : channelsAt;
+            reconnect.recordNanos(connected - disconnectedAt);
+            RecoveryManager.this.channels.recordNanos(channelsDone - connected);
+            topology.recordNanos(now - channelsDone);
+            total.recordNanos(now - disconnectedAt);
+            System.out.println(String.format(Locale.ROOT,
+                    " [recovery] %s recovered in %d ms: reconnect %d ms, %d channels %d ms, topology %d ms (%d queues, %d consumers)",
+                    connection, TimeUnit.NANOSECONDS.toMillis(now - disconnectedAt),
+                    TimeUnit.NANOSECONDS.toMillis(connected - disconnectedAt), channels.get(),
+                    TimeUnit.NANOSECONDS.toMillis(channelsDone - connected), TimeUnit.NANOSECONDS.toMillis(now - channelsDone),
+                    queues.get(), consumers.get()));
+            completedSample = samples();
+            completedAt = now;
+        }
+    }
+}
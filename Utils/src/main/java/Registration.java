@@ -1,61 +1,67 @@
 import com.rabbitmq.client.BuiltinExchangeType;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
 
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
 /**
  * 首次运行，请先注册队列和交换机
+ * 各模块共用同一份拓扑定义，消费前调用TOPOLOGY.apply(channel)即可，同一连接上重复调用不会重复声明
  */
 public class Registration {
 
-    private final static String DIRECT_EXCHANGE_NAME = "TEST_DIRECT_EXCHANGE";//direct交换机
-    private final static String TOPIC_EXCHANGE_NAME = "TEST_TOPIC_EXCHANGE";//topic交换机
-    private final static String FANOUT_EXCHANGE_NAME = "TEST_FANOUT_EXCHANGE";//fanout交换机
-    private final static String SMS_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_SMS";//短信队列
-    private final static String EMAIL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_EMAIL";//邮件队列
-    private final static String WORK_QUEUE_NAME = "TEST_WORK_QUEUE";//workqueue队列
-    private final static String HELLO_QUEUE_NAME="SAKE_FIRST_QUEUE";//helloworld队列
-    private final static String TOPIC_QUEUE_NAME_01 = "TOPIC_EXCHANGE_QUEUE_01";//topic队列1
-    private final static String TOPIC_QUEUE_NAME_02 = "TOPIC_EXCHANGE_QUEUE_02";//topic队列2
-    private static final String RPC_QUEUE_NAME = "RPC_QUEUE";//RPC队列
+    public final static String DIRECT_EXCHANGE_NAME = "TEST_DIRECT_EXCHANGE";//direct交换机
+    public final static String TOPIC_EXCHANGE_NAME = "TEST_TOPIC_EXCHANGE";//topic交换机
+    public final static String FANOUT_EXCHANGE_NAME = "TEST_FANOUT_EXCHANGE";//fanout交换机
+    public final static String SMS_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_SMS";//短信队列
+    public final static String EMAIL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_EMAIL";//邮件队列
+    public final static String LOCAL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_LOCAL";//进程内扇出队列
+    public final static String WORK_QUEUE_NAME = "TEST_WORK_QUEUE";//workqueue队列
+    public final static String HELLO_QUEUE_NAME="SAKE_FIRST_QUEUE";//helloworld队列
+    public final static String TOPIC_QUEUE_NAME_01 = "TOPIC_EXCHANGE_QUEUE_01";//topic队列1
+    public final static String TOPIC_QUEUE_NAME_02 = "TOPIC_EXCHANGE_QUEUE_02";//topic队列2
+    public static final String RPC_QUEUE_NAME = "RPC_QUEUE";//RPC队列
+    public static final ShardedQueue WORK_QUEUE_SHARDS = new ShardedQueue(WORK_QUEUE_NAME, 4);//分片工作队列，TEST_WORK_QUEUE.0 ~ .3
+
+    /**
+     * 全部交换机、队列及绑定
+     * 队列参数：durable 是否持久化；exclusive 是否独占连接；autoDelete 不再使用时是否自动删除；arguments 扩展参数，如存活时间
+     */
+    public static final Topology TOPOLOGY = new Topology()
+            .exchange(FANOUT_EXCHANGE_NAME, BuiltinExchangeType.FANOUT)
+            .exchange(DIRECT_EXCHANGE_NAME, BuiltinExchangeType.DIRECT)
+            .exchange(TOPIC_EXCHANGE_NAME, BuiltinExchangeType.TOPIC)
+            .queue(HELLO_QUEUE_NAME)
+            .queue(WORK_QUEUE_NAME)
+            .queue(EMAIL_QUEUE_NAME)
+            .queue(SMS_QUEUE_NAME)
+            .queue(LOCAL_QUEUE_NAME)
+            .queue(TOPIC_QUEUE_NAME_01)
+            .queue(TOPIC_QUEUE_NAME_02)
+            .queue(RPC_QUEUE_NAME)
+            .shardedQueue(WORK_QUEUE_SHARDS)
+            //Publish/subscribe
+            .binding(SMS_QUEUE_NAME, FANOUT_EXCHANGE_NAME, "")
+            .binding(EMAIL_QUEUE_NAME, FANOUT_EXCHANGE_NAME, "")
+            .binding(LOCAL_QUEUE_NAME, FANOUT_EXCHANGE_NAME, "")
+            //Routing
+            .binding(SMS_QUEUE_NAME, DIRECT_EXCHANGE_NAME, "sms")
+            .binding(EMAIL_QUEUE_NAME, DIRECT_EXCHANGE_NAME, "email")
+            //Topic
+            .binding(TOPIC_QUEUE_NAME_01, TOPIC_EXCHANGE_NAME, "*.orange.*")
+            .binding(TOPIC_QUEUE_NAME_02, TOPIC_EXCHANGE_NAME, "*.*.rabbit")
+            .binding(TOPIC_QUEUE_NAME_02, TOPIC_EXCHANGE_NAME, "lazy.#");
 
 
     public static void main(String[] args) throws IOException, TimeoutException {
-        Connection connection = ConnectionUtil.getConnection();
-        Channel channel = connection.createChannel();
-        //声明exchange,指定类型为fanout
-        /**
-         * 参数含义：
-         * 1、s 交换机名称
-         * 2、s1 交换机类型
-         */
-        channel.exchangeDeclare(FANOUT_EXCHANGE_NAME,BuiltinExchangeType.FANOUT);
-        channel.exchangeDeclare(DIRECT_EXCHANGE_NAME, BuiltinExchangeType.DIRECT);
-        channel.exchangeDeclare(TOPIC_EXCHANGE_NAME, BuiltinExchangeType.TOPIC);
-
-        //声明队列
-        /**
-         * 参数含义：
-         * 1、queue 队列名称
-         * 2、durable 是否持久化，如果持久化，mq重启后队列还在
-         * 3、exclusive 是否独占连接，队列只允许在该连接中访问，如果connection连接关闭队列则自动删除,如果将此参数设置true可用于临时队列的创建
-         * 4、autoDelete 自动删除，队列不再使用时是否自动删除此队列，如果将此参数和exclusive参数设置为true就可以实现临时队列（队列不用了就自动删除）
-         * 5、arguments 参数，可以设置一个队列的扩展参数，比如：可设置存活时间
-         */
-        channel.queueDeclare(HELLO_QUEUE_NAME,false,false,false,null);
-        channel.queueDeclare(WORK_QUEUE_NAME,false,false,false,null);
-        channel.queueDeclare(EMAIL_QUEUE_NAME,false,false,false,null);
-        channel.queueDeclare(SMS_QUEUE_NAME,false,false,false,null);
-        channel.queueDeclare(TOPIC_QUEUE_NAME_01,false,false,false,null);
-        channel.queueDeclare(TOPIC_QUEUE_NAME_02,false,false,false,null);
-        channel.queueDeclare(RPC_QUEUE_NAME,false,false,false,null);
-
-
-        System.out.println("所有队列及交换机注册完成！");
-        channel.close();
-        connection.close();
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //可以传入类路径上的拓扑文件代替内置定义
+        Topology topology = args.length > 0 ? Topology.fromResource(args[0]) : TOPOLOGY;
+        int declared = topology.apply(channel);
+
+        System.out.println("所有队列及交换机注册完成！共声明" + declared + "项");
+        ConnectionManager.getInstance().returnChannel(channel);
+        ConnectionManager.getInstance().close();
     }
 
 }
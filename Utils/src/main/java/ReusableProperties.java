@@ -0,0 +1,303 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 可复用的消息属性
+ * 模板中固定的属性在创建时编码成字节，每条消息只更新messageId、发布时间戳和correlationId，
+ * 编码消息头时直接写字节，不创建Builder、HashMap、装箱的时间戳和messageId字符串。
+ * 客户端在basicPublish中同步编码消息头，返回后即可为下一条消息修改；同一时刻只能由一个线程使用。
+ * getter按当前值生成新对象，只在调试或进程内broker读取属性时调用，不在发布的热路径上。
+ */
+public final class ReusableProperties extends AMQP.BasicProperties {
+
+    private static final byte[] PUBLISHED_AT_KEY = Metrics.PUBLISHED_AT_HEADER.getBytes(StandardCharsets.US_ASCII);
+    //发布时间戳在headers表中占的字节数：键（长度+内容）、类型'l'、8字节值
+    private static final int PUBLISHED_AT_ENTRY_LENGTH = 1 + PUBLISHED_AT_KEY.length + 1 + 8;
+    private static final int MAX_SHORTSTR_LENGTH = 255;
+
+    //不含messageId、correlationId和发布时间戳的模板
+    private final AMQP.BasicProperties template;
+    //按AMQP属性顺序，可变属性之间的固定属性预先编码好的字节
+    private final byte[] beforeHeaders;//contentType、contentEncoding
+    private final byte[] headerEntries;//模板中的headers，不含表长度
+    private final byte[] beforeCorrelationId;//deliveryMode、priority
+    private final byte[] beforeMessageId;//replyTo、expiration
+    private final byte[] afterMessageId;//timestamp、type、userId、appId、clusterId
+    //序号的36进制数字，从末尾向前写
+    private final byte[] digits = new byte[13];
+
+    private long sequence;
+    private long publishedAt;
+    private String correlationId;
+
+    /**
+     * @param template 固定的属性，为null时只有messageId和发布时间戳；其中的messageId、correlationId和发布时间戳被忽略
+     */
+    public ReusableProperties(AMQP.BasicProperties template) {
+        AMQP.BasicProperties source = template == null ? new AMQP.BasicProperties() : template;
+        Map<String, Object> headers = source.getHeaders() == null
+                ? new HashMap<String, Object>() : new HashMap<String, Object>(source.getHeaders());
+        headers.remove(Metrics.PUBLISHED_AT_HEADER);
+        this.template = source.builder().messageId(null).correlationId(null)
+                .headers(headers.isEmpty() ? null : headers).build();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ContentHeaderPropertyWriter writer = new ContentHeaderPropertyWriter(new DataOutputStream(bytes));
+            writeIfPresent(writer, this.template.getContentType());
+            writeIfPresent(writer, this.template.getContentEncoding());
+            this.beforeHeaders = drain(bytes);
+            writer.writeTable(headers);
+            byte[] table = drain(bytes);
+            //去掉4字节的表长度，发布时加上时间戳重新计算
+            this.headerEntries = new byte[table.length - 4];
+            System.arraycopy(table, 4, headerEntries, 0, headerEntries.length);
+            if (this.template.getDeliveryMode() != null) {
+                writer.writeOctet(this.template.getDeliveryMode());
+            }
+            if (this.template.getPriority() != null) {
+                writer.writeOctet(this.template.getPriority());
+            }
+            this.beforeCorrelationId = drain(bytes);
+            writeIfPresent(writer, this.template.getReplyTo());
+            writeIfPresent(writer, this.template.getExpiration());
+            this.beforeMessageId = drain(bytes);
+            if (this.template.getTimestamp() != null) {
+                writer.writeTimestamp(this.template.getTimestamp());
+            }
+            writeIfPresent(writer, this.template.getType());
+            writeIfPresent(writer, this.template.getUserId());
+            writeIfPresent(writer, this.template.getAppId());
+            writeIfPresent(writer, this.template.getClusterId());
+            this.afterMessageId = drain(bytes);
+        } catch (IOException e) {
+            //写入内存不会失败
+            throw new IllegalStateException(e);
+        }
+        next();
+    }
+
+    /**
+     * 为下一条消息生成新的messageId和发布时间戳，correlationId保持不变
+     */
+    public ReusableProperties next() {
+        sequence = MessageIds.nextSequence();
+        publishedAt = Metrics.nowMicros();
+        return this;
+    }
+
+    /**
+     * 设置correlationId，为null时不发送
+     */
+    public ReusableProperties correlationId(String correlationId) {
+        this.correlationId = correlationId;
+        return this;
+    }
+
+    @Override
+    public void writePropertiesTo(ContentHeaderPropertyWriter writer) throws IOException {
+        writer.writePresence(template.getContentType() != null);
+        writer.writePresence(template.getContentEncoding() != null);
+        writer.writePresence(true);
+        writer.writePresence(template.getDeliveryMode() != null);
+        writer.writePresence(template.getPriority() != null);
+        writer.writePresence(correlationId != null);
+        writer.writePresence(template.getReplyTo() != null);
+        writer.writePresence(template.getExpiration() != null);
+        writer.writePresence(true);
+        writer.writePresence(template.getTimestamp() != null);
+        writer.writePresence(template.getType() != null);
+        writer.writePresence(template.getUserId() != null);
+        writer.writePresence(template.getAppId() != null);
+        writer.writePresence(template.getClusterId() != null);
+        writer.finishPresence();
+
+        write(writer, beforeHeaders);
+        writeInt(writer, headerEntries.length + PUBLISHED_AT_ENTRY_LENGTH);
+        write(writer, headerEntries);
+        writer.writeOctet(PUBLISHED_AT_KEY.length);
+        write(writer, PUBLISHED_AT_KEY);
+        writer.writeOctet('l');
+        writeInt(writer, (int) (publishedAt >>> 32));
+        writeInt(writer, (int) publishedAt);
+        write(writer, beforeCorrelationId);
+        if (correlationId != null) {
+            writeShortstr(writer, correlationId);
+        }
+        write(writer, beforeMessageId);
+        writeMessageId(writer);
+        write(writer, afterMessageId);
+    }
+
+    private void writeMessageId(ContentHeaderPropertyWriter writer) throws IOException {
+        int start = digits.length;
+        long value = sequence;
+        do {
+            start--;
+            digits[start] = (byte) Character.forDigit((int) (value % 36), 36);
+            value /= 36;
+        } while (value > 0);
+        writer.writeOctet(MessageIds.PREFIX_BYTES.length + digits.length - start);
+        write(writer, MessageIds.PREFIX_BYTES);
+        for (int i = start; i < digits.length; i++) {
+            writer.writeOctet(digits[i]);
+        }
+    }
+
+    /**
+     * ASCII字符串逐字节写入，客户端的writeShortstr每次都要先编码成新数组
+     */
+    private static void writeShortstr(ContentHeaderPropertyWriter writer, String value) throws IOException {
+        int length = value.length();
+        if (length > MAX_SHORTSTR_LENGTH) {
+            writer.writeShortstr(value);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                writer.writeShortstr(value);
+                return;
+            }
+        }
+        writer.writeOctet(length);
+        for (int i = 0; i < length; i++) {
+            writer.writeOctet(value.charAt(i));
+        }
+    }
+
+    private static void writeInt(ContentHeaderPropertyWriter writer, int value) throws IOException {
+        writer.writeOctet(value >>> 24);
+        writer.writeOctet((value >>> 16) & 0xFF);
+        writer.writeOctet((value >>> 8) & 0xFF);
+        writer.writeOctet(value & 0xFF);
+    }
+
+    private static void write(ContentHeaderPropertyWriter writer, byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            writer.writeOctet(b & 0xFF);
+        }
+    }
+
+    private static void writeIfPresent(ContentHeaderPropertyWriter writer, String value) throws IOException {
+        if (value != null) {
+            writer.writeShortstr(value);
+        }
+    }
+
+    private static byte[] drain(ByteArrayOutputStream bytes) {
+        byte[] drained = bytes.toByteArray();
+        bytes.reset();
+        return drained;
+    }
+
+    @Override
+    public Map<String, Object> getHeaders() {
+        Map<String, Object> headers = template.getHeaders() == null
+                ? new HashMap<String, Object>() : new HashMap<String, Object>(template.getHeaders());
+        headers.put(Metrics.PUBLISHED_AT_HEADER, publishedAt);
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public String getMessageId() {
+        return MessageIds.format(sequence);
+    }
+
+    @Override
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    @Override
+    public String getContentType() {
+        return template.getContentType();
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return template.getContentEncoding();
+    }
+
+    @Override
+    public Integer getDeliveryMode() {
+        return template.getDeliveryMode();
+    }
+
+    @Override
+    public Integer getPriority() {
+        return template.getPriority();
+    }
+
+    @Override
+    public String getReplyTo() {
+        return template.getReplyTo();
+    }
+
+    @Override
+    public String getExpiration() {
+        return template.getExpiration();
+    }
+
+    @Override
+    public Date getTimestamp() {
+        return template.getTimestamp();
+    }
+
+    @Override
+    public String getType() {
+        return template.getType();
+    }
+
+    @Override
+    public String getUserId() {
+        return template.getUserId();
+    }
+
+    @Override
+    public String getAppId() {
+        return template.getAppId();
+    }
+
+    @Override
+    public String getClusterId() {
+        return template.getClusterId();
+    }
+
+    /**
+     * 当前值的不可变副本
+     */
+    public AMQP.BasicProperties snapshot() {
+        return builder().build();
+    }
+
+    @Override
+    public AMQP.BasicProperties.Builder builder() {
+        return template.builder()
+                .headers(getHeaders())
+                .messageId(getMessageId())
+                .correlationId(correlationId);
+    }
+
+    @Override
+    public void appendPropertyDebugStringTo(StringBuilder acc) {
+        snapshot().appendPropertyDebugStringTo(acc);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分片队列的消费者组
+ * 每个分片同一时刻只有一个成员消费，同一key的消息按发布顺序处理；成员加入或离开时重新分配分片：
+ * 每个成员分到S/M或S/M+1个分片，成员尽量保留已有的分片，只有多出来和无主的分片换手；
+ * 换手时原成员先处理完已预取的消息并确认，新成员才开始消费，分片上不会同时有两个消费者。
+ * 成员多于分片数时多出的成员空闲待命，有成员离开时接手它的分片。
+ */
+public class ShardConsumerGroup implements AutoCloseable {
+
+    private final ShardedQueue queue;
+    private final WorkerPool[] pools;//每个分片一个消费者池，池内最多一个worker
+    private final String[] owners;//各分片当前的成员
+    //成员名 -> 处理逻辑，按名字排序，分配结果与加入顺序无关
+    private final Map<String, WorkerPool.Worker> members = new TreeMap<String, WorkerPool.Worker>();
+    private final Map<String, LongAdder> processed = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder rebalances = Metrics.counter("shard.rebalances");
+    private final LongAdder handoffs = Metrics.counter("shard.handoffs");
+
+    /**
+     * @param queue 分片队列
+     * @param prefetch 每个分片的预取数
+     * @param ackBatchSize 累计多少条消息后合并确认一次
+     * @param ackIntervalMillis 未满一批时，最长多久确认一次
+     */
+    public ShardConsumerGroup(ShardedQueue queue, int prefetch, int ackBatchSize, long ackIntervalMillis) {
+        if (prefetch < 1) {
+            //不限制预取时换手要等太多在途消息
+            throw new IllegalArgumentException("prefetch must be positive");
+        }
+        this.queue = queue;
+        this.pools = new WorkerPool[queue.shards()];
+        this.owners = new String[queue.shards()];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new WorkerPool(queue.shard(i), prefetch, ackBatchSize, ackIntervalMillis);
+        }
+    }
+
+    /**
+     * 成员加入并重新分配分片
+     * @param member 成员名，组内唯一
+     * @param worker 消息处理逻辑，分到的每个分片各在自己的通道上调用
+     */
+    public synchronized void join(String member, WorkerPool.Worker worker) throws IOException, TimeoutException {
+        if (members.containsKey(member)) {
+            throw new IllegalArgumentException("duplicate member: " + member);
+        }
+        LongAdder count = processed.computeIfAbsent(member, name -> new LongAdder());
+        members.put(member, (envelope, properties, body) -> {
+            worker.handle(envelope, properties, body);
+            count.increment();
+        });
+        rebalance();
+    }
+
+    /**
+     * 成员离开，它的分片处理完在途消息后交给其他成员
+     */
+    public synchronized void leave(String member) throws IOException, TimeoutException {
+        if (members.remove(member) != null) {
+            rebalance();
+        }
+    }
+
+    /**
+     * 当前的分配：成员 -> 分片序号，空闲的成员对应空列表
+     */
+    public synchronized Map<String, List<Integer>> assignment() {
+        Map<String, List<Integer>> assignment = new TreeMap<String, List<Integer>>();
+        for (String member : members.keySet()) {
+            assignment.put(member, new ArrayList<Integer>());
+        }
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] != null) {
+                assignment.get(owners[i]).add(i);
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * 某个成员在各分片上处理过的消息总数，离开后仍保留
+     */
+    public long processed(String member) {
+        LongAdder count = processed.get(member);
+        return count == null ? 0 : count.sum();
+    }
+
+    public ShardedQueue queue() {
+        return queue;
+    }
+
+    /**
+     * 按当前成员计算目标分配，先停掉要换手的分片，再在新成员上启动
+     */
+    private void rebalance() throws IOException, TimeoutException {
+        String[] target = assign();
+        List<Integer> moved = new ArrayList<Integer>();
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] != null && !owners[i].equals(target[i])) {
+                //等原成员处理完在途消息并确认
+                pools[i].removeWorker(owners[i]);
+                owners[i] = null;
+            }
+            if (owners[i] == null && target[i] != null) {
+                moved.add(i);
+            }
+        }
+        for (int i : moved) {
+            pools[i].addWorker(target[i], members.get(target[i]));
+            owners[i] = target[i];
+            handoffs.increment();
+        }
+        rebalances.increment();
+        System.out.println(" [group] " + queue + " rebalanced, moved shards " + moved + ": " + assignment());
+    }
+
+    /**
+     * 黏性的均衡分配：每个成员保留已有分片，最多S/M个，余下的S%M个名额优先给已持有更多分片的成员；
+     * 其余分片按顺序补给未满配额的成员
+     */
+    private String[] assign() {
+        String[] target = new String[owners.length];
+        if (members.isEmpty()) {
+            return target;
+        }
+        int base = owners.length / members.size();
+        int extra = owners.length % members.size();
+        Map<String, Integer> quota = new TreeMap<String, Integer>();
+        for (String member : members.keySet()) {
+            quota.put(member, base);
+        }
+        //第一轮保留base个，第二轮用余下的名额再保留一个
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < owners.length; i++) {
+                String owner = owners[i];
+                if (target[i] != null || owner == null || !quota.containsKey(owner)) {
+                    continue;
+                }
+                if (quota.get(owner) > 0) {
+                    target[i] = owner;
+                    quota.put(owner, quota.get(owner) - 1);
+                } else if (round == 1 && extra > 0) {
+                    target[i] = owner;
+                    quota.put(owner, -1);//已用过余下的名额
+                    extra--;
+                }
+            }
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (target[i] != null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> entry : quota.entrySet()) {
+                if (entry.getValue() > 0 || (entry.getValue() == 0 && extra > 0)) {
+                    if (entry.getValue() == 0) {
+                        extra--;
+                        entry.setValue(-1);
+                    } else {
+                        entry.setValue(entry.getValue() - 1);
+                    }
+                    target[i] = entry.getKey();
+                    break;
+                }
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        members.clear();
+        for (int i = 0; i < pools.length; i++) {
+            pools[i].close();
+            owners[i] = null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分片队列：一个逻辑上的工作队列由N个队列组成，分片名为name.0 ~ name.(N-1)
+ * rabbitMQ上每个队列由一个Erlang进程处理，只能用到一个节点上的一个核，单个队列的吞吐有上限；
+ * 拆成N个分片后可以并行，集群中各分片的主副本按x-queue-master-locator=min-masters分散到不同节点。
+ * 带key的消息按一致性哈希（jump consistent hash）固定发往一个分片，同一key的消息保持顺序，
+ * 分片数从N增加到N+1时只有约1/(N+1)的key换到新分片；没有key的消息轮流发往各分片。
+ * 消费端见ShardConsumerGroup。
+ */
+public final class ShardedQueue {
+
+    /**
+     * 声明分片时的参数：集群中新队列的主副本放在主副本最少的节点上
+     */
+    public static final Map<String, Object> SHARD_ARGUMENTS;
+
+    static {
+        Map<String, Object> arguments = new HashMap<String, Object>();
+        arguments.put("x-queue-master-locator", "min-masters");
+        SHARD_ARGUMENTS = Collections.unmodifiableMap(arguments);
+    }
+
+    private final String name;
+    private final String[] shardNames;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param name 逻辑队列名
+     * @param shards 分片数
+     */
+    public ShardedQueue(String name, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        this.name = name;
+        this.shardNames = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            shardNames[i] = name + "." + i;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int shards() {
+        return shardNames.length;
+    }
+
+    /**
+     * 第index个分片的队列名
+     */
+    public String shard(int index) {
+        return shardNames[index];
+    }
+
+    /**
+     * key所在的分片序号
+     */
+    public int shardFor(String key) {
+        return jump(mix(key.hashCode()), shardNames.length);
+    }
+
+    /**
+     * 消息应发往的分片队列名，key为null时轮流选择
+     */
+    public String route(String key) {
+        if (key == null) {
+            return shardNames[(next.getAndIncrement() & Integer.MAX_VALUE) % shardNames.length];
+        }
+        return shardNames[shardFor(key)];
+    }
+
+    /**
+     * 经默认交换机发往key所在的分片
+     * @param key 分片键，如订单号；为null时轮流发往各分片
+     */
+    public void publish(Channel channel, String key, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        Metrics.publish(channel, "", route(key), properties, body);
+    }
+
+    /**
+     * Lamping和Veach的jump consistent hash：不需要哈希环，O(ln n)时间，分片数变化时移动的key最少
+     */
+    static int jump(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * String.hashCode的低位分布不均，先打散再交给jump
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + shardNames.length + "]";
+    }
+}
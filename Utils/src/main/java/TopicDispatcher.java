@@ -0,0 +1,146 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地topic分发器
+ * 一个消费者接收范围较大的消息流，按AMQP topic语义把每条消息分发给进程内订阅了匹配模式的处理器。
+ * 同一处理器的多个模式同时命中时只调用一次，与broker上一个队列多次绑定只收到一份消息的行为一致。
+ */
+public class TopicDispatcher extends DefaultConsumer {
+
+    /**
+     * 本地处理器
+     */
+    public interface Handler {
+        void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException;
+    }
+
+    /**
+     * 一次订阅，用于取消订阅
+     */
+    public static final class Subscription {
+        private final String pattern;
+        private final Target target;
+
+        private Subscription(String pattern, Target target) {
+            this.pattern = pattern;
+            this.target = target;
+        }
+
+        public String pattern() {
+            return pattern;
+        }
+    }
+
+    /**
+     * 处理器及其去重标记，同一个处理器的所有订阅共用一个Target
+     */
+    private static final class Target {
+        final Handler handler;
+        long lastDelivery;//最近一次被调用时的投递序号
+
+        Target(Handler handler) {
+            this.handler = handler;
+        }
+    }
+
+    private final TopicTrie<Target> trie = new TopicTrie<Target>();
+    private final Map<Handler, Target> targets = new IdentityHashMap<Handler, Target>();
+    private final AtomicLong unrouted = new AtomicLong();
+    //以下字段只在分发线程上使用，客户端对同一消费者的handleDelivery是串行调用的
+    private final TopicTrie.Visitor<Target> visitor = this::invoke;
+    private long delivery;
+    private int matched;
+    private Envelope currentEnvelope;
+    private AMQP.BasicProperties currentProperties;
+    private byte[] currentBody;
+    private IOException failure;
+
+    public TopicDispatcher(Channel channel) {
+        super(channel);
+    }
+
+    /**
+     * 订阅一个模式
+     * @param pattern 绑定模式，如*.orange.*、lazy.#
+     * @param handler 处理器
+     */
+    public Subscription subscribe(String pattern, Handler handler) {
+        Target target;
+        synchronized (targets) {
+            target = targets.computeIfAbsent(handler, Target::new);
+        }
+        trie.add(pattern, target);
+        return new Subscription(pattern, target);
+    }
+
+    /**
+     * 取消订阅
+     */
+    public boolean unsubscribe(Subscription subscription) {
+        return trie.remove(subscription.pattern, subscription.target);
+    }
+
+    /**
+     * 没有任何处理器匹配的消息数
+     */
+    public long unroutedCount() {
+        return unrouted.get();
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        dispatch(envelope, properties, body);
+    }
+
+    /**
+     * 按routing key把消息分发给匹配的处理器
+     * @return 被调用的处理器个数
+     */
+    public int dispatch(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        delivery++;
+        matched = 0;
+        currentEnvelope = envelope;
+        currentProperties = properties;
+        currentBody = body;
+        try {
+            trie.match(envelope.getRoutingKey(), visitor);
+        } finally {
+            currentEnvelope = null;
+            currentProperties = null;
+            currentBody = null;
+        }
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+        if (matched == 0) {
+            unrouted.incrementAndGet();
+        }
+        return matched;
+    }
+
+    private void invoke(Target target) {
+        if (target.lastDelivery == delivery) {
+            return;
+        }
+        target.lastDelivery = delivery;
+        matched++;
+        try {
+            target.handler.handle(currentEnvelope, currentProperties, currentBody);
+        } catch (IOException e) {
+            //记录第一个异常，其余处理器照常执行
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按AMQP topic语义匹配routing key的前缀树
+ * 绑定模式按"."拆成单词逐层存放，*匹配恰好一个单词，#匹配零个或多个单词。
+ * 与rabbitMQ一致，空字符串是零个单词：空routing key只被#和空模式匹配，不被*匹配。
+ * 匹配时直接在routing key上按下标查找子节点，不拆分字符串、不分配对象；
+ * 增删模式时对受影响的节点做写时复制，匹配无需加锁，可以在运行时随时增删。
+ * 同一个值通过多个模式命中同一个routing key时，会被回调多次，由调用方去重。
+ * @param <V> 模式关联的值
+ */
+public class TopicTrie<V> {
+
+    /**
+     * 匹配结果回调
+     */
+    public interface Visitor<V> {
+        void visit(V value);
+    }
+
+    private final Node<V> root = new Node<V>();
+    private final Object writeLock = new Object();
+    private int size;
+
+    /**
+     * 增加一个模式
+     * @param pattern 绑定模式，如*.orange.*、lazy.#
+     * @param value 模式关联的值
+     */
+    public void add(String pattern, V value) {
+        String[] words = compile(pattern);
+        synchronized (writeLock) {
+            Node<V> node = root;
+            for (String word : words) {
+                node = node.childForWrite(word);
+            }
+            node.addValue(value);
+            size++;
+        }
+    }
+
+    /**
+     * 删除一个模式上的值，并清理不再使用的节点
+     * @return 是否存在并已删除
+     */
+    public boolean remove(String pattern, V value) {
+        String[] words = compile(pattern);
+        synchronized (writeLock) {
+            boolean removed = remove(root, words, 0, value);
+            if (removed) {
+                size--;
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * 已登记的（模式，值）数量
+     */
+    public int size() {
+        synchronized (writeLock) {
+            return size;
+        }
+    }
+
+    /**
+     * 找出与routing key匹配的所有值
+     * @param routingKey 消息的routing key
+     * @param visitor 每命中一个值回调一次
+     */
+    public void match(String routingKey, Visitor<? super V> visitor) {
+        //空routing key没有单词，直接从单词已用完的状态开始
+        match(root, routingKey, routingKey.isEmpty() ? 1 : 0, visitor);
+    }
+
+    /**
+     * 是否至少有一个模式与routing key匹配
+     */
+    public boolean matches(String routingKey) {
+        final boolean[] found = new boolean[1];
+        match(routingKey, value -> found[0] = true);
+        return found[0];
+    }
+
+    /**
+     * 校验并拆分绑定模式
+     */
+    static String[] compile(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern must not be null");
+        }
+        if (pattern.isEmpty()) {
+            //空模式没有单词，值挂在根节点上
+            return new String[0];
+        }
+        List<String> words = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int end = pattern.indexOf('.', start);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            String word = pattern.substring(start, end);
+            if (word.length() > 1 && (word.indexOf('*') >= 0 || word.indexOf('#') >= 0)) {
+                throw new IllegalArgumentException("wildcards must be whole words: " + pattern);
+            }
+            words.add(word);
+            if (end == pattern.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * @param pos 下一个单词在routing key中的起始下标，大于routing key长度表示单词已用完
+     */
+    private static <V> void match(Node<V> node, String key, int pos, Visitor<? super V> visitor) {
+        int length = key.length();
+        if (pos > length) {
+            node.visitValues(visitor);
+            Node<V> hash = node.hash;
+            if (hash != null) {
+                //#匹配零个单词
+                match(hash, key, pos, visitor);
+            }
+            return;
+        }
+        int end = key.indexOf('.', pos);
+        if (end < 0) {
+            end = length;
+        }
+        Node<V> child = node.children.get(key, pos, end);
+        if (child != null) {
+            match(child, key, end + 1, visitor);
+        }
+        Node<V> star = node.star;
+        if (star != null) {
+            match(star, key, end + 1, visitor);
+        }
+        Node<V> hash = node.hash;
+        if (hash != null) {
+            //#依次吞掉零个、一个……直到全部剩余单词
+            int next = pos;
+            while (true) {
+                match(hash, key, next, visitor);
+                if (next > length) {
+                    break;
+                }
+                int dot = key.indexOf('.', next);
+                next = dot < 0 ? length + 1 : dot + 1;
+            }
+        }
+    }
+
+    private static <V> boolean remove(Node<V> node, String[] words, int index, V value) {
+        if (index == words.length) {
+            return node.removeValue(value);
+        }
+        Node<V> child = node.childForRead(words[index]);
+        if (child == null || !remove(child, words, index + 1, value)) {
+            return false;
+        }
+        if (child.isEmpty()) {
+            node.removeChild(words[index]);
+        }
+        return true;
+    }
+
+    private static final class Node<V> {
+        volatile Children<V> children = Children.empty();
+        volatile Node<V> star;
+        volatile Node<V> hash;
+        volatile Object[] values = new Object[0];
+
+        Node<V> childForRead(String word) {
+            if ("*".equals(word)) {
+                return star;
+            }
+            if ("#".equals(word)) {
+                return hash;
+            }
+            return children.get(word, 0, word.length());
+        }
+
+        Node<V> childForWrite(String word) {
+            Node<V> child = childForRead(word);
+            if (child != null) {
+                return child;
+            }
+            child = new Node<V>();
+            if ("*".equals(word)) {
+                star = child;
+            } else if ("#".equals(word)) {
+                hash = child;
+            } else {
+                children = children.with(word, child);
+            }
+            return child;
+        }
+
+        void removeChild(String word) {
+            if ("*".equals(word)) {
+                star = null;
+            } else if ("#".equals(word)) {
+                hash = null;
+            } else {
+                children = children.without(word);
+            }
+        }
+
+        void addValue(V value) {
+            Object[] current = values;
+            Object[] next = new Object[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = value;
+            values = next;
+        }
+
+        boolean removeValue(V value) {
+            Object[] current = values;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equals(value)) {
+                    Object[] next = new Object[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    values = next;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        void visitValues(Visitor<? super V> visitor) {
+            Object[] current = values;
+            for (Object value : current) {
+                visitor.visit((V) value);
+            }
+        }
+
+        boolean isEmpty() {
+            return values.length == 0 && star == null && hash == null && children.size == 0;
+        }
+    }
+
+    /**
+     * 不可变的开放寻址哈希表，单词 -> 子节点
+     * 查找时直接对routing key的一段计算哈希并逐字符比较，不需要截取子串
+     */
+    private static final class Children<V> {
+        private static final Children<?> EMPTY = new Children<Object>(new String[0], Children.<Object>newNodes(0), 0);
+
+        final String[] keys;
+        final Node<V>[] nodes;
+        final int size;
+
+        private Children(String[] keys, Node<V>[] nodes, int size) {
+            this.keys = keys;
+            this.nodes = nodes;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Children<V> empty() {
+            return (Children<V>) EMPTY;
+        }
+
+        Node<V> get(String key, int start, int end) {
+            if (size == 0) {
+                return null;
+            }
+            int mask = keys.length - 1;
+            int length = end - start;
+            for (int i = hash(key, start, end) & mask; ; i = (i + 1) & mask) {
+                String candidate = keys[i];
+                if (candidate == null) {
+                    return null;
+                }
+                if (candidate.length() == length && candidate.regionMatches(0, key, start, length)) {
+                    return nodes[i];
+                }
+            }
+        }
+
+        Children<V> with(String word, Node<V> node) {
+            Children<V> next = resized(size + 1);
+            next.put(word, node);
+            return new Children<V>(next.keys, next.nodes, size + 1);
+        }
+
+        Children<V> without(String word) {
+            Children<V> next = resized(size - 1);
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && !keys[i].equals(word)) {
+                    next.put(keys[i], nodes[i]);
+                    count++;
+                }
+            }
+            return new Children<V>(next.keys, next.nodes, count);
+        }
+
+        /**
+         * 容量为元素数的两倍以上，保证至少有一个空槽
+         */
+        private Children<V> resized(int expected) {
+            int capacity = 2;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            Children<V> next = new Children<V>(new String[capacity], Children.<V>newNodes(capacity), 0);
+            if (expected > size) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        next.put(keys[i], nodes[i]);
+                    }
+                }
+            }
+            return next;
+        }
+
+        /**
+         * 不能直接创建泛型数组，Node<V>[]只在本类内部使用，不会暴露给调用方
+         */
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newNodes(int length) {
+            return (Node<V>[]) new Node<?>[length];
+        }
+
+        private void put(String word, Node<V> node) {
+            int mask = keys.length - 1;
+            int i = hash(word, 0, word.length()) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = word;
+            nodes[i] = node;
+        }
+
+        private static int hash(String key, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + key.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 声明式拓扑：交换机、队列、绑定及其参数
+ * apply一次性用*NoWait方式流水线声明，最后做一次同步的被动声明确认broker已处理完；
+ * 同一连接上已经声明过的对象会被跳过，连接断开后记录自动失效。
+ *
+ * 也可以从文本加载，每行一个对象，#开头为注释，参数写成key=value：
+ * <pre>
+ * exchange TEST_DIRECT_EXCHANGE direct durable=false
+ * queue    TEST_WORK_QUEUE durable=false x-message-ttl=60000
+ * binding  FANOUT_EXCHANGE_QUEUE_SMS TEST_DIRECT_EXCHANGE sms
+ * </pre>
+ * binding的routing key为空时写成""。
+ */
+public class Topology {
+
+    /**
+     * 每个连接上已声明对象的记录
+     */
+    private static final Map<Connection, Set<String>> DECLARED = Collections.synchronizedMap(new WeakHashMap<Connection, Set<String>>());
+
+    private final List<Exchange> exchanges = new ArrayList<Exchange>();
+    private final List<Queue> queues = new ArrayList<Queue>();
+    private final List<Binding> bindings = new ArrayList<Binding>();
+
+    public Topology exchange(String name, BuiltinExchangeType type) {
+        return exchange(name, type, false, false, null);
+    }
+
+    public Topology exchange(String name, BuiltinExchangeType type, boolean durable, boolean autoDelete, Map<String, Object> arguments) {
+        exchanges.add(new Exchange(name, type, durable, autoDelete, arguments));
+        return this;
+    }
+
+    public Topology queue(String name) {
+        return queue(name, false, false, false, null);
+    }
+
+    public Topology queue(String name, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) {
+        queues.add(new Queue(name, durable, exclusive, autoDelete, arguments));
+        return this;
+    }
+
+    /**
+     * 声明分片队列的全部分片，集群中各分片的主副本分散到不同节点
+     */
+    public Topology shardedQueue(ShardedQueue sharded) {
+        for (int i = 0; i < sharded.shards(); i++) {
+            queue(sharded.shard(i), false, false, false, ShardedQueue.SHARD_ARGUMENTS);
+        }
+        return this;
+    }
+
+    public Topology binding(String queue, String exchange, String routingKey) {
+        return binding(queue, exchange, routingKey, null);
+    }
+
+    public Topology binding(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+        bindings.add(new Binding(queue, exchange, routingKey, arguments));
+        return this;
+    }
+
+    public List<Exchange> exchanges() {
+        return Collections.unmodifiableList(exchanges);
+    }
+
+    public List<Queue> queues() {
+        return Collections.unmodifiableList(queues);
+    }
+
+    public List<Binding> bindings() {
+        return Collections.unmodifiableList(bindings);
+    }
+
+    /**
+     * 在通道上声明全部对象，已在该连接上声明过的跳过
+     * @return 本次实际声明的对象数
+     */
+    public int apply(Channel channel) throws IOException {
+        Set<String> declared = declaredOn(channel.getConnection());
+        List<String> pending = new ArrayList<String>();
+        //先交换机和队列，再绑定，broker按顺序处理同一通道上的命令
+        for (Exchange exchange : exchanges) {
+            if (!declared.contains(exchange.key())) {
+                channel.exchangeDeclareNoWait(exchange.name, exchange.type, exchange.durable, exchange.autoDelete,
+                        false, exchange.arguments);
+                pending.add(exchange.key());
+            }
+        }
+        for (Queue queue : queues) {
+            if (!declared.contains(queue.key())) {
+                channel.queueDeclareNoWait(queue.name, queue.durable, queue.exclusive, queue.autoDelete, queue.arguments);
+                pending.add(queue.key());
+            }
+        }
+        for (Binding binding : bindings) {
+            if (!declared.contains(binding.key())) {
+                channel.queueBindNoWait(binding.queue, binding.exchange, binding.routingKey, binding.arguments);
+                pending.add(binding.key());
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        //NoWait的声明失败时broker会关闭通道，用一次同步调用确认前面的命令都已成功
+        fence(channel);
+        declared.addAll(pending);
+        return pending.size();
+    }
+
+    /**
+     * 忘记某个连接上的声明记录，下次apply会重新声明
+     */
+    public static void forget(Connection connection) {
+        DECLARED.remove(connection);
+    }
+
+    private void fence(Channel channel) throws IOException {
+        if (!queues.isEmpty()) {
+            channel.queueDeclarePassive(queues.get(queues.size() - 1).name);
+        } else if (!exchanges.isEmpty()) {
+            channel.exchangeDeclarePassive(exchanges.get(exchanges.size() - 1).name);
+        } else {
+            channel.exchangeDeclarePassive("amq.direct");
+        }
+    }
+
+    private static Set<String> declaredOn(Connection connection) {
+        synchronized (DECLARED) {
+            Set<String> declared = DECLARED.get(connection);
+            if (declared == null) {
+                declared = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                DECLARED.put(connection, declared);
+                //连接断开后broker上的非持久对象可能已不存在，清空记录
+                connection.addShutdownListener(cause -> forget(connection));
+            }
+            return declared;
+        }
+    }
+
+    /**
+     * 从类路径资源加载
+     */
+    public static Topology fromResource(String name) throws IOException {
+        InputStream in = Topology.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("topology resource not found: " + name);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return load(reader);
+        }
+    }
+
+    /**
+     * 从文本加载，格式见类注释
+     */
+    public static Topology load(Reader reader) throws IOException {
+        Topology topology = new Topology();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> positional = new ArrayList<String>();
+            Map<String, Object> options = new HashMap<String, Object>();
+            for (String token : line.split("\\s+")) {
+                int eq = token.indexOf('=');
+                if (eq > 0) {
+                    options.put(token.substring(0, eq), parseValue(token.substring(eq + 1)));
+                } else {
+                    positional.add("\"\"".equals(token) ? "" : token);
+                }
+            }
+            try {
+                switch (positional.get(0)) {
+                    case "exchange":
+                        topology.exchange(positional.get(1),
+                                BuiltinExchangeType.valueOf(positional.get(2).toUpperCase()),
+                                flag(options, "durable"), flag(options, "autoDelete"), nullIfEmpty(options));
+                        break;
+                    case "queue":
+                        topology.queue(positional.get(1), flag(options, "durable"), flag(options, "exclusive"),
+                                flag(options, "autoDelete"), nullIfEmpty(options));
+                        break;
+                    case "binding":
+                        topology.binding(positional.get(1), positional.get(2),
+                                positional.size() > 3 ? positional.get(3) : "", nullIfEmpty(options));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown kind " + positional.get(0));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("invalid topology line " + lineNumber + ": " + line, e);
+            }
+        }
+        return topology;
+    }
+
+    private static Object parseValue(String value) {
+        if ("true".equals(value) || "false".equals(value)) {
+            return Boolean.valueOf(value);
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static boolean flag(Map<String, Object> options, String name) {
+        return Boolean.TRUE.equals(options.remove(name));
+    }
+
+    private static Map<String, Object> nullIfEmpty(Map<String, Object> options) {
+        return options.isEmpty() ? null : options;
+    }
+
+    public static final class Exchange {
+        public final String name;
+        public final BuiltinExchangeType type;
+        public final boolean durable;
+        public final boolean autoDelete;
+        public final Map<String, Object> arguments;
+
+        Exchange(String name, BuiltinExchangeType type, boolean durable, boolean autoDelete, Map<String, Object> arguments) {
+            this.name = name;
+            this.type = type;
+            this.durable = durable;
+            this.autoDelete = autoDelete;
+            this.arguments = arguments;
+        }
+
+        String key() {
+            return "exchange:" + name;
+        }
+    }
+
+    public static final class Queue {
+        public final String name;
+        public final boolean durable;
+        public final boolean exclusive;
+        public final boolean autoDelete;
+        public final Map<String, Object> arguments;
+
+        Queue(String name, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) {
+            this.name = name;
+            this.durable = durable;
+            this.exclusive = exclusive;
+            this.autoDelete = autoDelete;
+            this.arguments = arguments;
+        }
+
+        String key() {
+            return "queue:" + name;
+        }
+    }
+
+    public static final class Binding {
+        public final String queue;
+        public final String exchange;
+        public final String routingKey;
+        public final Map<String, Object> arguments;
+
+        Binding(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+            this.queue = queue;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.arguments = arguments;
+        }
+
+        String key() {
+            return "binding:" + queue + "|" + exchange + "|" + routingKey;
+        }
+    }
+}
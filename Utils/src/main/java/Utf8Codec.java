@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8文本编解码
+ * 纯ASCII文本直接逐字符写入，不经过CharsetEncoder；解码返回Utf8Text视图，用到时才真正解码
+ */
+public final class Utf8Codec implements MessageCodec<CharSequence> {
+
+    public static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(CharSequence value) {
+        return encode(value, false);
+    }
+
+    @Override
+    public byte[] encodePooled(CharSequence value) {
+        return encode(value, true);
+    }
+
+    @Override
+    public Utf8Text decode(byte[] body) {
+        return new Utf8Text(body, 0, body.length);
+    }
+
+    private static byte[] encode(CharSequence value, boolean pooled) {
+        int length = value.length();
+        if (isAscii(value, length)) {
+            byte[] body = pooled ? BufferPool.exact(length) : new byte[length];
+            for (int i = 0; i < length; i++) {
+                body[i] = (byte) value.charAt(i);
+            }
+            return body;
+        }
+        //UTF-8每个char最多3个字节（代理对两个char共4个字节）
+        ByteBuffer buffer = BufferPool.scratch(length * 3);
+        CharsetEncoder encoder = ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(value), buffer, true);
+        if (result.isError()) {
+            throw new IllegalArgumentException("malformed text: " + result);
+        }
+        encoder.flush(buffer);
+        return BufferPool.copyOut(buffer, pooled);
+    }
+
+    private static boolean isAscii(CharSequence value, int length) {
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
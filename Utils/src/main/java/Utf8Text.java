@@ -0,0 +1,93 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 收到的UTF-8消息体上的文本视图
+ * 纯ASCII内容直接按字节访问，不分配String；含多字节字符时第一次访问才解码并缓存结果
+ */
+public final class Utf8Text implements CharSequence {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private String decoded;//非ASCII内容或调用toString后才有值
+    private int ascii = -1;//-1未检测，0否，1是
+
+    public Utf8Text(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * 内容是否全部为ASCII字符
+     */
+    public boolean isAscii() {
+        if (ascii < 0) {
+            ascii = 1;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                if (bytes[i] < 0) {
+                    ascii = 0;
+                    break;
+                }
+            }
+        }
+        return ascii == 1;
+    }
+
+    /**
+     * 消息体的字节长度
+     */
+    public int byteLength() {
+        return length;
+    }
+
+    /**
+     * 逐字节比较，不解码
+     */
+    public boolean contentEquals(byte[] other) {
+        if (other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return isAscii() ? length : toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (isAscii()) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+            }
+            return (char) bytes[offset + index];
+        }
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (isAscii()) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+            }
+            return new Utf8Text(bytes, offset + start, end - start);
+        }
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (decoded == null) {
+            decoded = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,165 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 虚拟线程分发的消费者包装
+ * 客户端的消费者线程池只负责把每条消息交给一个虚拟线程，handleDelivery阻塞（如sleep、同步IO）不会卡住同一通道上的其他消息；
+ * 并发数由通道的预取数限制，不需要预先设定平台线程池大小。
+ * 指定了顺序键时，相同键的消息按投递顺序串行处理，不同键之间并发。
+ * 手动确认模式下由本类在处理完成后确认，被包装的消费者不要自己ack：
+ * 同一通道上的确认统一经过AckTracker，只确认从最早未完成消息之前连续完成的部分，乱序完成也不会提前确认别的消息。
+ * 处理抛出异常的消息单独basicNack并重新入队。
+ */
+public class VirtualThreadConsumer implements Consumer {
+
+    /**
+     * 顺序键，返回null表示该消息不需要保序
+     */
+    public interface OrderKey {
+        Object of(Envelope envelope, AMQP.BasicProperties properties);
+    }
+
+    /**
+     * 按routing key保序
+     */
+    public static final OrderKey BY_ROUTING_KEY = (envelope, properties) -> envelope.getRoutingKey();
+
+    //每个任务一个虚拟线程，WorkerPool的虚拟线程模式也使用它
+    static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("consumer-vt-", 0).factory());
+    //同一通道上的所有虚拟线程消费者共用一个确认跟踪器，deliveryTag是按通道编号的
+    private static final Map<Channel, AckTracker> TRACKERS = Collections.synchronizedMap(new WeakHashMap<Channel, AckTracker>());
+
+    private final Channel channel;
+    private final Consumer delegate;
+    private final OrderKey orderKey;
+    private final AckTracker tracker;
+    //每个顺序键上最后一个任务，新消息接在它后面执行
+    private final Map<Object, CompletableFuture<Void>> lanes = new ConcurrentHashMap<Object, CompletableFuture<Void>>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 自动确认、不保序
+     */
+    public VirtualThreadConsumer(Channel channel, Consumer delegate) {
+        this(channel, delegate, false, null);
+    }
+
+    /**
+     * @param channel 消费所在的通道
+     * @param delegate 实际的消费者
+     * @param ackOnComplete basicConsume时autoAck为false，由本类在处理完成后确认
+     * @param orderKey 顺序键，null表示每条消息各自一个虚拟线程
+     */
+    public VirtualThreadConsumer(Channel channel, Consumer delegate, boolean ackOnComplete, OrderKey orderKey) {
+        this.channel = channel;
+        this.delegate = delegate;
+        this.orderKey = orderKey;
+        this.tracker = ackOnComplete ? trackerFor(channel) : null;
+    }
+
+    /**
+     * 已交给虚拟线程但尚未处理完的消息数
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        if (tracker != null) {
+            //在分发线程上登记，保证跟踪器里的顺序就是投递顺序
+            tracker.delivered(envelope.getDeliveryTag());
+        }
+        inFlight.incrementAndGet();
+        Runnable task = () -> process(consumerTag, envelope, properties, body);
+        Object key = orderKey == null ? null : orderKey.of(envelope, properties);
+        if (key == null) {
+            EXECUTOR.execute(task);
+            return;
+        }
+        CompletableFuture<Void> next = lanes.compute(key, (k, tail) ->
+                tail == null ? CompletableFuture.runAsync(task, EXECUTOR) : tail.thenRunAsync(task, EXECUTOR));
+        //该键上没有后续消息时移除，避免键无限增长
+        next.whenComplete((v, e) -> lanes.remove(key, next));
+    }
+
+    private void process(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        boolean ok = true;
+        try {
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+        } catch (Throwable e) {
+            ok = false;
+            System.out.println(" [" + consumerTag + "] failed: " + e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        if (tracker != null) {
+            settle(envelope.getDeliveryTag(), ok);
+        }
+    }
+
+    private void settle(long deliveryTag, boolean ok) {
+        try {
+            //多个虚拟线程同时完成时，计算水位和发送确认必须在同一把锁内，
+            //否则ack(8, multiple)可能先于ack(5, multiple)发出，broker会以unknown delivery tag关闭通道
+            synchronized (tracker) {
+                if (!ok) {
+                    channel.basicNack(deliveryTag, false, true);
+                }
+                long watermark = tracker.completed(deliveryTag, ok);
+                if (watermark > tracker.lastAcked) {
+                    channel.basicAck(watermark, true);
+                    tracker.lastAcked = watermark;
+                }
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            //通道断开，未确认的消息会被broker重新投递
+        }
+    }
+
+    private static AckTracker trackerFor(Channel channel) {
+        synchronized (TRACKERS) {
+            return TRACKERS.computeIfAbsent(channel, c -> new AckTracker());
+        }
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+        delegate.handleConsumeOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        delegate.handleCancelOk(consumerTag);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException {
+        delegate.handleCancel(consumerTag);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        delegate.handleShutdownSignal(consumerTag, sig);
+    }
+
+    @Override
+    public void handleRecoverOk(String consumerTag) {
+        delegate.handleRecoverOk(consumerTag);
+    }
+}
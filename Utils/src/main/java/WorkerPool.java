@@ -0,0 +1,378 @@
+import com.rabbitmq.client.*;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 工作队列消费者池
+ * 任意数量的worker监听同一个队列，每个worker独占一个通道并有自己的计数器；
+ * 消息处理完成后才确认，确认按条数或时间合并为一次basicAck(tag, multiple=true)
+ * 虚拟线程模式下每条消息在自己的虚拟线程上处理，一个worker可以同时处理预取数那么多条阻塞型任务，
+ * 乱序完成的消息经AckTracker排序，只确认连续完成的部分
+ * 自适应模式下每个worker的预取数随处理耗时调整：按处理耗时的EWMA和通道往返时间估算，
+ * 处理快的worker在途消息足以覆盖确认的往返，不会空等下一条；处理慢的worker保持1条，消息不会排在它后面等待
+ */
+public class WorkerPool implements AutoCloseable {
+
+    /**
+     * 消息处理逻辑，抛出异常的消息会被重新放回队列
+     */
+    public interface Worker {
+        void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception;
+    }
+
+    private static final long STOP_TIMEOUT_SECONDS = 30;//停止worker时等待在途消息的时间
+    private static final long RETUNE_INTERVAL_MILLIS = 500;//自适应模式下重新计算预取数的间隔
+    private static final long ROUND_TRIP_SAMPLE_MILLIS = 5000;//预取数不变时，最长多久重新测一次通道往返时间
+    private static final double EWMA_ALPHA = 0.2;//处理耗时和往返时间的平滑系数
+
+    private final String queueName;
+    private final int prefetch;
+    private final int ackBatchSize;
+    private final boolean virtualThreads;
+    private final boolean adaptive;
+    private final Map<String, WorkerConsumer> workers = new ConcurrentHashMap<String, WorkerConsumer>();
+    private final ScheduledExecutorService ackFlusher;
+    private final ScheduledFuture<?> flushTask;
+    private final ScheduledFuture<?> retuneTask;
+
+    /**
+     * @param queueName 监听的队列
+     * @param prefetch 每个worker未确认消息的上限，0表示不限制（平均分配）
+     * @param ackBatchSize 累计多少条消息后合并确认一次
+     * @param ackIntervalMillis 未满一批时，最长多久确认一次
+     */
+    public WorkerPool(String queueName, int prefetch, int ackBatchSize, long ackIntervalMillis) {
+        this(queueName, prefetch, ackBatchSize, ackIntervalMillis, false);
+    }
+
+    /**
+     * @param virtualThreads 是否在虚拟线程上处理消息，此时prefetch即每个worker的并发数
+     */
+    public WorkerPool(String queueName, int prefetch, int ackBatchSize, long ackIntervalMillis, boolean virtualThreads) {
+        this(queueName, prefetch, ackBatchSize, ackIntervalMillis, virtualThreads, false);
+    }
+
+    /**
+     * 自适应预取的能者多劳模式，每个worker从预取1条、逐条确认开始，按测得的处理耗时调整
+     * 预取数通过通道级（global）的basicQos在运行中修改，所以每个worker的通道上只有它一个消费者
+     * @param maxPrefetch 每个worker预取数的上限
+     * @param ackBatchSize 处理快的worker最多累计多少条合并确认，处理慢的worker逐条确认
+     */
+    public static WorkerPool adaptive(String queueName, int maxPrefetch, int ackBatchSize, long ackIntervalMillis) {
+        if (maxPrefetch < 1) {
+            throw new IllegalArgumentException("maxPrefetch must be positive");
+        }
+        return new WorkerPool(queueName, maxPrefetch, ackBatchSize, ackIntervalMillis, false, true);
+    }
+
+    private WorkerPool(String queueName, int prefetch, int ackBatchSize, long ackIntervalMillis, boolean virtualThreads,
+                       boolean adaptive) {
+        if (prefetch < 0 || ackBatchSize < 1 || ackIntervalMillis < 1) {
+            throw new IllegalArgumentException("invalid prefetch, ackBatchSize or ackIntervalMillis");
+        }
+        this.queueName = queueName;
+        this.prefetch = prefetch;
+        this.virtualThreads = virtualThreads;
+        this.adaptive = adaptive;
+        //批次不能超过预取数，否则broker不再投递，只能等定时确认
+        this.ackBatchSize = prefetch == 0 ? ackBatchSize : Math.min(ackBatchSize, prefetch);
+        this.ackFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-pool-ack-" + queueName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushTask = ackFlusher.scheduleWithFixedDelay(this::flushAll, ackIntervalMillis, ackIntervalMillis, TimeUnit.MILLISECONDS);
+        this.retuneTask = adaptive ? ackFlusher.scheduleWithFixedDelay(this::retuneAll,
+                RETUNE_INTERVAL_MILLIS, RETUNE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * 增加一个worker
+     * @param name worker名字，池内唯一
+     * @param worker 消息处理逻辑
+     */
+    public void addWorker(String name, Worker worker) throws IOException, TimeoutException {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        WorkerConsumer consumer = new WorkerConsumer(channel, name, worker);
+        if (workers.putIfAbsent(name, consumer) != null) {
+            ConnectionManager.getInstance().returnChannel(channel);
+            throw new IllegalArgumentException("duplicate worker name: " + name);
+        }
+        try {
+            if (adaptive) {
+                //从1条开始，同时测一次通道往返时间
+                consumer.applyPrefetch(1);
+            } else if (prefetch > 0) {
+                channel.basicQos(prefetch);
+            }
+            consumer.tag = channel.basicConsume(queueName, false, consumer);
+        } catch (IOException | RuntimeException e) {
+            workers.remove(name);
+            ConnectionManager.getInstance().returnChannel(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * 停止并移除一个worker，已处理的消息先确认
+     */
+    public void removeWorker(String name) throws IOException {
+        WorkerConsumer consumer = workers.remove(name);
+        if (consumer != null) {
+            consumer.stop();
+        }
+    }
+
+    /**
+     * 某个worker已处理的消息数
+     */
+    public long processed(String name) {
+        WorkerConsumer consumer = workers.get(name);
+        return consumer == null ? 0 : consumer.processed.get();
+    }
+
+    /**
+     * 某个worker当前的预取数，0表示不限制
+     */
+    public int prefetch(String name) {
+        WorkerConsumer consumer = workers.get(name);
+        return consumer == null ? 0 : consumer.currentPrefetch;
+    }
+
+    /**
+     * 所有worker已处理的消息数
+     */
+    public Map<String, Long> processedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, WorkerConsumer> entry : workers.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().processed.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushTask.cancel(false);
+        if (retuneTask != null) {
+            retuneTask.cancel(false);
+        }
+        ackFlusher.shutdown();
+        for (String name : workers.keySet()) {
+            removeWorker(name);
+        }
+    }
+
+    private void flushAll() {
+        for (WorkerConsumer consumer : workers.values()) {
+            try {
+                consumer.flushAcks();
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开，未确认的消息会被broker重新投递
+            }
+        }
+    }
+
+    private void retuneAll() {
+        for (WorkerConsumer consumer : workers.values()) {
+            try {
+                consumer.retune();
+            } catch (IOException | AlreadyClosedException e) {
+                //通道断开
+            }
+        }
+    }
+
+    private final class WorkerConsumer extends DefaultConsumer {
+        private final String name;
+        private final Worker worker;
+        private final AtomicLong processed = new AtomicLong();
+        private final LongAdder processedMetric;
+        private final LatencyRecorder processing = Metrics.timer(Metrics.DELIVERY_PROCESSING);
+        private final AckTracker tracker = new AckTracker();
+        private volatile String tag;
+        //可以合并确认到的最大deliveryTag、上次确认到的tag及其后完成的条数，只在持有本对象锁时读写
+        private long lastProcessedTag;
+        private long lastAckedTag;
+        private int unacked;
+        //当前的预取数和合并确认的条数，自适应模式下由retune修改；合并确认的条数不超过预取数，
+        //否则worker拿着全部预取的消息等凑满一批，broker不再投递，只能等定时确认
+        private volatile int currentPrefetch = prefetch;
+        private int ackBatch = adaptive ? 1 : ackBatchSize;
+        //处理耗时和通道往返时间的EWMA，纳秒；处理耗时只由消费线程写
+        private volatile double handlingNanos;
+        private volatile double roundTripNanos;
+        private volatile long roundTripSampledAt;//上次测往返时间的System.nanoTime()
+
+        WorkerConsumer(Channel channel, String name, Worker worker) {
+            super(channel);
+            this.name = name;
+            this.worker = worker;
+            this.processedMetric = Metrics.counter(queueName + "." + name + ".processed");
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            tracker.delivered(envelope.getDeliveryTag());
+            if (!virtualThreads) {
+                process(envelope, properties, body);
+                return;
+            }
+            VirtualThreadConsumer.EXECUTOR.execute(() -> {
+                try {
+                    process(envelope, properties, body);
+                } catch (IOException | AlreadyClosedException e) {
+                    //通道断开，未确认的消息会被broker重新投递
+                }
+            });
+        }
+
+        private void process(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            Metrics.recordDelivery(properties);
+            long start = System.nanoTime();
+            try {
+                worker.handle(envelope, properties, body);
+            } catch (Exception e) {
+                System.out.println(" [" + name + "] failed: " + e);
+                synchronized (this) {
+                    //单独拒绝这一条，之前处理成功的消息照常合并确认
+                    getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+                    advance(tracker.completed(envelope.getDeliveryTag(), false));
+                }
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            processing.recordNanos(elapsed);
+            if (adaptive) {
+                double average = handlingNanos;
+                handlingNanos = average == 0 ? elapsed : average + EWMA_ALPHA * (elapsed - average);
+            }
+            processed.incrementAndGet();
+            processedMetric.increment();
+            synchronized (this) {
+                advance(tracker.completed(envelope.getDeliveryTag(), true));
+                if (++unacked >= ackBatch) {
+                    flushAcks();
+                }
+            }
+        }
+
+        private void advance(long watermark) {
+            if (watermark > lastProcessedTag) {
+                lastProcessedTag = watermark;
+            }
+        }
+
+        synchronized void flushAcks() throws IOException {
+            if (lastProcessedTag > lastAckedTag) {
+                getChannel().basicAck(lastProcessedTag, true);
+                lastAckedTag = lastProcessedTag;
+            }
+            unacked = 0;
+        }
+
+        /**
+         * 按处理耗时和往返时间重新计算预取数
+         * 一次往返期间能处理完的条数为overlap，预取数=合并确认的条数+overlap，确认发出后到下一条到达之前手上还有消息可处理；
+         * 处理耗时远大于往返时间时overlap为0，逐条确认、预取1条
+         */
+        void retune() throws IOException {
+            double handling = handlingNanos;
+            if (handling <= 0) {
+                return;
+            }
+            int overlap = (int) Math.min(prefetch, roundTripNanos / handling);
+            int batch = Math.min(ackBatchSize, 1 + overlap);
+            int target = Math.max(1, Math.min(prefetch, batch + overlap));
+            if (target != currentPrefetch
+                    || System.nanoTime() - roundTripSampledAt > TimeUnit.MILLISECONDS.toNanos(ROUND_TRIP_SAMPLE_MILLIS)) {
+                //预取数不变时也定期重发一次相同的basicQos，往返时间的估计跟得上网络和broker负载的变化
+                applyPrefetch(target);
+            }
+            synchronized (this) {
+                ackBatch = Math.min(batch, currentPrefetch);
+                if (unacked >= ackBatch) {
+                    flushAcks();
+                }
+            }
+        }
+
+        /**
+         * 修改通道级预取数，basicQos是同步调用，顺便用它的耗时更新往返时间
+         * 预取数变小时同时收紧合并确认的条数
+         */
+        void applyPrefetch(int target) throws IOException {
+            long start;
+            long end;
+            synchronized (this) {
+                start = System.nanoTime();
+                getChannel().basicQos(target, true);
+                end = System.nanoTime();
+                currentPrefetch = target;
+                if (ackBatch > target) {
+                    ackBatch = target;
+                    if (unacked >= ackBatch) {
+                        flushAcks();
+                    }
+                }
+            }
+            double sample = end - start;
+            double average = roundTripNanos;
+            roundTripNanos = average == 0 ? sample : average + EWMA_ALPHA * (sample - average);
+            roundTripSampledAt = end;
+        }
+
+        void stop() throws IOException {
+            try {
+                if (tag != null && getChannel().isOpen()) {
+                    getChannel().basicCancel(tag);
+                }
+                if (!awaitPending()) {
+                    //还有消息没处理完，关闭通道让broker重新投递，不能带着未确认消息放回连接池
+                    getChannel().close();
+                    return;
+                }
+                flushAcks();
+                if (prefetch > 0 && getChannel().isOpen()) {
+                    //通道会被复用，恢复默认的预取设置
+                    getChannel().basicQos(0);
+                    if (adaptive) {
+                        getChannel().basicQos(0, true);
+                    }
+                }
+            } catch (AlreadyClosedException | TimeoutException e) {
+                //通道已断开，无需再确认
+            } finally {
+                ConnectionManager.getInstance().returnChannel(getChannel());
+            }
+        }
+
+        /**
+         * 等待已投递的消息处理完
+         */
+        private boolean awaitPending() {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS);
+            while (tracker.pending() > 0 && getChannel().isOpen()) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 客户端第一次重连前传入0，之后依次为1、2……，上限依次为initial、2*initial……，不超过max
+ */
+public class JitteredBackoffTest {
+
+    private static final int SAMPLES = 20000;
+
+    @Test
+    public void ceilingDoublesFromInitial() {
+        JitteredBackoff backoff = new JitteredBackoff(100, 5000);
+        long[] ceilings = {100, 200, 400, 800, 1600, 3200, 5000, 5000};
+        for (int attempt = 0; attempt < ceilings.length; attempt++) {
+            assertCeiling(backoff, attempt, ceilings[attempt]);
+        }
+    }
+
+    @Test
+    public void largeAttemptsStayAtMax() {
+        JitteredBackoff backoff = new JitteredBackoff(100, 5000);
+        assertCeiling(backoff, 30, 5000);
+        assertCeiling(backoff, Integer.MAX_VALUE, 5000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowInitial() {
+        new JitteredBackoff(100, 50);
+    }
+
+    /**
+     * 每次取样都落在[0, ceiling]内，取样足够多时最大值接近ceiling（差5%以上的概率可以忽略）
+     */
+    private static void assertCeiling(JitteredBackoff backoff, int attempt, long ceiling) {
+        long max = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = backoff.getDelay(attempt);
+            assertTrue("attempt " + attempt + ": delay " + delay + " outside [0, " + ceiling + "]",
+                    delay >= 0 && delay <= ceiling);
+            max = Math.max(max, delay);
+        }
+        assertTrue("attempt " + attempt + ": max delay " + max + " far below " + ceiling, max >= ceiling * 95 / 100);
+    }
+}
@@ -0,0 +1,57 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 复用属性编码消息头时不分配对象
+ * 用线程分配计数器统计，预热几轮后只看最后一轮；发布路径上的完整对比见perfTest中的AllocationCheck
+ */
+public class ReusablePropertiesTest {
+
+    private static final int MESSAGES = 100000;
+    private static final int ROUNDS = 5;
+    private static final double MAX_BYTES_PER_MESSAGE = 1.0;//留给偶发的扩容
+
+    @Test
+    public void headerEncodingDoesNotAllocate() throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        AMQP.BasicProperties template = new AMQP.BasicProperties.Builder()
+                .contentType(MessageCodecs.UTF8.contentType())
+                .deliveryMode(2)
+                .build();
+        ReusableProperties properties = new ReusableProperties(template);
+        //组帧时客户端把消息头写进帧的缓冲区，这里复用同一个缓冲区，只统计属性的分配
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(1024);
+        ContentHeaderPropertyWriter writer = new ContentHeaderPropertyWriter(new DataOutputStream(frame));
+        long thread = Thread.currentThread().threadId();
+        double perMessage = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < MESSAGES; i++) {
+                frame.reset();
+                properties.next().writePropertiesTo(writer);
+            }
+            perMessage = (threads.getThreadAllocatedBytes(thread) - start) / (double) MESSAGES;
+        }
+        assertTrue("ReusableProperties allocates " + perMessage + " bytes/msg", perMessage <= MAX_BYTES_PER_MESSAGE);
+    }
+
+    @Test
+    public void eachMessageGetsANewMessageId() {
+        ReusableProperties properties = new ReusableProperties(null);
+        String first = properties.next().getMessageId();
+        String second = properties.next().getMessageId();
+        assertNotEquals(first, second);
+    }
+}
@@ -0,0 +1,37 @@
+import com.sake.benchmark.DemoBridge;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RpcBenchmark使用的RPC服务端和客户端，连接进程内的broker
+ * 服务端原样返回请求，不做计算，测得的是RPCServer和RPCClient本身的开销
+ */
+public class RpcBridge implements DemoBridge.Rpc {
+
+    private final RPCServer server;
+    private final RPCClient client;
+
+    public RpcBridge() throws IOException, TimeoutException {
+        System.setProperty(ConnectionUtil.BROKER_PROPERTY, "embedded");
+        server = new RPCServer(Registration.RPC_QUEUE_NAME, 1, 1, 1, request -> request);
+        server.start();
+        client = new RPCClient();
+    }
+
+    @Override
+    public String call(String message) throws IOException, InterruptedException {
+        return client.call(message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        try {
+            server.shutdown(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
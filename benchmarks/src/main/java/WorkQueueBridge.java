@@ -0,0 +1,45 @@
+import com.rabbitmq.client.Channel;
+import com.sake.benchmark.DemoBridge;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * WorkQueueBenchmark使用的发布者和消费者池，连接进程内的broker
+ * 消费者与workQueue的能者多劳模式一致：自适应预取、处理完成后合并确认
+ */
+public class WorkQueueBridge implements DemoBridge.WorkQueue {
+
+    private static final String WORKER_NAME = "bench";
+
+    private final WorkerPool pool;
+    private final Channel channel;
+    private final FastPublisher publisher;
+    private final FastPublisher.Route route;
+    private final byte[] task = MessageCodecs.UTF8.encode("task..42");
+
+    public WorkQueueBridge() throws IOException, TimeoutException {
+        System.setProperty(ConnectionUtil.BROKER_PROPERTY, "embedded");
+        pool = WorkerPool.adaptive(Registration.WORK_QUEUE_NAME, 32, 10, 200);
+        pool.addWorker(WORKER_NAME, (envelope, properties, body) -> MessageCodecs.UTF8.decode(body));
+        channel = ConnectionManager.getInstance().borrowChannel();
+        publisher = new FastPublisher(channel);
+        route = publisher.route("", Registration.WORK_QUEUE_NAME);
+    }
+
+    @Override
+    public void publish() throws IOException {
+        publisher.publish(route, task);
+    }
+
+    @Override
+    public long processed() {
+        return pool.processed(WORKER_NAME);
+    }
+
+    @Override
+    public void close() throws IOException {
+        ConnectionManager.getInstance().returnChannel(channel);
+        pool.close();
+    }
+}
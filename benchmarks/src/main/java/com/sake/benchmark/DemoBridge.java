@@ -0,0 +1,47 @@
+package com.sake.benchmark;
+
+import java.io.IOException;
+
+/**
+ * 基准测试调用demo代码的入口
+ * Utils和RPC模块的类都在默认包中，命名包里的代码不能直接引用，
+ * 由默认包中的RpcBridge、WorkQueueBridge实现这里的接口，基准测试按类名加载一次，之后的调用没有反射开销
+ */
+public final class DemoBridge {
+
+    /**
+     * RPCClient.call的一次同步往返，服务端是RPCServer
+     */
+    public interface Rpc extends AutoCloseable {
+        String call(String message) throws IOException, InterruptedException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * 用FastPublisher向工作队列发布一条消息，由WorkerPool的worker处理并确认
+     */
+    public interface WorkQueue extends AutoCloseable {
+        void publish() throws IOException;
+
+        /**
+         * worker已处理的消息数
+         */
+        long processed();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private DemoBridge() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot load " + className, e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.sake.benchmark;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * 与Registration以及各demo一致的交换机、队列和绑定
+ */
+final class DemoTopology {
+
+    static final String DIRECT_EXCHANGE_NAME = "TEST_DIRECT_EXCHANGE";//direct交换机
+    static final String TOPIC_EXCHANGE_NAME = "TEST_TOPIC_EXCHANGE";//topic交换机
+    static final String FANOUT_EXCHANGE_NAME = "TEST_FANOUT_EXCHANGE";//fanout交换机
+    static final String SMS_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_SMS";//短信队列
+    static final String EMAIL_QUEUE_NAME = "FANOUT_EXCHANGE_QUEUE_EMAIL";//邮件队列
+    static final String WORK_QUEUE_NAME = "TEST_WORK_QUEUE";//workqueue队列
+    static final String HELLO_QUEUE_NAME = "SAKE_FIRST_QUEUE";//helloworld队列
+    static final String TOPIC_QUEUE_NAME_01 = "TOPIC_EXCHANGE_QUEUE_01";//topic队列1
+    static final String TOPIC_QUEUE_NAME_02 = "TOPIC_EXCHANGE_QUEUE_02";//topic队列2
+    static final String RPC_QUEUE_NAME = "RPC_QUEUE";//RPC队列
+
+    static final String[] QUEUES = {HELLO_QUEUE_NAME, WORK_QUEUE_NAME, EMAIL_QUEUE_NAME, SMS_QUEUE_NAME,
+            TOPIC_QUEUE_NAME_01, TOPIC_QUEUE_NAME_02, RPC_QUEUE_NAME};
+
+    private DemoTopology() {
+    }
+
+    static void declare(Channel channel) throws IOException {
+        channel.exchangeDeclare(FANOUT_EXCHANGE_NAME, BuiltinExchangeType.FANOUT);
+        channel.exchangeDeclare(DIRECT_EXCHANGE_NAME, BuiltinExchangeType.DIRECT);
+        channel.exchangeDeclare(TOPIC_EXCHANGE_NAME, BuiltinExchangeType.TOPIC);
+        for (String queue : QUEUES) {
+            channel.queueDeclare(queue, false, false, false, null);
+        }
+        //PublishSubscrible
+        channel.queueBind(SMS_QUEUE_NAME, FANOUT_EXCHANGE_NAME, "");
+        channel.queueBind(EMAIL_QUEUE_NAME, FANOUT_EXCHANGE_NAME, "");
+        //Routing
+        channel.queueBind(SMS_QUEUE_NAME, DIRECT_EXCHANGE_NAME, "sms");
+        channel.queueBind(EMAIL_QUEUE_NAME, DIRECT_EXCHANGE_NAME, "email");
+        //Topic
+        channel.queueBind(TOPIC_QUEUE_NAME_01, TOPIC_EXCHANGE_NAME, "*.orange.*");
+        channel.queueBind(TOPIC_QUEUE_NAME_02, TOPIC_EXCHANGE_NAME, "*.*.rabbit");
+        channel.queueBind(TOPIC_QUEUE_NAME_02, TOPIC_EXCHANGE_NAME, "lazy.#");
+    }
+}
@@ -0,0 +1,87 @@
+package com.sake.benchmark;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.sake.broker.EmbeddedBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发布路径：helloworld的默认交换机，PublishSubscrible、Routing、Topic的fanout、direct、topic交换机
+ * 每个队列上都挂着自动ACK的消费者，投递在broker的分发线程上异步进行，
+ * 队列写满后发布方会被阻塞，所以稳定后测得的是发布+路由+投递的吞吐
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishBenchmark {
+
+    @Param({"32", "1024"})
+    public int messageSize;
+
+    private EmbeddedBroker broker;
+    private Channel channel;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        broker = new EmbeddedBroker();
+        Connection connection = broker.newConnection();
+        Channel admin = connection.createChannel();
+        DemoTopology.declare(admin);
+        for (String queue : DemoTopology.QUEUES) {
+            Channel consumerChannel = connection.createChannel();
+            consumerChannel.basicConsume(queue, true, new DefaultConsumer(consumerChannel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                }
+            });
+        }
+        channel = connection.createChannel();
+        body = new byte[messageSize];
+    }
+
+    @Benchmark
+    public void helloworldDefaultExchange() throws IOException {
+        channel.basicPublish("", DemoTopology.HELLO_QUEUE_NAME, null, body);
+    }
+
+    @Benchmark
+    public void publishSubscribeFanout() throws IOException {
+        channel.basicPublish(DemoTopology.FANOUT_EXCHANGE_NAME, "", null, body);
+    }
+
+    @Benchmark
+    public void routingDirect() throws IOException {
+        channel.basicPublish(DemoTopology.DIRECT_EXCHANGE_NAME, "sms", null, body);
+    }
+
+    @Benchmark
+    public void topic() throws IOException {
+        channel.basicPublish(DemoTopology.TOPIC_EXCHANGE_NAME, "quick.orange.rabbit", null, body);
+    }
+
+    @TearDown
+    public void tearDown() {
+        broker.close();
+    }
+}
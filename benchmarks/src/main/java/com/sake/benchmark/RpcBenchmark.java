@@ -0,0 +1,46 @@
+package com.sake.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RPCClient.call的一次往返：客户端经direct reply-to发出请求，RPCServer在工作线程上回复，客户端按correlationId完成future
+ * 服务端不做计算，测得的是RPC框架本身的开销
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RpcBenchmark {
+
+    private DemoBridge.Rpc rpc;
+
+    @Setup
+    public void setUp() {
+        rpc = DemoBridge.load("RpcBridge", DemoBridge.Rpc.class);
+    }
+
+    @Benchmark
+    public String call() throws IOException, InterruptedException {
+        return rpc.call("20");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        rpc.close();
+    }
+}
@@ -0,0 +1,47 @@
+package com.sake.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * workQueue的能者多劳模式：FastPublisher发布，WorkerPool自适应预取、处理完成后合并确认
+ * 消费在客户端的分发线程上进行，队列写满后发布方被阻塞，测得的是消费端能跟上的吞吐
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WorkQueueBenchmark {
+
+    private DemoBridge.WorkQueue workQueue;
+
+    @Setup
+    public void setUp() {
+        workQueue = DemoBridge.load("WorkQueueBridge", DemoBridge.WorkQueue.class);
+    }
+
+    @Benchmark
+    public long consumeAck() throws IOException {
+        workQueue.publish();
+        return workQueue.processed();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workQueue.close();
+    }
+}
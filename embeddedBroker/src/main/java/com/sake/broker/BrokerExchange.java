@@ -0,0 +1,180 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 交换机及其绑定
+ * 绑定表写时复制；direct和topic按routing key缓存路由结果，绑定变化时清空，发布时通常只需一次哈希查找
+ */
+final class BrokerExchange {
+
+    private static final BrokerQueue[] NO_QUEUES = new BrokerQueue[0];
+    private static final int ROUTE_CACHE_LIMIT = 10000;//路由缓存上限，routing key种类过多时整体清空
+
+    final String name;
+    final BuiltinExchangeType type;
+    final boolean durable;
+    final boolean autoDelete;
+    final boolean internal;
+    final Map<String, Object> arguments;
+
+    private volatile Binding[] bindings = new Binding[0];
+    private volatile BrokerQueue[] fanoutQueues = NO_QUEUES;
+    //绑定变化时整体替换，先读缓存再读绑定表，保证不会把旧绑定的结果放进新缓存
+    private volatile Map<String, BrokerQueue[]> routeCache = new ConcurrentHashMap<String, BrokerQueue[]>();
+
+    BrokerExchange(String name, BuiltinExchangeType type, boolean durable, boolean autoDelete, boolean internal,
+                   Map<String, Object> arguments) {
+        this.name = name;
+        this.type = type;
+        this.durable = durable;
+        this.autoDelete = autoDelete;
+        this.internal = internal;
+        this.arguments = arguments;
+    }
+
+    /**
+     * 与已有的交换机属性是否一致，重复声明时检查
+     */
+    boolean equivalent(BuiltinExchangeType type, boolean durable, boolean autoDelete, boolean internal) {
+        return this.type == type && this.durable == durable && this.autoDelete == autoDelete && this.internal == internal;
+    }
+
+    synchronized void bind(BrokerQueue queue, String routingKey, Map<String, Object> arguments) {
+        for (Binding binding : bindings) {
+            if (binding.queue == queue && binding.routingKey.equals(routingKey) && Objects.equals(binding.arguments, arguments)) {
+                return;
+            }
+        }
+        Binding[] next = Arrays.copyOf(bindings, bindings.length + 1);
+        next[bindings.length] = new Binding(queue, routingKey, arguments);
+        update(next);
+    }
+
+    synchronized boolean unbind(BrokerQueue queue, String routingKey, Map<String, Object> arguments) {
+        List<Binding> next = new ArrayList<Binding>(bindings.length);
+        boolean removed = false;
+        for (Binding binding : bindings) {
+            if (!removed && binding.queue == queue && binding.routingKey.equals(routingKey)
+                    && Objects.equals(binding.arguments, arguments)) {
+                removed = true;
+            } else {
+                next.add(binding);
+            }
+        }
+        if (removed) {
+            update(next.toArray(new Binding[0]));
+        }
+        return removed;
+    }
+
+    /**
+     * 删除队列时去掉它的所有绑定
+     * @return 交换机是否还有绑定
+     */
+    synchronized boolean unbindAll(BrokerQueue queue) {
+        List<Binding> next = new ArrayList<Binding>(bindings.length);
+        for (Binding binding : bindings) {
+            if (binding.queue != queue) {
+                next.add(binding);
+            }
+        }
+        if (next.size() != bindings.length) {
+            update(next.toArray(new Binding[0]));
+        }
+        return !next.isEmpty();
+    }
+
+    int bindingCount() {
+        return bindings.length;
+    }
+
+    /**
+     * 找出消息应投递到的队列，每个队列最多出现一次
+     */
+    BrokerQueue[] route(String routingKey) {
+        if (type == BuiltinExchangeType.FANOUT) {
+            return fanoutQueues;
+        }
+        Map<String, BrokerQueue[]> cache = routeCache;
+        BrokerQueue[] cached = cache.get(routingKey);
+        if (cached != null) {
+            return cached;
+        }
+        BrokerQueue[] routed = compute(routingKey);
+        if (cache.size() >= ROUTE_CACHE_LIMIT) {
+            cache.clear();
+        }
+        cache.put(routingKey, routed);
+        return routed;
+    }
+
+    private BrokerQueue[] compute(String routingKey) {
+        Binding[] current = bindings;
+        List<BrokerQueue> queues = new ArrayList<BrokerQueue>(2);
+        String[] words = type == BuiltinExchangeType.TOPIC ? routingKey.split("\\.", -1) : null;
+        for (Binding binding : current) {
+            boolean matched = type == BuiltinExchangeType.TOPIC
+                    ? topicMatches(binding.pattern, 0, words, 0)
+                    : binding.routingKey.equals(routingKey);
+            if (matched && !queues.contains(binding.queue)) {
+                queues.add(binding.queue);
+            }
+        }
+        return queues.isEmpty() ? NO_QUEUES : queues.toArray(new BrokerQueue[0]);
+    }
+
+    private void update(Binding[] next) {
+        bindings = next;
+        List<BrokerQueue> fanout = new ArrayList<BrokerQueue>(next.length);
+        for (Binding binding : next) {
+            if (!fanout.contains(binding.queue)) {
+                fanout.add(binding.queue);
+            }
+        }
+        fanoutQueues = fanout.toArray(new BrokerQueue[0]);
+        routeCache = new ConcurrentHashMap<String, BrokerQueue[]>();
+    }
+
+    /**
+     * AMQP topic语义：*匹配恰好一个单词，#匹配零个或多个单词
+     */
+    static boolean topicMatches(String[] pattern, int p, String[] words, int w) {
+        if (p == pattern.length) {
+            return w == words.length;
+        }
+        if ("#".equals(pattern[p])) {
+            for (int i = w; i <= words.length; i++) {
+                if (topicMatches(pattern, p + 1, words, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (w == words.length) {
+            return false;
+        }
+        return ("*".equals(pattern[p]) || pattern[p].equals(words[w])) && topicMatches(pattern, p + 1, words, w + 1);
+    }
+
+    private static final class Binding {
+        final BrokerQueue queue;
+        final String routingKey;
+        final Map<String, Object> arguments;
+        final String[] pattern;
+
+        Binding(BrokerQueue queue, String routingKey, Map<String, Object> arguments) {
+            this.queue = queue;
+            this.routingKey = routingKey;
+            this.arguments = arguments;
+            this.pattern = routingKey.split("\\.", -1);
+        }
+    }
+}
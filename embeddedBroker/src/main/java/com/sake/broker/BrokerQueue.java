@@ -0,0 +1,238 @@
+package com.sake.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 队列
+ * 新消息进入无锁环形缓冲，被nack/reject重新入队的消息放在单独的双端队列里优先投递。
+ * 投递不占用专门的线程：发布、确认、新增消费者之后由当前线程抢分发标记，抢到的线程按轮询把消息交给
+ * 还有预取额度的消费者，直到没有消息或没有额度；抢不到说明已有线程在分发，它退出前会再检查一次。
+ * 缓冲满时发布者短暂等待后重试，相当于broker的流控。
+ */
+final class BrokerQueue {
+
+    private static final QueueConsumer[] NO_CONSUMERS = new QueueConsumer[0];
+    private static final long FULL_BACKOFF_NANOS = 50000;//缓冲满时发布者每次等待的时间
+
+    final String name;
+    final boolean durable;
+    final boolean exclusive;
+    final boolean autoDelete;
+    final Map<String, Object> arguments;
+    final EmbeddedConnection owner;//排他队列所属的连接
+    final BrokerQueue[] self = {this};//默认交换机路由结果，避免每次发布分配数组
+
+    private final RingBuffer<Message> ready;
+    private final ConcurrentLinkedDeque<Message> requeued = new ConcurrentLinkedDeque<Message>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private volatile QueueConsumer[] consumers = NO_CONSUMERS;
+    private volatile boolean deleted;
+    private boolean hadConsumers;
+    private int nextConsumer;//只在持有分发标记时读写
+
+    BrokerQueue(String name, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments,
+                EmbeddedConnection owner, int capacity) {
+        this.name = name;
+        this.durable = durable;
+        this.exclusive = exclusive;
+        this.autoDelete = autoDelete;
+        this.arguments = arguments;
+        this.owner = owner;
+        this.ready = new RingBuffer<Message>(capacity);
+    }
+
+    boolean equivalent(boolean durable, boolean exclusive, boolean autoDelete) {
+        return this.durable == durable && this.exclusive == exclusive && this.autoDelete == autoDelete;
+    }
+
+    void enqueue(Message message) {
+        while (!ready.offer(message)) {
+            if (deleted) {
+                return;
+            }
+            drain();
+            LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+        }
+        drain();
+    }
+
+    /**
+     * 把未确认的消息放回队首，按原来的顺序重新投递
+     * @param messages 按投递顺序排列
+     */
+    void requeue(List<Message> messages) {
+        if (deleted) {
+            return;
+        }
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            requeued.addFirst(messages.get(i).redelivery());
+        }
+        drain();
+    }
+
+    /**
+     * 把消息交给有额度的消费者，直到没有消息或没有额度
+     */
+    void drain() {
+        while (dispatching.compareAndSet(false, true)) {
+            try {
+                dispatch();
+            } finally {
+                dispatching.set(false);
+            }
+            //释放标记前其他线程可能新增了消息或额度，它们抢标记失败后直接返回了，这里要再检查一次
+            if (!hasDeliverable()) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (!deleted) {
+            Message message = requeued.peekFirst();
+            boolean fromReady = message == null;
+            if (fromReady) {
+                message = ready.peek();
+                if (message == null) {
+                    return;
+                }
+            }
+            QueueConsumer consumer = nextWithCredit();
+            if (consumer == null) {
+                return;
+            }
+            if (fromReady) {
+                ready.poll();
+            } else {
+                requeued.pollFirst();
+            }
+            if (!consumer.channel.deliver(consumer, message)) {
+                //通道已关闭，消息放回队首换一个消费者
+                consumer.active = false;
+                requeued.addFirst(message);
+            }
+        }
+    }
+
+    private QueueConsumer nextWithCredit() {
+        QueueConsumer[] current = consumers;
+        int count = current.length;
+        for (int i = 0; i < count; i++) {
+            int index = (nextConsumer + i) % count;
+            if (current[index].hasCredit()) {
+                nextConsumer = (index + 1) % count;
+                return current[index];
+            }
+        }
+        return null;
+    }
+
+    private boolean hasDeliverable() {
+        if (deleted || (requeued.isEmpty() && ready.isEmpty())) {
+            return false;
+        }
+        for (QueueConsumer consumer : consumers) {
+            if (consumer.hasCredit()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * basicGet取一条消息
+     */
+    Message poll() {
+        while (!dispatching.compareAndSet(false, true)) {
+            Thread.onSpinWait();
+        }
+        Message message;
+        try {
+            message = requeued.pollFirst();
+            if (message == null) {
+                message = ready.poll();
+            }
+        } finally {
+            dispatching.set(false);
+        }
+        drain();
+        return message;
+    }
+
+    void addConsumer(QueueConsumer consumer) {
+        synchronized (this) {
+            QueueConsumer[] next = Arrays.copyOf(consumers, consumers.length + 1);
+            next[consumers.length] = consumer;
+            consumers = next;
+            hadConsumers = true;
+        }
+        drain();
+    }
+
+    /**
+     * @return 最后一个消费者离开且队列是autoDelete，需要删除队列
+     */
+    synchronized boolean removeConsumer(QueueConsumer consumer) {
+        consumer.active = false;
+        List<QueueConsumer> next = new ArrayList<QueueConsumer>(Arrays.asList(consumers));
+        if (next.remove(consumer)) {
+            consumers = next.toArray(NO_CONSUMERS);
+        }
+        return autoDelete && hadConsumers && consumers.length == 0 && !deleted;
+    }
+
+    /**
+     * 标记删除并清空
+     * @return 删除前还在的消费者
+     */
+    synchronized List<QueueConsumer> markDeleted() {
+        deleted = true;
+        List<QueueConsumer> removed = Collections.unmodifiableList(Arrays.asList(consumers));
+        for (QueueConsumer consumer : removed) {
+            consumer.active = false;
+        }
+        consumers = NO_CONSUMERS;
+        purge();
+        return removed;
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * 清空待投递的消息，已投递未确认的不受影响
+     */
+    int purge() {
+        int count = 0;
+        while (!dispatching.compareAndSet(false, true)) {
+            Thread.onSpinWait();
+        }
+        try {
+            while (requeued.pollFirst() != null) {
+                count++;
+            }
+            while (ready.poll() != null) {
+                count++;
+            }
+        } finally {
+            dispatching.set(false);
+        }
+        return count;
+    }
+
+    int messageCount() {
+        return requeued.size() + ready.size();
+    }
+
+    int consumerCount() {
+        return consumers.length;
+    }
+}
@@ -0,0 +1,301 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的broker，按AMQP 0-9-1的语义实现默认、direct、fanout、topic交换机，
+ * 支持预取、ack/nack/reject、重新入队、发布确认、mandatory退回以及replyTo/correlationId（包括direct reply-to）。
+ * 通过newConnection()得到的Connection/Channel可以直接替换真实连接，用于离线的压测和回归测试：
+ * <pre>
+ * Connection connection = EmbeddedBroker.shared().newConnection();
+ * </pre>
+ * 只有一个虚拟主机"/"，不持久化，durable只用于重复声明时的一致性检查。
+ */
+public class EmbeddedBroker implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;//每个队列的缓冲容量，满了以后发布者等待
+    private static final String VHOST = "/";
+
+    private static volatile EmbeddedBroker shared;
+
+    private final int queueCapacity;
+    private final ExecutorService dispatchPool;
+    private final Map<String, BrokerExchange> exchanges = new ConcurrentHashMap<String, BrokerExchange>();
+    private final Map<String, BrokerQueue> queues = new ConcurrentHashMap<String, BrokerQueue>();
+    private final Map<EmbeddedConnection, Boolean> connections = new ConcurrentHashMap<EmbeddedConnection, Boolean>();
+    private final AtomicLong consumerTags = new AtomicLong();
+    private final AtomicLong replyQueues = new AtomicLong();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+
+    /**
+     * 回调线程数与客户端默认的消费者线程池相同，为CPU数的两倍
+     */
+    public EmbeddedBroker() {
+        this(Runtime.getRuntime().availableProcessors() * 2, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param dispatchThreads 执行消费者回调的线程数
+     * @param queueCapacity 每个队列的缓冲容量，必须是2的幂
+     */
+    public EmbeddedBroker(int dispatchThreads, int queueCapacity) {
+        if (dispatchThreads < 1 || queueCapacity < 2 || Integer.bitCount(queueCapacity) != 1) {
+            throw new IllegalArgumentException("invalid dispatchThreads or queueCapacity");
+        }
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadIds = new AtomicInteger();
+        this.dispatchPool = Executors.newFixedThreadPool(dispatchThreads, r -> {
+            Thread thread = new Thread(r, "embedded-broker-dispatch-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (BuiltinExchangeType type : new BuiltinExchangeType[]{BuiltinExchangeType.DIRECT, BuiltinExchangeType.FANOUT, BuiltinExchangeType.TOPIC}) {
+            String name = "amq." + type.getType();
+            exchanges.put(name, new BrokerExchange(name, type, true, false, false, null));
+        }
+    }
+
+    /**
+     * 进程内共用的实例，首次使用时创建，不需要关闭
+     */
+    public static EmbeddedBroker shared() {
+        if (shared == null) {
+            synchronized (EmbeddedBroker.class) {
+                if (shared == null) {
+                    shared = new EmbeddedBroker();
+                }
+            }
+        }
+        return shared;
+    }
+
+    public Connection newConnection() {
+        return newConnection(null);
+    }
+
+    public Connection newConnection(String clientProvidedName) {
+        EmbeddedConnection connection = new EmbeddedConnection(this,
+                "embedded-" + connectionIds.incrementAndGet(), clientProvidedName);
+        connections.put(connection, Boolean.TRUE);
+        return connection;
+    }
+
+    /**
+     * 队列中待投递的消息数，不存在时返回-1
+     */
+    public int messageCount(String queue) {
+        BrokerQueue declared = queues.get(queue);
+        return declared == null ? -1 : declared.messageCount();
+    }
+
+    /**
+     * 关闭所有连接并停止回调线程
+     */
+    @Override
+    public void close() {
+        for (EmbeddedConnection connection : new ArrayList<EmbeddedConnection>(connections.keySet())) {
+            connection.abort();
+        }
+        dispatchPool.shutdown();
+    }
+
+    ExecutorService dispatchPool() {
+        return dispatchPool;
+    }
+
+    String nextConsumerTag() {
+        return "amq.ctag-" + consumerTags.incrementAndGet();
+    }
+
+    long nextReplyQueueId() {
+        return replyQueues.incrementAndGet();
+    }
+
+    void declareExchange(EmbeddedChannel channel, String name, BuiltinExchangeType type, boolean durable,
+                         boolean autoDelete, boolean internal, Map<String, Object> arguments) throws IOException {
+        if (type == BuiltinExchangeType.HEADERS) {
+            throw channel.error(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - headers exchanges");
+        }
+        if (name.isEmpty()) {
+            throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+        BrokerExchange existing = exchanges.get(name);
+        if (existing == null && name.startsWith("amq.")) {
+            throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - exchange name '" + name + "' contains reserved prefix 'amq.*'");
+        }
+        if (existing == null) {
+            existing = exchanges.computeIfAbsent(name, n -> new BrokerExchange(n, type, durable, autoDelete, internal, arguments));
+        }
+        if (!existing.equivalent(type, durable, autoDelete, internal)) {
+            throw channel.error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - inequivalent arg for exchange '" + name
+                    + "' in vhost '" + VHOST + "'");
+        }
+    }
+
+    BrokerExchange exchange(EmbeddedChannel channel, String name) throws IOException {
+        BrokerExchange exchange = exchanges.get(name);
+        if (exchange == null) {
+            throw channel.error(AMQP.NOT_FOUND, "NOT_FOUND - no exchange '" + name + "' in vhost '" + VHOST + "'");
+        }
+        return exchange;
+    }
+
+    void deleteExchange(EmbeddedChannel channel, String name, boolean ifUnused) throws IOException {
+        if (name.isEmpty() || name.startsWith("amq.")) {
+            throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on exchange '" + name + "'");
+        }
+        BrokerExchange exchange = exchanges.get(name);
+        if (exchange == null) {
+            return;
+        }
+        if (ifUnused && exchange.bindingCount() > 0) {
+            throw channel.error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - exchange '" + name + "' in use");
+        }
+        exchanges.remove(name, exchange);
+    }
+
+    BrokerQueue declareQueue(EmbeddedChannel channel, String name, boolean durable, boolean exclusive,
+                             boolean autoDelete, Map<String, Object> arguments) throws IOException {
+        EmbeddedConnection owner = exclusive ? (EmbeddedConnection) channel.getConnection() : null;
+        if (name == null || name.isEmpty()) {
+            name = "amq.gen-" + UUID.randomUUID();
+        } else if (name.startsWith("amq.") && !name.startsWith(EmbeddedChannel.DIRECT_REPLY_TO + ".")) {
+            if (!queues.containsKey(name)) {
+                throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - queue name '" + name + "' contains reserved prefix 'amq.*'");
+            }
+        }
+        BrokerQueue queue = queues.computeIfAbsent(name,
+                n -> new BrokerQueue(n, durable, exclusive, autoDelete, arguments, owner, queueCapacity));
+        checkOwner(channel, queue);
+        if (!queue.equivalent(durable, exclusive, autoDelete)) {
+            throw channel.error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - inequivalent arg for queue '" + name
+                    + "' in vhost '" + VHOST + "'");
+        }
+        return queue;
+    }
+
+    /**
+     * 查找队列，不存在或属于其他连接的排他队列时关闭通道
+     */
+    BrokerQueue queue(EmbeddedChannel channel, String name) throws IOException {
+        BrokerQueue queue = queues.get(name);
+        if (queue == null) {
+            throw channel.error(AMQP.NOT_FOUND, "NOT_FOUND - no queue '" + name + "' in vhost '" + VHOST + "'");
+        }
+        checkOwner(channel, queue);
+        return queue;
+    }
+
+    BrokerQueue queue(String name) {
+        return queues.get(name);
+    }
+
+    private void checkOwner(EmbeddedChannel channel, BrokerQueue queue) throws IOException {
+        if (queue.exclusive && queue.owner != channel.getConnection()) {
+            throw channel.error(AMQP.RESOURCE_LOCKED, "RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '"
+                    + queue.name + "' in vhost '" + VHOST + "'");
+        }
+    }
+
+    /**
+     * 删除队列、它的绑定和消费者
+     * @return 删除时队列中待投递的消息数
+     */
+    int deleteQueue(BrokerQueue queue) {
+        if (queue == null || !queues.remove(queue.name, queue)) {
+            return 0;
+        }
+        for (BrokerExchange exchange : exchanges.values()) {
+            if (!exchange.unbindAll(queue) && exchange.autoDelete) {
+                exchanges.remove(exchange.name, exchange);
+            }
+        }
+        int count = queue.messageCount();
+        for (QueueConsumer consumer : queue.markDeleted()) {
+            consumer.channel.consumerCancelled(consumer);
+        }
+        return count;
+    }
+
+    void bind(EmbeddedChannel channel, String queueName, String exchangeName, String routingKey,
+              Map<String, Object> arguments) throws IOException {
+        if (exchangeName.isEmpty()) {
+            throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+        BrokerQueue queue = queue(channel, queueName);
+        exchange(channel, exchangeName).bind(queue, Objects.toString(routingKey, ""), arguments);
+    }
+
+    void unbind(EmbeddedChannel channel, String queueName, String exchangeName, String routingKey,
+                Map<String, Object> arguments) throws IOException {
+        if (exchangeName.isEmpty()) {
+            throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+        BrokerQueue queue = queue(channel, queueName);
+        BrokerExchange exchange = exchange(channel, exchangeName);
+        if (exchange.unbind(queue, Objects.toString(routingKey, ""), arguments)
+                && exchange.autoDelete && exchange.bindingCount() == 0) {
+            exchanges.remove(exchange.name, exchange);
+        }
+    }
+
+    /**
+     * 路由并放入目标队列
+     * @return 消息进入的队列数
+     */
+    int publish(EmbeddedChannel channel, String exchangeName, String routingKey, AMQP.BasicProperties properties,
+                byte[] body) throws IOException {
+        BrokerQueue[] targets;
+        if (exchangeName.isEmpty()) {
+            BrokerQueue queue = queues.get(routingKey);
+            if (queue == null) {
+                return 0;
+            }
+            targets = queue.self;
+        } else {
+            BrokerExchange exchange = exchange(channel, exchangeName);
+            if (exchange.internal) {
+                throw channel.error(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - cannot publish to internal exchange '" + exchangeName + "'");
+            }
+            targets = exchange.route(routingKey);
+        }
+        if (targets.length == 0) {
+            return 0;
+        }
+        Message message = new Message(exchangeName, routingKey, properties, body, false);
+        for (BrokerQueue queue : targets) {
+            queue.enqueue(message);
+        }
+        return targets.length;
+    }
+
+    /**
+     * 连接关闭后删除它的排他队列
+     */
+    void connectionClosed(EmbeddedConnection connection) {
+        connections.remove(connection);
+        List<BrokerQueue> owned = new ArrayList<BrokerQueue>();
+        for (BrokerQueue queue : queues.values()) {
+            if (queue.owner == connection) {
+                owned.add(queue);
+            }
+        }
+        for (BrokerQueue queue : owned) {
+            deleteQueue(queue);
+        }
+    }
+}
@@ -0,0 +1,1173 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Command;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.Method;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQCommand;
+import com.rabbitmq.client.impl.AMQImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内嵌broker的通道
+ * 回调（handleDelivery、确认、退回等）在该通道自己的串行执行器上按顺序执行，与客户端的行为一致；
+ * 出错时像真实broker一样关闭通道，方法抛出IOException，之后的调用抛出AlreadyClosedException。
+ * 事务只缓存发布：txCommit时统一路由，txRollback时丢弃；确认和拒绝仍立即生效。
+ * rpc等直接发送AMQP方法的接口支持声明、绑定、删除、清空和qos等常用方法，其他方法按NOT_IMPLEMENTED关闭通道。
+ * 不支持exchange到exchange的绑定以及headers交换机。
+ */
+final class EmbeddedChannel implements Channel {
+
+    static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private final EmbeddedConnection connection;
+    private final EmbeddedBroker broker;
+    private final int number;
+    private final SerialExecutor dispatcher;
+    private final Map<String, QueueConsumer> consumers = new ConcurrentHashMap<String, QueueConsumer>();
+    private final ConcurrentSkipListMap<Long, Unacked> unacked = new ConcurrentSkipListMap<Long, Unacked>();
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<ShutdownListener>();
+    private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+    private final List<ReturnListener> returnListeners = new CopyOnWriteArrayList<ReturnListener>();
+    //分配deliveryTag和放入执行器要在一起完成，保证回调顺序就是tag顺序
+    private final Object deliveryLock = new Object();
+    private long deliveryTag;
+    //发布确认序号，只在持有publishLock时修改
+    private final Object publishLock = new Object();
+    private volatile boolean confirmMode;
+    private long nextPublishSeqNo;
+    private final Object confirmLock = new Object();
+    private long confirmedSeqNo;
+    //事务模式下还没提交的发布，只在持有publishLock时读写
+    private volatile boolean txMode;
+    private final List<PendingPublish> txPublishes = new ArrayList<PendingPublish>();
+    private volatile int prefetch;
+    //global=true的预取数，通道上所有消费者共享，修改后立即生效
+    private volatile int globalPrefetch;
+    //通道上未确认的消息数，用于global预取
+    private final AtomicInteger channelUnacked = new AtomicInteger();
+    private volatile Consumer defaultConsumer;
+    private volatile String replyQueue;//direct reply-to的伪队列
+    private volatile ShutdownSignalException closeReason;
+
+    EmbeddedChannel(EmbeddedConnection connection, int number) {
+        this.connection = connection;
+        this.broker = connection.broker;
+        this.number = number;
+        this.dispatcher = new SerialExecutor(broker.dispatchPool());
+    }
+
+    /**
+     * 投递一条消息给本通道上的消费者，由队列的分发线程调用
+     * @return 通道已关闭时返回false
+     */
+    boolean deliver(QueueConsumer consumer, Message message) {
+        synchronized (deliveryLock) {
+            if (closeReason != null) {
+                return false;
+            }
+            long tag = ++deliveryTag;
+            if (!consumer.autoAck) {
+                consumer.unacked.incrementAndGet();
+                channelUnacked.incrementAndGet();
+                unacked.put(tag, new Unacked(message, consumer.queue, consumer));
+            }
+            Envelope envelope = new Envelope(tag, message.redelivered, message.exchange, message.routingKey);
+            dispatcher.execute(() -> {
+                try {
+                    consumer.consumer.handleDelivery(consumer.tag, envelope, message.properties, message.body);
+                } catch (Throwable e) {
+                    connection.getExceptionHandler().handleConsumerException(this, e, consumer.consumer, consumer.tag, "handleDelivery");
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * 队列被删除时由broker取消消费者
+     */
+    void consumerCancelled(QueueConsumer consumer) {
+        if (consumers.remove(consumer.tag, consumer)) {
+            dispatcher.execute(() -> {
+                try {
+                    consumer.consumer.handleCancel(consumer.tag);
+                } catch (Throwable e) {
+                    connection.getExceptionHandler().handleConsumerException(this, e, consumer.consumer, consumer.tag, "handleCancel");
+                }
+            });
+        }
+    }
+
+    IOException error(int code, String text) {
+        ShutdownSignalException signal = new ShutdownSignalException(false, false,
+                new AMQImpl.Channel.Close(code, text, 0, 0), this);
+        shutdown(signal);
+        return new IOException(signal);
+    }
+
+    private void ensureOpen() {
+        ShutdownSignalException reason = closeReason;
+        if (reason != null) {
+            throw new AlreadyClosedException(reason);
+        }
+    }
+
+    /**
+     * 关闭通道：取消消费者，未确认的消息重新入队，通知监听器
+     */
+    void shutdown(ShutdownSignalException signal) {
+        synchronized (deliveryLock) {
+            if (closeReason != null) {
+                return;
+            }
+            closeReason = signal;
+        }
+        connection.channelClosed(this);
+        for (QueueConsumer consumer : consumers.values()) {
+            if (consumer.queue.removeConsumer(consumer)) {
+                broker.deleteQueue(consumer.queue);
+            }
+            dispatcher.execute(() -> consumer.consumer.handleShutdownSignal(consumer.tag, signal));
+        }
+        consumers.clear();
+        requeue(new ArrayList<Unacked>(unacked.values()));
+        unacked.clear();
+        String reply = replyQueue;
+        if (reply != null) {
+            broker.deleteQueue(broker.queue(reply));
+        }
+        synchronized (confirmLock) {
+            confirmLock.notifyAll();
+        }
+        notifyListeners();
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return number;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws IOException, TimeoutException {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    @Override
+    public void close(int closeCode, String closeMessage) throws IOException, TimeoutException {
+        ensureOpen();
+        shutdown(new ShutdownSignalException(false, true, new AMQImpl.Channel.Close(closeCode, closeMessage, 0, 0), this));
+    }
+
+    @Override
+    public void abort() {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    @Override
+    public void abort(int closeCode, String closeMessage) {
+        shutdown(new ShutdownSignalException(false, true, new AMQImpl.Channel.Close(closeCode, closeMessage, 0, 0), this));
+    }
+
+    @Override
+    public void addReturnListener(ReturnListener listener) {
+        returnListeners.add(listener);
+    }
+
+    @Override
+    public ReturnListener addReturnListener(ReturnCallback returnCallback) {
+        ReturnListener listener = (replyCode, replyText, exchange, routingKey, properties, body) ->
+                returnCallback.handle(new Return(replyCode, replyText, exchange, routingKey, properties, body));
+        addReturnListener(listener);
+        return listener;
+    }
+
+    @Override
+    public boolean removeReturnListener(ReturnListener listener) {
+        return returnListeners.remove(listener);
+    }
+
+    @Override
+    public void clearReturnListeners() {
+        returnListeners.clear();
+    }
+
+    @Override
+    public void addConfirmListener(ConfirmListener listener) {
+        confirmListeners.add(listener);
+    }
+
+    @Override
+    public ConfirmListener addConfirmListener(ConfirmCallback ackCallback, ConfirmCallback nackCallback) {
+        ConfirmListener listener = new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                ackCallback.handle(deliveryTag, multiple);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                nackCallback.handle(deliveryTag, multiple);
+            }
+        };
+        addConfirmListener(listener);
+        return listener;
+    }
+
+    @Override
+    public boolean removeConfirmListener(ConfirmListener listener) {
+        return confirmListeners.remove(listener);
+    }
+
+    @Override
+    public void clearConfirmListeners() {
+        confirmListeners.clear();
+    }
+
+    @Override
+    public Consumer getDefaultConsumer() {
+        return defaultConsumer;
+    }
+
+    @Override
+    public void setDefaultConsumer(Consumer consumer) {
+        this.defaultConsumer = consumer;
+    }
+
+    /**
+     * 与rabbitMQ一致：global为false时对之后创建的消费者生效，按每个消费者计算；
+     * global为true时整个通道共享，立即生效，调大后马上给通道上的消费者补发。prefetchSize不支持，忽略
+     */
+    @Override
+    public void basicQos(int prefetchSize, int prefetchCount, boolean global) {
+        ensureOpen();
+        if (!global) {
+            this.prefetch = prefetchCount;
+            return;
+        }
+        this.globalPrefetch = prefetchCount;
+        for (QueueConsumer consumer : consumers.values()) {
+            consumer.queue.drain();
+        }
+    }
+
+    /**
+     * 通道级的预取额度是否还有剩余
+     */
+    boolean hasCredit() {
+        int limit = globalPrefetch;
+        return limit == 0 || channelUnacked.get() < limit;
+    }
+
+    @Override
+    public void basicQos(int prefetchCount, boolean global) {
+        basicQos(0, prefetchCount, global);
+    }
+
+    @Override
+    public void basicQos(int prefetchCount) {
+        basicQos(0, prefetchCount, false);
+    }
+
+    @Override
+    public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        basicPublish(exchange, routingKey, false, false, props, body);
+    }
+
+    @Override
+    public void basicPublish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) throws IOException {
+        basicPublish(exchange, routingKey, mandatory, false, props, body);
+    }
+
+    private static AMQP.BasicProperties snapshot(AMQP.BasicProperties p) {
+        return new AMQP.BasicProperties(p.getContentType(), p.getContentEncoding(), p.getHeaders(), p.getDeliveryMode(),
+                p.getPriority(), p.getCorrelationId(), p.getReplyTo(), p.getExpiration(), p.getMessageId(), p.getTimestamp(),
+                p.getType(), p.getUserId(), p.getAppId(), p.getClusterId());
+    }
+
+    @Override
+    public void basicPublish(String exchange, String routingKey, boolean mandatory, boolean immediate,
+                             AMQP.BasicProperties props, byte[] body) throws IOException {
+        ensureOpen();
+        if (immediate) {
+            throw error(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - immediate=true");
+        }
+        AMQP.BasicProperties properties = props == null ? new AMQP.BasicProperties() : props;
+        if (properties.getClass() != AMQP.BasicProperties.class) {
+            //与真实客户端一样在发布时固定属性，子类可能是发布者复用、返回后继续修改的对象
+            properties = snapshot(properties);
+        }
+        if (DIRECT_REPLY_TO.equals(properties.getReplyTo())) {
+            String reply = replyQueue;
+            if (reply == null) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - fast reply consumer does not exist");
+            }
+            properties = properties.builder().replyTo(reply).build();
+        }
+        //与真实客户端一样，调用返回后发布者可以复用自己的数组
+        byte[] copy = body == null ? new byte[0] : body.clone();
+        if (txMode) {
+            synchronized (publishLock) {
+                if (txMode) {
+                    txPublishes.add(new PendingPublish(exchange, routingKey, mandatory, properties, copy));
+                    return;
+                }
+            }
+        }
+        route(exchange, routingKey, mandatory, properties, copy);
+    }
+
+    /**
+     * 把消息路由到队列，处理mandatory退回和发布确认
+     */
+    private void route(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties properties,
+                       byte[] copy) throws IOException {
+        long sequence = 0;
+        int routed;
+        synchronized (publishLock) {
+            if (confirmMode) {
+                sequence = nextPublishSeqNo++;
+            }
+            routed = broker.publish(this, exchange, routingKey, properties, copy);
+        }
+        if (routed == 0 && mandatory) {
+            AMQP.BasicProperties returnedProperties = properties;
+            connection.io(() -> {
+                for (ReturnListener listener : returnListeners) {
+                    try {
+                        listener.handleReturn(AMQP.NO_ROUTE, "NO_ROUTE", exchange, routingKey, returnedProperties, copy);
+                    } catch (Throwable e) {
+                        connection.getExceptionHandler().handleReturnListenerException(this, e);
+                    }
+                }
+            });
+        }
+        if (sequence > 0) {
+            long confirmed = sequence;
+            //消息已经进入所有目标队列，立即确认
+            connection.io(() -> confirm(confirmed));
+        }
+    }
+
+    private void confirm(long sequence) {
+        synchronized (confirmLock) {
+            confirmedSeqNo = sequence;
+            confirmLock.notifyAll();
+        }
+        for (ConfirmListener listener : confirmListeners) {
+            try {
+                listener.handleAck(sequence, false);
+            } catch (Throwable e) {
+                connection.getExceptionHandler().handleConfirmListenerException(this, e);
+            }
+        }
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type) throws IOException {
+        return exchangeDeclare(exchange, type, false, false, false, null);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type) throws IOException {
+        return exchangeDeclare(exchange, type, false, false, false, null);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable) throws IOException {
+        return exchangeDeclare(exchange, type, durable, false, false, null);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type, boolean durable) throws IOException {
+        return exchangeDeclare(exchange, type, durable, false, false, null);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable, boolean autoDelete,
+                                                   Map<String, Object> arguments) throws IOException {
+        return exchangeDeclare(exchange, type, durable, autoDelete, false, arguments);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type, boolean durable, boolean autoDelete,
+                                                   Map<String, Object> arguments) throws IOException {
+        return exchangeDeclare(exchange, type, durable, autoDelete, false, arguments);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, String type, boolean durable, boolean autoDelete,
+                                                   boolean internal, Map<String, Object> arguments) throws IOException {
+        return exchangeDeclare(exchange, exchangeType(type), durable, autoDelete, internal, arguments);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclare(String exchange, BuiltinExchangeType type, boolean durable, boolean autoDelete,
+                                                   boolean internal, Map<String, Object> arguments) throws IOException {
+        ensureOpen();
+        broker.declareExchange(this, exchange, type, durable, autoDelete, internal, arguments);
+        return new AMQImpl.Exchange.DeclareOk();
+    }
+
+    private BuiltinExchangeType exchangeType(String type) throws IOException {
+        for (BuiltinExchangeType candidate : BuiltinExchangeType.values()) {
+            if (candidate.getType().equals(type)) {
+                return candidate;
+            }
+        }
+        throw error(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unknown exchange type '" + type + "'");
+    }
+
+    @Override
+    public void exchangeDeclareNoWait(String exchange, String type, boolean durable, boolean autoDelete, boolean internal,
+                                      Map<String, Object> arguments) throws IOException {
+        exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
+    }
+
+    @Override
+    public void exchangeDeclareNoWait(String exchange, BuiltinExchangeType type, boolean durable, boolean autoDelete,
+                                      boolean internal, Map<String, Object> arguments) throws IOException {
+        exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
+    }
+
+    @Override
+    public AMQP.Exchange.DeclareOk exchangeDeclarePassive(String name) throws IOException {
+        ensureOpen();
+        broker.exchange(this, name);
+        return new AMQImpl.Exchange.DeclareOk();
+    }
+
+    @Override
+    public AMQP.Exchange.DeleteOk exchangeDelete(String exchange, boolean ifUnused) throws IOException {
+        ensureOpen();
+        broker.deleteExchange(this, exchange, ifUnused);
+        return new AMQImpl.Exchange.DeleteOk();
+    }
+
+    @Override
+    public void exchangeDeleteNoWait(String exchange, boolean ifUnused) throws IOException {
+        exchangeDelete(exchange, ifUnused);
+    }
+
+    @Override
+    public AMQP.Exchange.DeleteOk exchangeDelete(String exchange) throws IOException {
+        return exchangeDelete(exchange, false);
+    }
+
+    @Override
+    public AMQP.Exchange.BindOk exchangeBind(String destination, String source, String routingKey) throws IOException {
+        return exchangeBind(destination, source, routingKey, null);
+    }
+
+    @Override
+    public AMQP.Exchange.BindOk exchangeBind(String destination, String source, String routingKey,
+                                             Map<String, Object> arguments) throws IOException {
+        throw error(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - exchange to exchange bindings");
+    }
+
+    @Override
+    public void exchangeBindNoWait(String destination, String source, String routingKey, Map<String, Object> arguments) throws IOException {
+        exchangeBind(destination, source, routingKey, arguments);
+    }
+
+    @Override
+    public AMQP.Exchange.UnbindOk exchangeUnbind(String destination, String source, String routingKey) throws IOException {
+        return exchangeUnbind(destination, source, routingKey, null);
+    }
+
+    @Override
+    public AMQP.Exchange.UnbindOk exchangeUnbind(String destination, String source, String routingKey,
+                                                 Map<String, Object> arguments) throws IOException {
+        throw error(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - exchange to exchange bindings");
+    }
+
+    @Override
+    public void exchangeUnbindNoWait(String destination, String source, String routingKey, Map<String, Object> arguments) throws IOException {
+        exchangeUnbind(destination, source, routingKey, arguments);
+    }
+
+    /**
+     * 服务端命名的排他、自动删除队列
+     */
+    @Override
+    public AMQP.Queue.DeclareOk queueDeclare() throws IOException {
+        return queueDeclare("", false, true, true, null);
+    }
+
+    @Override
+    public AMQP.Queue.DeclareOk queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete,
+                                             Map<String, Object> arguments) throws IOException {
+        ensureOpen();
+        BrokerQueue declared = broker.declareQueue(this, queue, durable, exclusive, autoDelete, arguments);
+        return new AMQImpl.Queue.DeclareOk(declared.name, declared.messageCount(), declared.consumerCount());
+    }
+
+    @Override
+    public void queueDeclareNoWait(String queue, boolean durable, boolean exclusive, boolean autoDelete,
+                                   Map<String, Object> arguments) throws IOException {
+        queueDeclare(queue, durable, exclusive, autoDelete, arguments);
+    }
+
+    @Override
+    public AMQP.Queue.DeclareOk queueDeclarePassive(String queue) throws IOException {
+        ensureOpen();
+        BrokerQueue declared = broker.queue(this, queue);
+        return new AMQImpl.Queue.DeclareOk(declared.name, declared.messageCount(), declared.consumerCount());
+    }
+
+    @Override
+    public AMQP.Queue.DeleteOk queueDelete(String queue) throws IOException {
+        return queueDelete(queue, false, false);
+    }
+
+    @Override
+    public AMQP.Queue.DeleteOk queueDelete(String queue, boolean ifUnused, boolean ifEmpty) throws IOException {
+        ensureOpen();
+        BrokerQueue declared = broker.queue(queue);
+        if (declared == null) {
+            return new AMQImpl.Queue.DeleteOk(0);
+        }
+        if (ifUnused && declared.consumerCount() > 0) {
+            throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + queue + "' in use");
+        }
+        if (ifEmpty && declared.messageCount() > 0) {
+            throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + queue + "' not empty");
+        }
+        return new AMQImpl.Queue.DeleteOk(broker.deleteQueue(declared));
+    }
+
+    @Override
+    public void queueDeleteNoWait(String queue, boolean ifUnused, boolean ifEmpty) throws IOException {
+        queueDelete(queue, ifUnused, ifEmpty);
+    }
+
+    @Override
+    public AMQP.Queue.BindOk queueBind(String queue, String exchange, String routingKey) throws IOException {
+        return queueBind(queue, exchange, routingKey, null);
+    }
+
+    @Override
+    public AMQP.Queue.BindOk queueBind(String queue, String exchange, String routingKey, Map<String, Object> arguments) throws IOException {
+        ensureOpen();
+        broker.bind(this, queue, exchange, routingKey, arguments);
+        return new AMQImpl.Queue.BindOk();
+    }
+
+    @Override
+    public void queueBindNoWait(String queue, String exchange, String routingKey, Map<String, Object> arguments) throws IOException {
+        queueBind(queue, exchange, routingKey, arguments);
+    }
+
+    @Override
+    public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey) throws IOException {
+        return queueUnbind(queue, exchange, routingKey, null);
+    }
+
+    @Override
+    public AMQP.Queue.UnbindOk queueUnbind(String queue, String exchange, String routingKey, Map<String, Object> arguments) throws IOException {
+        ensureOpen();
+        broker.unbind(this, queue, exchange, routingKey, arguments);
+        return new AMQImpl.Queue.UnbindOk();
+    }
+
+    @Override
+    public AMQP.Queue.PurgeOk queuePurge(String queue) throws IOException {
+        ensureOpen();
+        return new AMQImpl.Queue.PurgeOk(broker.queue(this, queue).purge());
+    }
+
+    @Override
+    public GetResponse basicGet(String queue, boolean autoAck) throws IOException {
+        ensureOpen();
+        BrokerQueue source = broker.queue(this, queue);
+        Message message = source.poll();
+        if (message == null) {
+            return null;
+        }
+        long tag;
+        synchronized (deliveryLock) {
+            tag = ++deliveryTag;
+            if (!autoAck) {
+                unacked.put(tag, new Unacked(message, source, null));
+            }
+        }
+        return new GetResponse(new Envelope(tag, message.redelivered, message.exchange, message.routingKey),
+                message.properties, message.body, source.messageCount());
+    }
+
+    @Override
+    public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+        settle(deliveryTag, multiple, false);
+    }
+
+    @Override
+    public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+        List<Unacked> settled = settle(deliveryTag, multiple, true);
+        if (requeue) {
+            requeue(settled);
+        }
+    }
+
+    @Override
+    public void basicReject(long deliveryTag, boolean requeue) throws IOException {
+        basicNack(deliveryTag, false, requeue);
+    }
+
+    /**
+     * 从未确认表中移除并归还消费者的预取额度
+     * @return 按tag顺序排列的被移除的消息
+     */
+    private List<Unacked> settle(long deliveryTag, boolean multiple, boolean keep) throws IOException {
+        ensureOpen();
+        List<Unacked> settled = keep ? new ArrayList<Unacked>() : null;
+        if (multiple) {
+            //与rabbitMQ一致，multiple时tag本身也必须是未确认的，已被之前的确认覆盖的tag同样是未知的
+            if (deliveryTag != 0 && !unacked.containsKey(deliveryTag)) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+            }
+            ConcurrentNavigableMap<Long, Unacked> head = deliveryTag == 0 ? unacked : unacked.headMap(deliveryTag, true);
+            Iterator<Unacked> iterator = head.values().iterator();
+            while (iterator.hasNext()) {
+                Unacked entry = iterator.next();
+                iterator.remove();
+                release(entry, settled);
+            }
+        } else {
+            Unacked entry = unacked.remove(deliveryTag);
+            if (entry == null) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+            }
+            release(entry, settled);
+        }
+        return settled;
+    }
+
+    private void release(Unacked entry, List<Unacked> settled) {
+        if (settled != null) {
+            settled.add(entry);
+        }
+        if (entry.consumer != null) {
+            entry.consumer.unacked.decrementAndGet();
+            channelUnacked.decrementAndGet();
+            entry.queue.drain();
+        }
+    }
+
+    /**
+     * 按队列分组放回，保持各队列内原来的顺序
+     */
+    private void requeue(List<Unacked> entries) {
+        Map<BrokerQueue, List<Message>> byQueue = new LinkedHashMap<BrokerQueue, List<Message>>();
+        for (Unacked entry : entries) {
+            byQueue.computeIfAbsent(entry.queue, q -> new ArrayList<Message>()).add(entry.message);
+        }
+        for (Map.Entry<BrokerQueue, List<Message>> entry : byQueue.entrySet()) {
+            entry.getKey().requeue(entry.getValue());
+        }
+    }
+
+    @Override
+    public String basicConsume(String queue, Consumer callback) throws IOException {
+        return basicConsume(queue, false, callback);
+    }
+
+    @Override
+    public String basicConsume(String queue, DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+        return basicConsume(queue, false, deliverCallback, cancelCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, DeliverCallback deliverCallback, ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, false, deliverCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, DeliverCallback deliverCallback, CancelCallback cancelCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, false, deliverCallback, cancelCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, Consumer callback) throws IOException {
+        return basicConsume(queue, autoAck, "", callback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", deliverCallback, cancelCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", deliverCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback, CancelCallback cancelCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", deliverCallback, cancelCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments, Consumer callback) throws IOException {
+        return basicConsume(queue, autoAck, "", false, false, arguments, callback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments, DeliverCallback deliverCallback,
+                               CancelCallback cancelCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback, cancelCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments, DeliverCallback deliverCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, Map<String, Object> arguments, DeliverCallback deliverCallback,
+                               CancelCallback cancelCallback, ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, "", false, false, arguments, deliverCallback, cancelCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, Consumer callback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, callback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, DeliverCallback deliverCallback,
+                               CancelCallback cancelCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback, cancelCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, DeliverCallback deliverCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, DeliverCallback deliverCallback,
+                               CancelCallback cancelCallback, ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, deliverCallback, cancelCallback, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal, boolean exclusive,
+                               Map<String, Object> arguments, DeliverCallback deliverCallback, CancelCallback cancelCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments, deliverCallback, cancelCallback, null);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal, boolean exclusive,
+                               Map<String, Object> arguments, DeliverCallback deliverCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments, deliverCallback, null, shutdownSignalCallback);
+    }
+
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal, boolean exclusive,
+                               Map<String, Object> arguments, DeliverCallback deliverCallback, CancelCallback cancelCallback,
+                               ConsumerShutdownSignalCallback shutdownSignalCallback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments,
+                callbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback));
+    }
+
+    /**
+     * 所有basicConsume最终都到这里；noLocal、exclusive和消费参数不生效
+     */
+    @Override
+    public String basicConsume(String queue, boolean autoAck, String consumerTag, boolean noLocal, boolean exclusive,
+                               Map<String, Object> arguments, Consumer callback) throws IOException {
+        ensureOpen();
+        String tag = consumerTag == null || consumerTag.isEmpty() ? broker.nextConsumerTag() : consumerTag;
+        if (consumers.containsKey(tag)) {
+            throw error(AMQP.NOT_ALLOWED, "NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'");
+        }
+        BrokerQueue source;
+        if (DIRECT_REPLY_TO.equals(queue)) {
+            if (!autoAck) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - reply consumer cannot acknowledge");
+            }
+            if (replyQueue != null) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - reply consumer already set");
+            }
+            //direct reply-to：为本通道建一个伪队列，发布时把replyTo改写成它的名字，回复经默认交换机直接送达
+            source = broker.declareQueue(this, DIRECT_REPLY_TO + "." + broker.nextReplyQueueId(), false, true, true, null);
+            replyQueue = source.name;
+        } else {
+            source = broker.queue(this, queue);
+        }
+        QueueConsumer subscription = new QueueConsumer(this, source, tag, callback, autoAck, prefetch);
+        consumers.put(tag, subscription);
+        dispatcher.execute(() -> callback.handleConsumeOk(tag));
+        source.addConsumer(subscription);
+        return tag;
+    }
+
+    private Consumer callbackConsumer(DeliverCallback deliverCallback, CancelCallback cancelCallback,
+                                      ConsumerShutdownSignalCallback shutdownSignalCallback) {
+        return new DefaultConsumer(this) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+            }
+
+            @Override
+            public void handleCancel(String consumerTag) throws IOException {
+                if (cancelCallback != null) {
+                    cancelCallback.handle(consumerTag);
+                }
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                if (shutdownSignalCallback != null) {
+                    shutdownSignalCallback.handleShutdownSignal(consumerTag, sig);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void basicCancel(String consumerTag) throws IOException {
+        ensureOpen();
+        QueueConsumer subscription = consumers.remove(consumerTag);
+        if (subscription == null) {
+            throw new IllegalArgumentException("Unknown consumerTag");
+        }
+        if (subscription.queue.removeConsumer(subscription)) {
+            broker.deleteQueue(subscription.queue);
+        }
+        if (subscription.queue.name.equals(replyQueue)) {
+            replyQueue = null;
+        }
+        dispatcher.execute(() -> subscription.consumer.handleCancelOk(consumerTag));
+    }
+
+    @Override
+    public AMQP.Basic.RecoverOk basicRecover() throws IOException {
+        return basicRecover(true);
+    }
+
+    /**
+     * 未确认的消息全部重新入队，requeue=false也按重新入队处理
+     */
+    @Override
+    public AMQP.Basic.RecoverOk basicRecover(boolean requeue) throws IOException {
+        basicNack(0, true, true);
+        return new AMQImpl.Basic.RecoverOk();
+    }
+
+    /**
+     * 与rabbitMQ一致，事务和发布确认不能在同一个通道上同时使用
+     */
+    @Override
+    public AMQP.Tx.SelectOk txSelect() throws IOException {
+        ensureOpen();
+        synchronized (publishLock) {
+            if (confirmMode) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - cannot switch from confirm to tx mode");
+            }
+            txMode = true;
+        }
+        return new AMQImpl.Tx.SelectOk();
+    }
+
+    /**
+     * 按发布顺序路由事务中缓存的消息
+     */
+    @Override
+    public AMQP.Tx.CommitOk txCommit() throws IOException {
+        for (PendingPublish publish : takeTxPublishes()) {
+            route(publish.exchange, publish.routingKey, publish.mandatory, publish.properties, publish.body);
+        }
+        return new AMQImpl.Tx.CommitOk();
+    }
+
+    /**
+     * 丢弃事务中缓存的消息，已经发出的确认和拒绝不能撤回
+     */
+    @Override
+    public AMQP.Tx.RollbackOk txRollback() throws IOException {
+        takeTxPublishes();
+        return new AMQImpl.Tx.RollbackOk();
+    }
+
+    private List<PendingPublish> takeTxPublishes() throws IOException {
+        ensureOpen();
+        synchronized (publishLock) {
+            if (!txMode) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - channel is not transactional");
+            }
+            List<PendingPublish> pending = new ArrayList<PendingPublish>(txPublishes);
+            txPublishes.clear();
+            return pending;
+        }
+    }
+
+    @Override
+    public AMQP.Confirm.SelectOk confirmSelect() throws IOException {
+        ensureOpen();
+        synchronized (publishLock) {
+            if (txMode) {
+                throw error(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - cannot switch from tx to confirm mode");
+            }
+            if (!confirmMode) {
+                confirmMode = true;
+                nextPublishSeqNo = 1;
+            }
+        }
+        return new AMQImpl.Confirm.SelectOk();
+    }
+
+    @Override
+    public long getNextPublishSeqNo() {
+        synchronized (publishLock) {
+            return nextPublishSeqNo;
+        }
+    }
+
+    @Override
+    public boolean waitForConfirms() throws InterruptedException {
+        try {
+            return waitForConfirms(0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 内嵌broker不会nack，等到目前为止发布的消息都确认后返回true
+     */
+    @Override
+    public boolean waitForConfirms(long timeout) throws InterruptedException, TimeoutException {
+        if (!confirmMode) {
+            throw new IllegalStateException("Confirms not selected");
+        }
+        long target;
+        synchronized (publishLock) {
+            target = nextPublishSeqNo - 1;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (confirmLock) {
+            while (confirmedSeqNo < target) {
+                ensureOpen();
+                if (timeout == 0) {
+                    confirmLock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    confirmLock.wait(remaining);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void waitForConfirmsOrDie() throws IOException, InterruptedException {
+        waitForConfirms();
+    }
+
+    @Override
+    public void waitForConfirmsOrDie(long timeout) throws IOException, InterruptedException, TimeoutException {
+        waitForConfirms(timeout);
+    }
+
+    @Override
+    public void asyncRpc(Method method) throws IOException {
+        rpc(method);
+    }
+
+    /**
+     * 把AMQP方法转给对应的通道方法执行，返回其应答
+     */
+    @Override
+    public Command rpc(Method method) throws IOException {
+        ensureOpen();
+        Method reply;
+        if (method instanceof AMQP.Queue.Declare) {
+            AMQP.Queue.Declare declare = (AMQP.Queue.Declare) method;
+            reply = declare.getPassive() ? queueDeclarePassive(declare.getQueue())
+                    : queueDeclare(declare.getQueue(), declare.getDurable(), declare.getExclusive(), declare.getAutoDelete(),
+                    declare.getArguments());
+        } else if (method instanceof AMQP.Queue.Bind) {
+            AMQP.Queue.Bind bind = (AMQP.Queue.Bind) method;
+            reply = queueBind(bind.getQueue(), bind.getExchange(), bind.getRoutingKey(), bind.getArguments());
+        } else if (method instanceof AMQP.Queue.Unbind) {
+            AMQP.Queue.Unbind unbind = (AMQP.Queue.Unbind) method;
+            reply = queueUnbind(unbind.getQueue(), unbind.getExchange(), unbind.getRoutingKey(), unbind.getArguments());
+        } else if (method instanceof AMQP.Queue.Delete) {
+            AMQP.Queue.Delete delete = (AMQP.Queue.Delete) method;
+            reply = queueDelete(delete.getQueue(), delete.getIfUnused(), delete.getIfEmpty());
+        } else if (method instanceof AMQP.Queue.Purge) {
+            reply = queuePurge(((AMQP.Queue.Purge) method).getQueue());
+        } else if (method instanceof AMQP.Exchange.Declare) {
+            AMQP.Exchange.Declare declare = (AMQP.Exchange.Declare) method;
+            reply = declare.getPassive() ? exchangeDeclarePassive(declare.getExchange())
+                    : exchangeDeclare(declare.getExchange(), declare.getType(), declare.getDurable(), declare.getAutoDelete(),
+                    declare.getInternal(), declare.getArguments());
+        } else if (method instanceof AMQP.Exchange.Delete) {
+            AMQP.Exchange.Delete delete = (AMQP.Exchange.Delete) method;
+            reply = exchangeDelete(delete.getExchange(), delete.getIfUnused());
+        } else if (method instanceof AMQP.Basic.Qos) {
+            AMQP.Basic.Qos qos = (AMQP.Basic.Qos) method;
+            basicQos(qos.getPrefetchSize(), qos.getPrefetchCount(), qos.getGlobal());
+            reply = new AMQImpl.Basic.QosOk();
+        } else if (method instanceof AMQP.Basic.Recover) {
+            reply = basicRecover(((AMQP.Basic.Recover) method).getRequeue());
+        } else if (method instanceof AMQP.Confirm.Select) {
+            reply = confirmSelect();
+        } else if (method instanceof AMQP.Tx.Select) {
+            reply = txSelect();
+        } else if (method instanceof AMQP.Tx.Commit) {
+            reply = txCommit();
+        } else if (method instanceof AMQP.Tx.Rollback) {
+            reply = txRollback();
+        } else {
+            throw error(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - " + method.protocolMethodName());
+        }
+        return new AMQCommand(reply);
+    }
+
+    @Override
+    public long messageCount(String queue) throws IOException {
+        return queueDeclarePassive(queue).getMessageCount();
+    }
+
+    @Override
+    public long consumerCount(String queue) throws IOException {
+        return queueDeclarePassive(queue).getConsumerCount();
+    }
+
+    @Override
+    public CompletableFuture<Command> asyncCompletableRpc(Method method) throws IOException {
+        CompletableFuture<Command> future = new CompletableFuture<Command>();
+        try {
+            future.complete(rpc(method));
+        } catch (IOException | AlreadyClosedException e) {
+            //与客户端一致，通道错误通过future通知
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void addShutdownListener(ShutdownListener listener) {
+        ShutdownSignalException reason = closeReason;
+        if (reason != null) {
+            listener.shutdownCompleted(reason);
+            return;
+        }
+        shutdownListeners.add(listener);
+    }
+
+    @Override
+    public void removeShutdownListener(ShutdownListener listener) {
+        shutdownListeners.remove(listener);
+    }
+
+    @Override
+    public ShutdownSignalException getCloseReason() {
+        return closeReason;
+    }
+
+    @Override
+    public void notifyListeners() {
+        ShutdownSignalException reason = closeReason;
+        for (ShutdownListener listener : shutdownListeners) {
+            try {
+                listener.shutdownCompleted(reason);
+            } catch (Throwable e) {
+                //与客户端一致，监听器的异常不影响关闭
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return closeReason == null;
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddedChannel(" + connection.getId() + "#" + number + ")";
+    }
+
+    /**
+     * 已投递未确认的消息
+     */
+    private static final class Unacked {
+        final Message message;
+        final BrokerQueue queue;
+        final QueueConsumer consumer;//basicGet取出的消息为null
+
+        Unacked(Message message, BrokerQueue queue, QueueConsumer consumer) {
+            this.message = message;
+            this.queue = queue;
+            this.consumer = consumer;
+        }
+    }
+
+    /**
+     * 事务中等待提交的一次发布
+     */
+    private static final class PendingPublish {
+        final String exchange;
+        final String routingKey;
+        final boolean mandatory;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+
+        PendingPublish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties properties,
+                       byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.mandatory = mandatory;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ExceptionHandler;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.ForgivingExceptionHandler;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 内嵌broker的连接
+ * 没有网络和心跳，关闭时关闭所有通道并删除本连接声明的排他队列。
+ * 与客户端的连接读线程一样，每个打开的连接持有一个非守护线程，连接不关闭进程就不会退出；
+ * 发布确认和mandatory退回也在这个线程上回调，不受阻塞的消费者影响。
+ */
+final class EmbeddedConnection implements Connection {
+
+    private static final int CHANNEL_MAX = 2047;
+    private static final Runnable STOP = () -> { };
+
+    final EmbeddedBroker broker;
+    private final String clientProvidedName;
+    private final Map<Integer, EmbeddedChannel> channels = new ConcurrentHashMap<Integer, EmbeddedChannel>();
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<ShutdownListener>();
+    private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<BlockedListener>();
+    //与客户端的默认行为一致：消费者抛出的异常只记录，不关闭通道
+    private final ExceptionHandler exceptionHandler = new ForgivingExceptionHandler();
+    private final BlockingQueue<Runnable> ioTasks = new LinkedBlockingQueue<Runnable>();
+    private volatile String id;
+    private volatile ShutdownSignalException closeReason;
+
+    EmbeddedConnection(EmbeddedBroker broker, String id, String clientProvidedName) {
+        this.broker = broker;
+        this.id = id;
+        this.clientProvidedName = clientProvidedName;
+        Thread ioThread = new Thread(this::runIo, "embedded-connection-" + id);
+        ioThread.start();
+    }
+
+    /**
+     * 在连接线程上执行回调，同一连接上按提交顺序执行
+     */
+    void io(Runnable task) {
+        ioTasks.add(task);
+    }
+
+    private void runIo() {
+        try {
+            Runnable task;
+            while ((task = ioTasks.take()) != STOP) {
+                task.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void channelClosed(EmbeddedChannel channel) {
+        channels.remove(channel.getChannelNumber(), channel);
+    }
+
+    @Override
+    public InetAddress getAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return 0;
+    }
+
+    @Override
+    public int getChannelMax() {
+        return CHANNEL_MAX;
+    }
+
+    @Override
+    public int getFrameMax() {
+        return 0;
+    }
+
+    @Override
+    public int getHeartbeat() {
+        return 0;
+    }
+
+    @Override
+    public Map<String, Object> getClientProperties() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getClientProvidedName() {
+        return clientProvidedName;
+    }
+
+    @Override
+    public Map<String, Object> getServerProperties() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("product", "embedded-broker");
+        return properties;
+    }
+
+    @Override
+    public Channel createChannel() {
+        ensureOpen();
+        synchronized (channels) {
+            for (int number = 1; number <= CHANNEL_MAX; number++) {
+                if (!channels.containsKey(number)) {
+                    return open(number);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 该编号已被占用时返回null
+     */
+    @Override
+    public Channel createChannel(int channelNumber) {
+        ensureOpen();
+        synchronized (channels) {
+            return channels.containsKey(channelNumber) ? null : open(channelNumber);
+        }
+    }
+
+    private EmbeddedChannel open(int number) {
+        EmbeddedChannel channel = new EmbeddedChannel(this, number);
+        channels.put(number, channel);
+        return channel;
+    }
+
+    private void ensureOpen() {
+        ShutdownSignalException reason = closeReason;
+        if (reason != null) {
+            throw new AlreadyClosedException(reason);
+        }
+    }
+
+    @Override
+    public void close() {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    @Override
+    public void close(int closeCode, String closeMessage) {
+        ensureOpen();
+        shutdown(closeCode, closeMessage);
+    }
+
+    @Override
+    public void close(int timeout) {
+        close();
+    }
+
+    @Override
+    public void close(int closeCode, String closeMessage, int timeout) {
+        close(closeCode, closeMessage);
+    }
+
+    @Override
+    public void abort() {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    @Override
+    public void abort(int closeCode, String closeMessage) {
+        shutdown(closeCode, closeMessage);
+    }
+
+    @Override
+    public void abort(int timeout) {
+        abort();
+    }
+
+    @Override
+    public void abort(int closeCode, String closeMessage, int timeout) {
+        abort(closeCode, closeMessage);
+    }
+
+    private void shutdown(int closeCode, String closeMessage) {
+        ShutdownSignalException signal = new ShutdownSignalException(true, true,
+                new AMQImpl.Connection.Close(closeCode, closeMessage, 0, 0), this);
+        synchronized (this) {
+            if (closeReason != null) {
+                return;
+            }
+            closeReason = signal;
+        }
+        for (EmbeddedChannel channel : new ArrayList<EmbeddedChannel>(channels.values())) {
+            channel.shutdown(signal);
+        }
+        broker.connectionClosed(this);
+        ioTasks.add(STOP);
+        notifyListeners();
+    }
+
+    @Override
+    public void addBlockedListener(BlockedListener listener) {
+        blockedListeners.add(listener);
+    }
+
+    /**
+     * 内嵌broker不会阻塞连接，监听器只保存不触发
+     */
+    @Override
+    public BlockedListener addBlockedListener(BlockedCallback blockedCallback, UnblockedCallback unblockedCallback) {
+        BlockedListener listener = new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) throws java.io.IOException {
+                blockedCallback.handle(reason);
+            }
+
+            @Override
+            public void handleUnblocked() throws java.io.IOException {
+                unblockedCallback.handle();
+            }
+        };
+        addBlockedListener(listener);
+        return listener;
+    }
+
+    @Override
+    public boolean removeBlockedListener(BlockedListener listener) {
+        return blockedListeners.remove(listener);
+    }
+
+    @Override
+    public void clearBlockedListeners() {
+        blockedListeners.clear();
+    }
+
+    @Override
+    public ExceptionHandler getExceptionHandler() {
+        return exceptionHandler;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public void addShutdownListener(ShutdownListener listener) {
+        ShutdownSignalException reason = closeReason;
+        if (reason != null) {
+            listener.shutdownCompleted(reason);
+            return;
+        }
+        shutdownListeners.add(listener);
+    }
+
+    @Override
+    public void removeShutdownListener(ShutdownListener listener) {
+        shutdownListeners.remove(listener);
+    }
+
+    @Override
+    public ShutdownSignalException getCloseReason() {
+        return closeReason;
+    }
+
+    @Override
+    public void notifyListeners() {
+        ShutdownSignalException reason = closeReason;
+        for (ShutdownListener listener : shutdownListeners) {
+            try {
+                listener.shutdownCompleted(reason);
+            } catch (Throwable e) {
+                //与客户端一致，监听器的异常不影响关闭
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return closeReason == null;
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddedConnection(" + id + ")";
+    }
+}
@@ -0,0 +1,31 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * 队列中的一条消息，不可变
+ * 消息体在发布时已经复制，发布者可以立即复用自己的数组
+ */
+final class Message {
+
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties properties;
+    final byte[] body;
+    final boolean redelivered;
+
+    Message(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body, boolean redelivered) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+        this.redelivered = redelivered;
+    }
+
+    /**
+     * 重新入队的副本
+     */
+    Message redelivery() {
+        return redelivered ? this : new Message(exchange, routingKey, properties, body, true);
+    }
+}
@@ -0,0 +1,36 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.Consumer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 队列上的一个消费者，记录它在哪个通道上、预取数以及未确认的消息数
+ */
+final class QueueConsumer {
+
+    final EmbeddedChannel channel;
+    final BrokerQueue queue;
+    final String tag;
+    final Consumer consumer;
+    final boolean autoAck;
+    final int prefetch;//0表示不限制
+    final AtomicInteger unacked = new AtomicInteger();
+    volatile boolean active = true;
+
+    QueueConsumer(EmbeddedChannel channel, BrokerQueue queue, String tag, Consumer consumer, boolean autoAck, int prefetch) {
+        this.channel = channel;
+        this.queue = queue;
+        this.tag = tag;
+        this.consumer = consumer;
+        this.autoAck = autoAck;
+        this.prefetch = autoAck ? 0 : prefetch;
+    }
+
+    /**
+     * 是否还能再接收一条消息
+     */
+    boolean hasCredit() {
+        return active && (prefetch == 0 || unacked.get() < prefetch) && (autoAck || channel.hasCredit());
+    }
+}
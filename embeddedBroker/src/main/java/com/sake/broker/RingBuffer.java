@@ -0,0 +1,95 @@
+package com.sake.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界无锁环形缓冲，多生产者单消费者
+ * 每个槽位带一个序号：生产者CAS抢到写位置后写入元素，再发布序号；消费者看到序号就绪才读取。
+ * 消费者一侧（peek/poll）同一时刻只能有一个线程调用，由队列的分发标记保证。
+ */
+final class RingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    RingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        elements = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * 写入一个元素
+     * @return 缓冲已满时返回false
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 查看最早的元素但不取出，没有就绪的元素时返回null
+     */
+    @SuppressWarnings("unchecked")
+    E peek() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return (E) elements[index];
+    }
+
+    /**
+     * 取出最早的元素，没有就绪的元素时返回null
+     */
+    E poll() {
+        E element = peek();
+        if (element != null) {
+            long position = head;
+            int index = (int) position & mask;
+            elements[index] = null;
+            sequences.lazySet(index, position + elements.length);
+            head = position + 1;
+        }
+        return element;
+    }
+
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+}
@@ -0,0 +1,226 @@
+package com.sake.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 预取、确认和事务的语义与rabbitMQ一致
+ */
+public class EmbeddedChannelTest {
+
+    private static final String QUEUE = "embedded_channel_test";
+    private static final long WAIT_MILLIS = 2000;
+    private static final long QUIET_MILLIS = 200;//确认没有多余投递时等待的时间
+
+    private EmbeddedBroker broker;
+    private Connection connection;
+    private Channel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        broker = new EmbeddedBroker();
+        connection = broker.newConnection();
+        channel = connection.createChannel();
+        channel.queueDeclare(QUEUE, false, false, false, null);
+    }
+
+    @After
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Test
+    public void perConsumerPrefetchLimitsEachConsumer() throws Exception {
+        channel.basicQos(2);
+        BlockingQueue<Long> first = consume();
+        BlockingQueue<Long> second = consume();
+        publish(10);
+        assertDeliveries(first, 2);
+        assertDeliveries(second, 2);
+
+        //确认一条只给该消费者补一条
+        long tag = first.peek();
+        first.clear();
+        channel.basicAck(tag, false);
+        assertDeliveries(first, 1);
+        assertDeliveries(second, 2);
+    }
+
+    @Test
+    public void perConsumerPrefetchOnlyAppliesToLaterConsumers() throws Exception {
+        channel.basicQos(1);
+        BlockingQueue<Long> first = consume();
+        channel.basicQos(3);
+        BlockingQueue<Long> second = consume();
+        publish(10);
+        assertDeliveries(first, 1);
+        assertDeliveries(second, 3);
+    }
+
+    @Test
+    public void globalPrefetchIsSharedByTheChannel() throws Exception {
+        channel.basicQos(3, true);
+        BlockingQueue<Long> first = consume();
+        BlockingQueue<Long> second = consume();
+        publish(10);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(3, first.size() + second.size());
+        assertEquals(7, broker.messageCount(QUEUE));
+
+        //放宽通道级额度立即生效，不需要重新订阅
+        channel.basicQos(5, true);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(5, first.size() + second.size());
+    }
+
+    @Test
+    public void multipleAckSettlesEveryTagUpToIt() throws Exception {
+        channel.basicQos(4);
+        BlockingQueue<Long> deliveries = consume();
+        publish(8);
+        assertDeliveries(deliveries, 4);
+        long last = 0;
+        for (Long tag : deliveries) {
+            last = Math.max(last, tag);
+        }
+        deliveries.clear();
+        channel.basicAck(last, true);
+        assertDeliveries(deliveries, 4);
+        assertEquals(0, broker.messageCount(QUEUE));
+    }
+
+    @Test
+    public void multipleNackRequeuesEveryTagUpToIt() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            channel.basicPublish("", QUEUE, null, new byte[]{(byte) i});
+        }
+        channel.basicGet(QUEUE, false);
+        channel.basicGet(QUEUE, false);
+        long tag = channel.basicGet(QUEUE, false).getEnvelope().getDeliveryTag();
+        assertEquals(0, broker.messageCount(QUEUE));
+        channel.basicNack(tag, true, true);
+        assertEquals(3, broker.messageCount(QUEUE));
+        assertTrue(channel.basicGet(QUEUE, true).getEnvelope().isRedeliver());
+    }
+
+    @Test
+    public void unknownTagClosesTheChannel() throws Exception {
+        assertChannelError(() -> channel.basicAck(42, false), AMQP.PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void ackAfterMultipleAckClosesTheChannel() throws Exception {
+        publish(2);
+        channel.basicGet(QUEUE, false);
+        long tag = channel.basicGet(QUEUE, false).getEnvelope().getDeliveryTag();
+        channel.basicAck(tag, true);
+        //第一条已被multiple确认覆盖，再确认就是未知的tag
+        assertChannelError(() -> channel.basicAck(tag - 1, false), AMQP.PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void transactionRoutesPublishesOnCommitOnly() throws Exception {
+        channel.txSelect();
+        publish(3);
+        assertEquals(0, broker.messageCount(QUEUE));
+        channel.txRollback();
+        assertEquals(0, broker.messageCount(QUEUE));
+
+        publish(2);
+        channel.txCommit();
+        assertEquals(2, broker.messageCount(QUEUE));
+    }
+
+    @Test
+    public void commitWithoutSelectClosesTheChannel() throws Exception {
+        assertChannelError(() -> channel.txCommit(), AMQP.PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void confirmAndTxCannotBeMixed() throws Exception {
+        channel.confirmSelect();
+        assertChannelError(() -> channel.txSelect(), AMQP.PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void rawRpcRunsTheMatchingMethod() throws Exception {
+        AMQP.Queue.DeclareOk ok = (AMQP.Queue.DeclareOk) channel.rpc(new AMQP.Queue.Declare.Builder()
+                .queue(QUEUE).passive().build()).getMethod();
+        assertEquals(QUEUE, ok.getQueue());
+        channel.asyncCompletableRpc(new AMQP.Queue.Purge.Builder().queue(QUEUE).build()).get();
+        assertEquals(0, broker.messageCount(QUEUE));
+        assertTrue(channel.rpc(new AMQImpl.Basic.Recover(true)).getMethod() instanceof AMQP.Basic.RecoverOk);
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void unsupportedRawMethodClosesTheChannel() throws Exception {
+        assertChannelError(() -> channel.rpc(new AMQP.Channel.Flow.Builder().active(false).build()), AMQP.NOT_IMPLEMENTED);
+    }
+
+    private BlockingQueue<Long> consume() throws IOException {
+        BlockingQueue<Long> tags = new LinkedBlockingQueue<Long>();
+        channel.basicConsume(QUEUE, false, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                tags.add(envelope.getDeliveryTag());
+            }
+        });
+        return tags;
+    }
+
+    private void publish(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            channel.basicPublish("", QUEUE, null, new byte[]{(byte) i});
+        }
+    }
+
+    /**
+     * 等到恰好expected条投递，再等一会确认没有多出来的
+     */
+    private static void assertDeliveries(BlockingQueue<Long> tags, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (tags.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(expected, tags.size());
+    }
+
+    private interface ChannelCall {
+        void call() throws IOException;
+    }
+
+    /**
+     * 调用以IOException失败，通道按给定的错误码关闭
+     */
+    private void assertChannelError(ChannelCall call, int expected) {
+        try {
+            call.call();
+            fail("expected channel error " + expected);
+        } catch (IOException e) {
+            ShutdownSignalException signal = (ShutdownSignalException) e.getCause();
+            assertNotNull(signal);
+            assertEquals(expected, ((AMQP.Channel.Close) signal.getReason()).getReplyCode());
+            assertFalse(channel.isOpen());
+        }
+    }
+}
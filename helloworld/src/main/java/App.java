@@ -2,17 +2,19 @@ import com.rabbitmq.client.*;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Paths;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class App {
 
-    private final static String QUEUE_NAME="SAKE_FIRST_QUEUE";
+    private final static String QUEUE_NAME=Registration.HELLO_QUEUE_NAME;
 
     private void send() throws IOException, TimeoutException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //从连接中创建通道，使用通道完成消息相关操作
-        Channel channel = connection.createChannel();
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
         //消息内容
         String message = "hello ,this is Sake's first Message";
         //向指定队列中发送消息
@@ -22,27 +24,15 @@ public class App {
          * 3、props，消息的属性
          * 4、body，消息内容
          */
-        channel.basicPublish("",QUEUE_NAME,null,message.getBytes());
-        System.out.println("[x] Send '"+message+"'");
-        channel.close();
-        connection.close();
+        Metrics.publish(channel,"",QUEUE_NAME,null,MessageCodecs.UTF8.encodePooled(message));
+        ConnectionManager.getInstance().returnChannel(channel);
     }
 
     private void receive() throws Exception {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //创建会话通道，生产者和mq服务所有的通信都在通道里完成
-        Channel channel = connection.createChannel();
-        //创建队列
-        /**
-         * 参数含义：
-         * 1、queue 队列名称
-         * 2、durable 是否持久化，如果持久化，mq重启后队列还在
-         * 3、exclusive 是否独占连接，队列只允许在该连接中访问，如果connection连接关闭队列则自动删除,如果将此参数设置true可用于临时队列的创建
-         * 4、autoDelete 自动删除，队列不再使用时是否自动删除此队列，如果将此参数和exclusive参数设置为true就可以实现临时队列（队列不用了就自动删除）
-         * 5、arguments 参数，可以设置一个队列的扩展参数，比如：可设置存活时间
-         */
-        channel.queueDeclare(QUEUE_NAME,false,false,false,null);
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑，队列参数见Registration
+        Registration.TOPOLOGY.apply(channel);
         //实现消费方法
         DefaultConsumer consumer = new DefaultConsumer(channel){
             /**
@@ -59,9 +49,8 @@ public class App {
                 String exchange = envelope.getExchange();
                 //消息id，mq在channel中用来标识消息的id，可用于确认消息已接收
                 long deliveryTag = envelope.getDeliveryTag();
-                // body 即消息体
-                String msg = new String(body,"utf-8");
-                System.out.println(" [x] received : " + msg + "!");
+                // 只计数，不再逐条打印
+                Metrics.counter("helloworld.received").increment();
             }
         };
         // 监听队列，第二个参数：是否自动进行消息确认。
@@ -72,15 +61,101 @@ public class App {
          * 2、autoAck 自动回复，当消费者接收到消息后要告诉mq消息已接收，如果将此参数设置为tru表示会自动回复mq，如果设置为false要通过编程实现回复
          * 3、callback，消费方法，当消费者接收到消息要执行的方法
          */
-        channel.basicConsume(QUEUE_NAME, true, consumer);
+        channel.basicConsume(QUEUE_NAME, true, Metrics.metered(consumer));
 /*        synchronized (this){
             // 因为以上接收消息的方法是异步的（非阻塞），当采用单元测试方式执行该方法时，程序会在打印消息前结束，因此使用wait来防止程序提前终止。若使用main方法执行，则不需要担心该问题。
             wait();
         }*/
     }
 
+    /**
+     * 响应式发送：上游每产生一条消息，确认后才向上游要下一条
+     */
+    private void sendReactive(int count) throws Exception {
+        PublishingSubscriber subscriber = new PublishingSubscriber("", QUEUE_NAME, null, 16);
+        try (SubmissionPublisher<byte[]> upstream = new SubmissionPublisher<byte[]>()) {
+            upstream.subscribe(subscriber);
+            for (int i = 0; i < count; i++) {
+                //上游的缓冲满了会阻塞在这里，发布者持有消息体直到确认，不能使用复用的数组
+                upstream.submit(MessageCodecs.UTF8.encode("hello ,this is Sake's message " + i));
+            }
+        }
+        System.out.println("[x] confirmed " + subscriber.done().get());
+    }
+
+    /**
+     * 响应式接收：慢速的订阅者每处理完一条才要下一条，客户端最多积压预取数那么多条消息
+     */
+    private void receiveReactive() throws Exception {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        Registration.TOPOLOGY.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+
+        new QueuePublisher(QUEUE_NAME, 16).subscribe(new Flow.Subscriber<Delivery>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Delivery delivery) {
+                Metrics.counter("helloworld.received").increment();
+                try {
+                    //模拟处理耗时
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.out.println("[x] subscription failed: " + throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("[x] subscription completed");
+            }
+        });
+    }
+
+    /**
+     * 经本地发件箱发送：broker不可用时消息写入本地日志，不抛异常，broker恢复后按顺序重放
+     */
+    private void sendThroughOutbox(int count) throws Exception {
+        try (Outbox outbox = new Outbox(Paths.get(System.getProperty("java.io.tmpdir"), "rabbitmq-outbox"))) {
+            for (int i = 0; i < count; i++) {
+                //发件箱在确认前持有消息体，不能使用复用的数组
+                outbox.publish("", QUEUE_NAME, null, MessageCodecs.UTF8.encode("hello ,this is Sake's message " + i));
+            }
+            while (outbox.isSpooling()) {
+                System.out.println("[x] waiting for broker, " + outbox.pendingBytes() + " bytes spooled");
+                TimeUnit.SECONDS.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * 参数为reactive时使用Flow接口收发，为outbox时经本地发件箱发送
+     */
     public static void main(String[] args) throws Exception {
+        //每秒输出一次收发统计
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
+        if (args.length > 0 && "reactive".equals(args[0])) {
+            app.receiveReactive();
+            app.sendReactive(200);
+            return;
+        }
+        if (args.length > 0 && "outbox".equals(args[0])) {
+            app.sendThroughOutbox(200);
+            return;
+        }
         app.receive();
         app.send();
     }
@@ -0,0 +1,121 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * 发布路径的分配检查
+ * 用线程分配计数器统计每条消息在发布线程上分配的字节数，对比Metrics.publish和FastPublisher：
+ * 1. 消息头编码：与客户端组帧时一样调用writePropertiesTo，只统计属性本身的分配；
+ * 2. 完整发布：经过通道发布到一个临时队列，包含客户端（或进程内broker）自身的分配。
+ * 预热后ReusableProperties编码消息头的分配超过阈值时以状态码1退出；同样的检查由Utils的ReusablePropertiesTest在mvn test中执行。
+ * 运行：java -cp perfTest/target/perf-test.jar AllocationCheck [--embedded] [--messages N]
+ */
+public class AllocationCheck {
+
+    private static final double MAX_BYTES_PER_MESSAGE = 1.0;//复用属性编码允许的分配，留给偶发的扩容
+    private static final int ROUNDS = 5;//前几轮为预热，只报告最后一轮
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Publish {
+        void run(long i) throws IOException;
+    }
+
+    /**
+     * @return 最后一轮每条消息分配的字节数
+     */
+    private static double measure(String name, long messages, Publish publish) throws IOException {
+        long thread = Thread.currentThread().threadId();
+        double perMessage = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = THREADS.getThreadAllocatedBytes(thread);
+            for (long i = 0; i < messages; i++) {
+                publish.run(i);
+            }
+            perMessage = (THREADS.getThreadAllocatedBytes(thread) - start) / (double) messages;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-32s %10.1f bytes/msg", name, perMessage));
+        return perMessage;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long messages = 200000;
+        boolean embedded = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--embedded".equals(args[i])) {
+                embedded = true;
+                System.setProperty(ConnectionUtil.BROKER_PROPERTY, "embedded");
+            } else if ("--messages".equals(args[i]) && i + 1 < args.length) {
+                messages = Long.parseLong(args[++i]);
+            } else {
+                System.out.println("usage: AllocationCheck [--embedded] [--messages N]");
+                System.exit(2);
+            }
+        }
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocation counters are not supported by this JVM");
+            System.exit(2);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        AMQP.BasicProperties template = new AMQP.BasicProperties.Builder()
+                .contentType(MessageCodecs.UTF8.contentType())
+                .deliveryMode(2)
+                .build();
+        //组帧时客户端把消息头写进帧的缓冲区，这里复用同一个缓冲区，只统计属性的分配
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream(1024);
+        final ContentHeaderPropertyWriter writer = new ContentHeaderPropertyWriter(new DataOutputStream(frame));
+        final ReusableProperties reusable = new ReusableProperties(template);
+        System.out.println("header encoding:");
+        measure("Metrics.stamp", messages, i -> {
+            frame.reset();
+            Metrics.stamp(template).writePropertiesTo(writer);
+        });
+        double reusableBytes = measure("ReusableProperties", messages, i -> {
+            frame.reset();
+            reusable.next().writePropertiesTo(writer);
+        });
+
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        String queue = channel.queueDeclare().getQueue();
+        final Channel publishChannel = channel;
+        final byte[] body = MessageCodecs.UTF8.encode("allocation check payload");
+        final FastPublisher publisher = new FastPublisher(channel, template);
+        final FastPublisher.Route route = publisher.route("", queue);
+        System.out.println("publish (including client framing):");
+        measure("Metrics.publish", messages, i -> {
+            Metrics.publish(publishChannel, "", queue, template, body);
+            if (i % 10000 == 0) {
+                publishChannel.queuePurge(queue);
+            }
+        });
+        measure("FastPublisher", messages, i -> {
+            publisher.publish(route, body);
+            if (i % 10000 == 0) {
+                publishChannel.queuePurge(queue);
+            }
+        });
+        if (embedded) {
+            //进程内broker在队列中保存属性对象，复用的属性在发布时被复制一份
+            System.out.println("(the embedded broker keeps a copy of reused properties, run against RabbitMQ for client-only numbers)");
+        }
+        channel.queueDelete(queue);
+        ConnectionManager.getInstance().returnChannel(channel);
+        ConnectionManager.getInstance().close();
+
+        if (reusableBytes > MAX_BYTES_PER_MESSAGE) {
+            System.out.println(String.format(Locale.ROOT, "FAILED: ReusableProperties allocates %.1f bytes/msg, limit %.1f",
+                    reusableBytes, MAX_BYTES_PER_MESSAGE));
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+}
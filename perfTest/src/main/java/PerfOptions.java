@@ -0,0 +1,160 @@
+import com.rabbitmq.client.BuiltinExchangeType;
+
+import java.util.Locale;
+
+/**
+ * 压测参数，命令行格式为--name value或--name=value
+ */
+final class PerfOptions {
+
+    int producers = 1;//生产者线程数
+    int consumers = 1;//消费者数，轮流分配到各队列
+    int queues = 1;//队列数
+    long rate = 0;//所有生产者合计的目标速率，条/秒，0表示不限速
+    int size = 64;//消息体字节数
+    BuiltinExchangeType exchangeType = BuiltinExchangeType.DIRECT;
+    boolean autoAck = true;
+    int prefetch = 100;//每个消费者的预取数，0表示不限制
+    int confirm = 0;//发布确认的未确认上限，0表示不开启确认
+    long durationSeconds = 30;
+    long intervalSeconds = 1;//报告间隔
+    String output;//结果文件，json格式
+    boolean embedded;//使用进程内broker
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "usage: java -jar perf-test.jar [options]",
+            "  --producers N      producer threads (1)",
+            "  --consumers N      consumers, spread over the queues (1)",
+            "  --queues N         queues bound to the exchange (1)",
+            "  --rate N           total publish rate in msg/s, 0 = unlimited (0)",
+            "  --size N           message body size in bytes (64)",
+            "  --exchange TYPE    direct | fanout | topic (direct)",
+            "  --ack MODE         auto | manual (auto)",
+            "  --prefetch N       per-consumer prefetch, 0 = unlimited (100)",
+            "  --confirm N        publisher confirms with N unconfirmed, 0 = off (0)",
+            "  --duration S       run time in seconds (30)",
+            "  --interval S       report interval in seconds (1)",
+            "  --output FILE      write results as json",
+            "  --embedded         use the in-process broker");
+
+    /**
+     * @throws IllegalArgumentException 参数不合法
+     */
+    static PerfOptions parse(String[] args) {
+        PerfOptions options = new PerfOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + arg);
+            }
+            String name = arg.substring(2);
+            String value = null;
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                value = name.substring(eq + 1);
+                name = name.substring(0, eq);
+            }
+            if ("embedded".equals(name)) {
+                options.embedded = value == null || Boolean.parseBoolean(value);
+                continue;
+            }
+            if (value == null) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for --" + name);
+                }
+                value = args[++i];
+            }
+            switch (name) {
+                case "producers":
+                    options.producers = positive(name, value, 0);
+                    break;
+                case "consumers":
+                    options.consumers = positive(name, value, 0);
+                    break;
+                case "queues":
+                    options.queues = positive(name, value, 1);
+                    break;
+                case "rate":
+                    options.rate = positive(name, value, 0);
+                    break;
+                case "size":
+                    options.size = positive(name, value, 0);
+                    break;
+                case "exchange":
+                    options.exchangeType = exchangeType(value);
+                    break;
+                case "ack":
+                    if (!"auto".equals(value) && !"manual".equals(value)) {
+                        throw new IllegalArgumentException("--ack must be auto or manual: " + value);
+                    }
+                    options.autoAck = "auto".equals(value);
+                    break;
+                case "prefetch":
+                    options.prefetch = positive(name, value, 0);
+                    break;
+                case "confirm":
+                    options.confirm = positive(name, value, 0);
+                    break;
+                case "duration":
+                    options.durationSeconds = positive(name, value, 1);
+                    break;
+                case "interval":
+                    options.intervalSeconds = positive(name, value, 1);
+                    break;
+                case "output":
+                    options.output = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option --" + name);
+            }
+        }
+        if (options.producers == 0 && options.consumers == 0) {
+            throw new IllegalArgumentException("nothing to run: no producers and no consumers");
+        }
+        if (options.prefetch > 65535) {
+            throw new IllegalArgumentException("--prefetch must not exceed 65535");
+        }
+        return options;
+    }
+
+    private static int positive(String name, String value, int min) {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+        }
+        if (n < min) {
+            throw new IllegalArgumentException("--" + name + " must be at least " + min + ": " + value);
+        }
+        return n;
+    }
+
+    private static BuiltinExchangeType exchangeType(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "direct":
+                return BuiltinExchangeType.DIRECT;
+            case "fanout":
+                return BuiltinExchangeType.FANOUT;
+            case "topic":
+                return BuiltinExchangeType.TOPIC;
+            default:
+                throw new IllegalArgumentException("--exchange must be direct, fanout or topic: " + value);
+        }
+    }
+
+    String toJson() {
+        return "{\"producers\":" + producers
+                + ",\"consumers\":" + consumers
+                + ",\"queues\":" + queues
+                + ",\"rate\":" + rate
+                + ",\"size\":" + size
+                + ",\"exchange\":\"" + exchangeType.getType() + "\""
+                + ",\"ack\":\"" + (autoAck ? "auto" : "manual") + "\""
+                + ",\"prefetch\":" + prefetch
+                + ",\"confirm\":" + confirm
+                + ",\"durationSeconds\":" + durationSeconds
+                + ",\"intervalSeconds\":" + intervalSeconds
+                + ",\"embedded\":" + embedded + "}";
+    }
+}
@@ -0,0 +1,78 @@
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 压测结果：每个区间输出一行，结束时输出汇总，并可写成json
+ * 速率单位为条/秒，延迟单位为微秒
+ */
+final class PerfReport {
+
+    private final PerfOptions options;
+    private final List<String> intervals = new ArrayList<String>();
+    private String summary;
+
+    PerfReport(PerfOptions options) {
+        this.options = options;
+    }
+
+    void interval(double elapsedSeconds, double seconds, long sent, long received, Histogram latency) {
+        double sendRate = sent / seconds;
+        double receiveRate = received / seconds;
+        System.out.println(String.format(Locale.ROOT, "%7.1fs  sent %10.0f/s  received %10.0f/s  latency %s",
+                elapsedSeconds, sendRate, receiveRate, percentiles(latency)));
+        intervals.add(String.format(Locale.ROOT,
+                "{\"elapsedSeconds\":%.3f,\"sent\":%d,\"sendRate\":%.1f,\"received\":%d,\"receiveRate\":%.1f,%s}",
+                elapsedSeconds, sent, sendRate, received, receiveRate, latencyJson(latency)));
+    }
+
+    void summary(double sendSeconds, double receiveSeconds, long sent, long confirmed, long nacked, long received,
+                 long failed, Histogram latency) {
+        double sendRate = sent / Math.max(1e-9, sendSeconds);
+        double receiveRate = received / Math.max(1e-9, receiveSeconds);
+        System.out.println(String.format(Locale.ROOT, "summary  sent %d (%.0f/s)  received %d (%.0f/s)  latency %s",
+                sent, sendRate, received, receiveRate, percentiles(latency)));
+        if (options.confirm > 0) {
+            System.out.println(String.format(Locale.ROOT, "         confirmed %d  nacked %d", confirmed, nacked));
+        }
+        if (failed > 0) {
+            System.out.println(String.format(Locale.ROOT, "         failed publishes %d", failed));
+        }
+        summary = String.format(Locale.ROOT,
+                "{\"sendSeconds\":%.3f,\"receiveSeconds\":%.3f,\"sent\":%d,\"sendRate\":%.1f,\"confirmed\":%d,\"nacked\":%d,"
+                        + "\"failed\":%d,\"received\":%d,\"receiveRate\":%.1f,%s}",
+                sendSeconds, receiveSeconds, sent, sendRate, confirmed, nacked, failed, received, receiveRate, latencyJson(latency));
+    }
+
+    void write(Path path) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"options\":").append(options.toJson()).append(",\n\"intervals\":[");
+        for (int i = 0; i < intervals.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n").append(intervals.get(i));
+        }
+        json.append("],\n\"summary\":").append(summary).append("}\n");
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String percentiles(Histogram latency) {
+        if (latency.getTotalCount() == 0) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "p50=%dus p99=%dus p99.9=%dus max=%dus",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                latency.getValueAtPercentile(99.9), latency.getMaxValue());
+    }
+
+    private static String latencyJson(Histogram latency) {
+        boolean empty = latency.getTotalCount() == 0;
+        return String.format(Locale.ROOT, "\"p50Micros\":%d,\"p99Micros\":%d,\"p999Micros\":%d,\"maxMicros\":%d",
+                empty ? 0 : latency.getValueAtPercentile(50), empty ? 0 : latency.getValueAtPercentile(99),
+                empty ? 0 : latency.getValueAtPercentile(99.9), empty ? 0 : latency.getMaxValue());
+    }
+}
@@ -0,0 +1,284 @@
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 压测工具
+ * 按参数启动若干生产者线程和消费者，每个区间输出收发速率和端到端延迟的p50/p99/p99.9/max，
+ * 结束时输出全程汇总，可以写成json文件，便于比较不同参数、不同版本的结果。
+ * 端到端延迟取自发布者写入的x-published-at消息头，生产者和消费者在不同机器上时受时钟偏差影响。
+ * 交换机和队列用Topology声明：每种交换机类型一个专用交换机，队列属于本次运行、结束时删除，压测消息不会进入demo的队列。
+ * 队列i的绑定：direct为perf.i，topic为perf.i.#，fanout每个队列都收到全部消息；direct和topic的消息轮流发往各队列。
+ */
+public class PerfTest {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;//停止发送后等待消费者收完的时间
+    private static final long DRAIN_IDLE_MILLIS = 200;//这么久没有新消息就认为已收完
+
+    private final PerfOptions options;
+    private final String exchange;
+    private final List<String> queues = new ArrayList<String>();
+    private final String[] routingKeys;
+    private final Topology topology;
+    private final byte[] body;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    //端到端延迟，微秒
+    private final Recorder latency = new Recorder(3);
+    private final List<Thread> producers = new ArrayList<Thread>();
+    private final List<ConfirmedPublisher> publishers = new ArrayList<ConfirmedPublisher>();
+    private final List<Channel> consumerChannels = new ArrayList<Channel>();
+    private volatile boolean running = true;
+
+    PerfTest(PerfOptions options) {
+        this.options = options;
+        this.exchange = "PERF_" + options.exchangeType.name() + "_EXCHANGE";
+        this.body = new byte[options.size];
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        this.topology = new Topology().exchange(exchange, options.exchangeType);
+        for (int i = 0; i < options.queues; i++) {
+            String queue = "PERF_QUEUE_" + runId + "_" + i;
+            queues.add(queue);
+            //非持久、不再使用时自动删除
+            topology.queue(queue, false, false, true, null);
+            topology.binding(queue, exchange, bindingKey(i));
+        }
+        this.routingKeys = new String[options.exchangeType == BuiltinExchangeType.FANOUT ? 1 : options.queues];
+        for (int i = 0; i < routingKeys.length; i++) {
+            routingKeys[i] = routingKey(i);
+        }
+    }
+
+    private String bindingKey(int queue) {
+        switch (options.exchangeType) {
+            case DIRECT:
+                return "perf." + queue;
+            case TOPIC:
+                return "perf." + queue + ".#";
+            default:
+                return "";
+        }
+    }
+
+    private String routingKey(int queue) {
+        switch (options.exchangeType) {
+            case DIRECT:
+                return "perf." + queue;
+            case TOPIC:
+                return "perf." + queue + ".load";
+            default:
+                return "";
+        }
+    }
+
+    void run() throws Exception {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        topology.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+        for (int i = 0; i < options.consumers; i++) {
+            startConsumer(queues.get(i % queues.size()));
+        }
+        for (int i = 0; i < options.producers; i++) {
+            startProducer(i);
+        }
+
+        PerfReport report = new PerfReport(options);
+        Histogram interval = null;
+        Histogram total = new Histogram(3);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long last = start;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (last < end) {
+            long tick = Math.min(end, last + TimeUnit.SECONDS.toNanos(options.intervalSeconds));
+            while (System.nanoTime() < tick) {
+                LockSupport.parkNanos(tick - System.nanoTime());
+            }
+            long now = System.nanoTime();
+            interval = latency.getIntervalHistogram(interval);
+            total.add(interval);
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            report.interval((now - start) / 1e9, (now - last) / 1e9, sentNow - lastSent, receivedNow - lastReceived, interval);
+            last = now;
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+        }
+
+        running = false;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        long confirmed = 0;
+        long nacked = 0;
+        for (ConfirmedPublisher publisher : publishers) {
+            publisher.close();
+            confirmed += publisher.confirmedCount();
+            nacked += publisher.nackedCount();
+        }
+        drain();
+        double receiveSeconds = (System.nanoTime() - start) / 1e9;
+        total.add(latency.getIntervalHistogram(interval));
+        stopConsumers();
+        report.summary(sendSeconds, receiveSeconds, sent.sum(), confirmed, nacked, received.sum(), failed.sum(), total);
+        if (options.output != null) {
+            report.write(Paths.get(options.output));
+            System.out.println("results written to " + options.output);
+        }
+    }
+
+    /**
+     * 每个生产者独占一个通道，按速率均分，落后时补发以保持目标速率
+     */
+    private void startProducer(int index) throws IOException, TimeoutException {
+        final ConfirmedPublisher publisher;
+        final Channel channel;
+        if (options.confirm > 0) {
+            publisher = new ConfirmedPublisher(options.confirm);
+            publishers.add(publisher);
+            channel = null;
+        } else {
+            publisher = null;
+            channel = ConnectionManager.getInstance().borrowChannel();
+        }
+        final long intervalNanos = options.rate == 0 ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(options.producers) / options.rate);
+        Thread thread = new Thread(() -> {
+            long next = System.nanoTime();
+            long n = index;
+            try {
+                while (running) {
+                    if (intervalNanos > 0) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                            continue;
+                        }
+                        next += intervalNanos;
+                    }
+                    String routingKey = routingKeys[(int) (n++ % routingKeys.length)];
+                    if (publisher != null) {
+                        publisher.publish(exchange, routingKey, null, body);
+                    } else {
+                        Metrics.publish(channel, exchange, routingKey, null, body);
+                    }
+                    sent.increment();
+                }
+            } catch (IOException | AlreadyClosedException e) {
+                failed.increment();
+                System.out.println("producer " + index + " stopped: " + e);
+            } finally {
+                if (channel != null) {
+                    ConnectionManager.getInstance().returnChannel(channel);
+                }
+            }
+        }, "perf-producer-" + index);
+        producers.add(thread);
+        thread.start();
+    }
+
+    private void startConsumer(String queue) throws IOException, TimeoutException {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        consumerChannels.add(channel);
+        if (options.prefetch > 0) {
+            channel.basicQos(options.prefetch);
+        }
+        final boolean autoAck = options.autoAck;
+        channel.basicConsume(queue, autoAck, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                Object publishedAt = properties.getHeaders() == null ? null : properties.getHeaders().get(Metrics.PUBLISHED_AT_HEADER);
+                if (publishedAt instanceof Number) {
+                    //跨机器时时钟偏差可能使延迟为负
+                    latency.recordValue(Math.max(0, Metrics.nowMicros() - ((Number) publishedAt).longValue()));
+                }
+                received.increment();
+                if (!autoAck) {
+                    getChannel().basicAck(envelope.getDeliveryTag(), false);
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止发送后等消费者把队列中的消息收完，一段时间没有新消息或超时为止
+     */
+    private void drain() throws InterruptedException {
+        if (consumerChannels.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long now = received.sum();
+            if (now == last) {
+                return;
+            }
+            last = now;
+            TimeUnit.MILLISECONDS.sleep(DRAIN_IDLE_MILLIS);
+        }
+    }
+
+    /**
+     * 关闭消费者通道并删除本次运行的队列
+     */
+    private void stopConsumers() {
+        for (Channel channel : consumerChannels) {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (IOException | TimeoutException | AlreadyClosedException e) {
+                //忽略
+            }
+            ConnectionManager.getInstance().returnChannel(channel);
+        }
+        try {
+            Channel channel = ConnectionManager.getInstance().borrowChannel();
+            for (String queue : queues) {
+                channel.queueDelete(queue);
+            }
+            ConnectionManager.getInstance().returnChannel(channel);
+        } catch (IOException | TimeoutException | AlreadyClosedException e) {
+            System.out.println("failed to delete perf queues: " + e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        PerfOptions options;
+        try {
+            options = PerfOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(PerfOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.embedded) {
+            System.setProperty("rabbitmq.broker", "embedded");
+        }
+        System.out.println("perf test " + options.toJson());
+        try {
+            new PerfTest(options).run();
+        } finally {
+            ConnectionManager.getInstance().close();
+        }
+        System.exit(0);
+    }
+}
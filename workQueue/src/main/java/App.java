@@ -12,164 +12,181 @@ import java.util.concurrent.TimeoutException;
  */
 public class App {
 
-    private final static String QUEUE_NAME = "TEST_WORK_QUEUE";
-    private boolean flag = false;//用于标记消息是否发送完，用于观测
-    private int consumer1Count = 0;//消费者1接受消息条数
-    private int consumer2Count = 0;//消费者2接受消息条数
-    private int consumer3Count = 0;//消费者3接受消息条数
+    private final static String QUEUE_NAME = Registration.WORK_QUEUE_NAME;
+    private volatile boolean flag = false;//用于标记消息是否发送完，用于观测
+    private WorkerPool evenPool;//平均分配模式的消费者
+    private WorkerPool fairPool;//能者多劳模式的消费者
+    private WorkerPool virtualPool;//虚拟线程模式的消费者
+    private WorkerPool batchPool;//批量模式的消费者
+    private ShardConsumerGroup shardGroup;//分片模式的消费者组
+    //能者多劳模式的消费者共享的去重缓存，发布者重发或broker重新投递的消息只处理一次
+    private final DedupCache dedup = new DedupCache(10, TimeUnit.MINUTES);
 
     /**
      * 模拟生产者循环发送50条消息
      */
     private void send() throws IOException, TimeoutException, InterruptedException {
-        //获取连接
-        Connection connection = ConnectionUtil.getConnection();
-        //获取通道
-        Channel channel = connection.createChannel();
-        //声明队列
-        channel.queueDeclare(QUEUE_NAME,false,false,false,null);
-        //发布消息
-        for (int i = 0; i < 50; i++) {
-            //消息内容
-            String message = "task.."+i;
-            channel.basicPublish("",QUEUE_NAME,null,message.getBytes());
-            System.out.println("[x] send '"+message+"'");
-            Thread.sleep(i*2);
+        //从连接池借出通道
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        //声明共用拓扑
+        Registration.TOPOLOGY.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+        //开启发布确认，连续发送，最多允许16条消息未确认
+        try (ConfirmedPublisher publisher = new ConfirmedPublisher(16)) {
+            publisher.setNackListener((exchange, routingKey, properties, body) ->
+                    System.out.println("[x] nacked '" + MessageCodecs.UTF8.decode(body) + "'"));
+            //发布消息
+            for (int i = 0; i < 50; i++) {
+                //消息内容
+                String message = "task.."+i;
+                //发布者在收到确认前持有消息体，不能使用复用的数组
+                publisher.publish("",QUEUE_NAME,null,MessageCodecs.UTF8.encode(message));
+            }
+            publisher.waitForConfirms(10, TimeUnit.SECONDS);
+            System.out.println("[x] confirmed " + publisher.confirmedCount() + ", nacked " + publisher.nackedCount()
+                    + ", avg confirm latency " + publisher.averageConfirmLatencyMicros() + "us");
+        }
+        flag = true;
+    }
+
+    /**
+     * 模拟生产者批量发送50条消息
+     * 每10条或每50ms打成一批，broker上只有5条消息
+     */
+    private void sendBatched() throws IOException, TimeoutException, InterruptedException {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        Registration.TOPOLOGY.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType(MessageCodecs.UTF8.contentType())
+                .build();
+        try (BatchingPublisher publisher = BatchingPublisher.open("", QUEUE_NAME, properties, 4096, 10, 50, 4)) {
+            for (int i = 0; i < 50; i++) {
+                //批内的消息会被拷贝，可以使用复用的数组
+                publisher.add(MessageCodecs.UTF8.encodePooled("task.."+i));
+            }
+            publisher.flush();
+            publisher.publisher().waitForConfirms(10, TimeUnit.SECONDS);
+            System.out.println("[x] confirmed " + publisher.publisher().confirmedCount() + " batches");
+        }
+        flag = true;
+    }
+
+    /**
+     * 模拟生产者向分片队列发送50条消息
+     * 消息按订单号分片，同一订单的消息落在同一分片上，按发送顺序被处理
+     */
+    private void sendSharded() throws IOException, TimeoutException, InterruptedException {
+        Channel channel = ConnectionManager.getInstance().borrowChannel();
+        Registration.TOPOLOGY.apply(channel);
+        ConnectionManager.getInstance().returnChannel(channel);
+        ShardedQueue shards = Registration.WORK_QUEUE_SHARDS;
+        try (ConfirmedPublisher publisher = new ConfirmedPublisher(16)) {
+            for (int i = 0; i < 50; i++) {
+                String order = "order-" + (i % 10);
+                String message = order + ".task.." + i;
+                publisher.publish("", shards.route(order), null, MessageCodecs.UTF8.encode(message));
+            }
+            publisher.waitForConfirms(10, TimeUnit.SECONDS);
+            System.out.println("[x] confirmed " + publisher.confirmedCount() + " across " + shards);
         }
         flag = true;
-        channel.close();
-        connection.close();
     }
 
     /**
      * 模拟消费者消费消息并处理
-     * 自动ACK，即消息一旦被接收，消费者自动发送消息确认（默认）
+     * 平均分配模式，不限制预取数，broker轮流把消息分给每个消费者
      * @param consumerName 消费者名字，此处绑定消费者名字为消费者1，消费者2，消费者3
      * @param costTime 每次处理消息所需要的时间
      * @throws IOException
      * @throws TimeoutException
-     * @throws InterruptedException
      */
-    private void receive(final String consumerName, final int costTime) throws IOException, TimeoutException, InterruptedException {
-        // 获取到连接
-        Connection connection = ConnectionUtil.getConnection();
-        //创建会话通道,生产者和mq服务所有通信都在channel通道中完成
-        Channel channel = connection.createChannel();
-        // 声明队列
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        //实现消费方法
-        DefaultConsumer consumer = new DefaultConsumer(channel){
-            // 获取消息，并且处理，这个方法类似事件监听，如果有消息的时候，会被自动调用
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                if (flag==false){
-                    //为了观察消费者的消费顺序，等消息全部发完后，再开始监听，实际上是实时监听的
-                    try {
-                        TimeUnit.SECONDS.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (consumerName == "消费者1"){
-                    consumer1Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer1Count);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
-                if (consumerName == "消费者2"){
-                    consumer2Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer2Count);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
-                if (consumerName == "消费者3"){
-                    consumer3Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer3Count);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
-
-            }
-        };
-        // 监听队列，第二个参数：是否自动进行消息确认。
-        channel.basicConsume(QUEUE_NAME, true, consumer);
+    private void receive(final String consumerName, final int costTime) throws IOException, TimeoutException {
+        if (evenPool == null) {
+            //处理完成后确认，每10条或每200ms合并确认一次
+            evenPool = new WorkerPool(QUEUE_NAME, 0, 10, 200);
+        }
+        evenPool.addWorker(consumerName, worker(costTime));
+    }
 
+    /**
+     * 模拟消费者消费消息并处理
+     * 手动ACK，即消息被处理后，消费者才发送消息确认
+     * 能者多劳模式，该Consumer未确认的消息达到预取数时，rabbitMQ不会将新的Message分发给它
+     * 按messageId去重，已处理过的消息直接确认
+     * @param consumerName
+     * @param costTime
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    private void receiveWitnACK(final String consumerName, final int costTime) throws IOException, TimeoutException {
+        if (fairPool == null) {
+            //每个消费者从预取1条开始，按处理耗时自动调整：处理快的最多预取32条、合并确认，处理慢的保持1条、处理完立即确认
+            fairPool = WorkerPool.adaptive(QUEUE_NAME, 32, 10, 200);
+        }
+        fairPool.addWorker(consumerName, DeduplicatingConsumer.deduplicating(dedup, worker(costTime)));
     }
 
     /**
      * 模拟消费者消费消息并处理
-     * 手动ACK，即消息被接收后，消费者需要手动发送消息确认
-     * 能者多劳模式，在接收到该Consumer的ack前，rabbitMQ不会将新的Message分发给它
+     * 虚拟线程模式，每个消费者同时处理预取数那么多条消息，处理中的sleep不会阻塞同一通道上的其他消息
+     * @param consumerName
+     * @param costTime
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    private void receiveOnVirtualThreads(final String consumerName, final int costTime) throws IOException, TimeoutException {
+        if (virtualPool == null) {
+            //每个消费者最多16条在途消息，乱序完成后按投递顺序合并确认
+            virtualPool = new WorkerPool(QUEUE_NAME, 16, 10, 200, true);
+        }
+        virtualPool.addWorker(consumerName, worker(costTime));
+    }
+
+    /**
+     * 模拟消费者消费批量消息并处理
+     * 每次预取一批，批内逐条处理，整批处理完才确认，任何一条失败整批重新入队
+     * @param consumerName
+     * @param costTime
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    private void receiveBatches(final String consumerName, final int costTime) throws IOException, TimeoutException {
+        if (batchPool == null) {
+            batchPool = new WorkerPool(QUEUE_NAME, 1, 1, 200);
+        }
+        batchPool.addWorker(consumerName, BatchConsumer.unbatching(worker(costTime)));
+    }
+
+    /**
+     * 模拟消费者加入分片队列的消费者组
+     * 每个分片只由一个消费者处理，消费者加入或离开时分片重新分配
      * @param consumerName
      * @param costTime
      * @throws IOException
      * @throws TimeoutException
-     * @throws InterruptedException
      */
-    private void receiveWitnACK(final String consumerName, final int costTime) throws IOException, TimeoutException, InterruptedException {
-        // 获取到连接
-        Connection connection = ConnectionUtil.getConnection();
-        //创建会话通道,生产者和mq服务所有通信都在channel通道中完成
-        final Channel channel = connection.createChannel();
-        // 声明队列
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        //设置每个消费者同时只能处理1条消息，在手动ack下生效
-        channel.basicQos(1);
-        //实现消费方法
-        DefaultConsumer consumer = new DefaultConsumer(channel){
-            // 获取消息，并且处理，这个方法类似事件监听，如果有消息的时候，会被自动调用
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                if (flag==false){
-                    //为了观察消费者的消费顺序，等消息全部发完后，再开始监听，实际上是实时监听的
-                    try {
-                        TimeUnit.SECONDS.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (consumerName == "消费者1"){
-                    consumer1Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer1Count);
-                    // 手动进行ACK
-                    channel.basicAck(envelope.getDeliveryTag(), false);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
-                if (consumerName == "消费者2"){
-                    consumer2Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer2Count);
-                    // 手动进行ACK
-                    channel.basicAck(envelope.getDeliveryTag(), false);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
-                if (consumerName == "消费者3"){
-                    consumer3Count++;
-                    // body 即消息体
-                    String msg = new String(body,"utf-8");
-                    System.out.println(" ["+consumerName+"] received : " + msg + "!"+"processed："+consumer3Count);
-                    // 手动进行ACK
-                    channel.basicAck(envelope.getDeliveryTag(), false);
-                    //模拟任务耗时1s
-                    try { TimeUnit.SECONDS.sleep(costTime); } catch (Exception e) { e.printStackTrace(); }
-                }
+    private void receiveSharded(final String consumerName, final int costTime) throws IOException, TimeoutException {
+        if (shardGroup == null) {
+            //同一分片上的消息逐条处理，每10条或每200ms合并确认一次
+            shardGroup = new ShardConsumerGroup(Registration.WORK_QUEUE_SHARDS, 1, 10, 200);
+        }
+        shardGroup.join(consumerName, worker(costTime));
+    }
 
+    /**
+     * 消费者的处理逻辑：模拟任务耗时
+     * 每个消费者的处理条数由WorkerPool计数并定时输出，不再逐条打印
+     */
+    private WorkerPool.Worker worker(final int costTime) {
+        return (envelope, properties, body) -> {
+            if (!flag){
+                //为了观察消费者的消费顺序，等消息全部发完后，再开始监听，实际上是实时监听的
+                TimeUnit.SECONDS.sleep(5);
             }
+            //模拟任务耗时
+            TimeUnit.SECONDS.sleep(costTime);
         };
-        // 监听队列，第二个参数：是否自动进行消息确认，
-        // false：手动进行ACK
-        channel.basicConsume(QUEUE_NAME, false, consumer);
     }
 
     /**
@@ -177,6 +194,7 @@ public class App {
      */
     @Test
     public void test1() throws InterruptedException, TimeoutException, IOException {
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
         app.receive("消费者1",1);
         app.receive("消费者2",3);
@@ -197,6 +215,7 @@ public class App {
      */
     @Test
     public void test2() throws InterruptedException, TimeoutException, IOException {
+        Metrics.startReporter(1, TimeUnit.SECONDS);
         App app = new App();
         app.receiveWitnACK("消费者1",1);
         app.receiveWitnACK("消费者2",3);
@@ -209,4 +228,66 @@ public class App {
         }
     }
 
+    /**
+     * 虚拟线程模式
+     * @throws InterruptedException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    @Test
+    public void test3() throws InterruptedException, TimeoutException, IOException {
+        Metrics.startReporter(1, TimeUnit.SECONDS);
+        App app = new App();
+        app.receiveOnVirtualThreads("消费者1",1);
+        app.receiveOnVirtualThreads("消费者2",3);
+        app.receiveOnVirtualThreads("消费者3",5);
+
+        app.send();
+        synchronized (this){
+            wait();
+        }
+    }
+
+    /**
+     * 批量模式
+     * @throws InterruptedException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    @Test
+    public void test4() throws InterruptedException, TimeoutException, IOException {
+        Metrics.startReporter(1, TimeUnit.SECONDS);
+        App app = new App();
+        app.receiveBatches("消费者1",1);
+        app.receiveBatches("消费者2",3);
+
+        app.sendBatched();
+        synchronized (this){
+            wait();
+        }
+    }
+
+    /**
+     * 分片模式
+     * 3个消费者分4个分片，10秒后消费者3离开，它的分片交给其他消费者
+     * @throws InterruptedException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    @Test
+    public void test5() throws InterruptedException, TimeoutException, IOException {
+        Metrics.startReporter(1, TimeUnit.SECONDS);
+        App app = new App();
+        app.receiveSharded("消费者1",1);
+        app.receiveSharded("消费者2",1);
+        app.receiveSharded("消费者3",1);
+
+        app.sendSharded();
+        TimeUnit.SECONDS.sleep(10);
+        app.shardGroup.leave("消费者3");
+        synchronized (this){
+            wait();
+        }
+    }
+
 }